@@ -1,23 +1,266 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.management.ManagementFactory;
+import java.math.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Predicate;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+import javax.management.*;
 
 public class Main {
 
     private static final Map<String, Double> CONSTANTS = new HashMap<>();
-    private static final Set<String> FUNCTIONS = new HashSet<>();
 
     static {
         CONSTANTS.put("pi", Math.PI);
         CONSTANTS.put("e", Math.E);
-
-        FUNCTIONS.addAll(Arrays.asList(
-                "sin", "cos", "tan",
-                "ln", "log10",
-                "sqrt", "abs", "exp",
-                "pow", "diff"
-        ));
     }
 
     public static void main(String[] args) {
+        Engine engine = Engine.TREE;
+        boolean gradient = false;
+        String benchmarkFilter = null;
+        boolean selfCheck = false;
+        String batchFormula = null;
+        String input = null;
+        String output = null;
+        byte delimiter = 0;
+        boolean columnar = false;
+        Precision precision = null;
+        double tolerance = -1.0;
+        int digits = PrecisionEvaluator.DEFAULT_DIGITS;
+        boolean metrics = false;
+        String serveAddress = null;
+        String loadAddress = null;
+        int connections = 8;
+        int requests = 10_000;
+        String snapshotPath = null;
+        String saveSnapshot = null;
+        List<String> definitions = new ArrayList<>();
+        String boundFormula = null;
+        Map<String, double[]> ranges = new LinkedHashMap<>();
+        double threshold = Double.NaN;
+        int boxes = ThresholdSearch.DEFAULT_BOXES;
+        for (String arg : args) {
+            if ("--gradient".equals(arg)) {
+                gradient = true;
+            } else if ("--selfcheck".equals(arg)) {
+                selfCheck = true;
+            } else if ("--metrics".equals(arg)) {
+                metrics = true;
+            } else if (arg.startsWith("--metrics-sampling=")) {
+                metrics = true;
+                try {
+                    Metrics.setNodeSampling(Integer.parseInt(arg.substring("--metrics-sampling=".length())));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Ошибка: частота выборки должна быть неотрицательным целым: '" + arg + "'");
+                    return;
+                }
+            } else if (arg.startsWith("--define=")) {
+                definitions.add(arg.substring("--define=".length()));
+            } else if (arg.startsWith("--functions=")) {
+                // по определению на строку; пустые строки и строки с # пропускаются
+                try {
+                    for (String line : Files.readAllLines(Paths.get(arg.substring("--functions=".length())),
+                            StandardCharsets.UTF_8)) {
+                        if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                            definitions.add(line);
+                        }
+                    }
+                } catch (IOException ex) {
+                    System.out.println("Ошибка чтения файла функций: " + ex.getMessage());
+                    return;
+                }
+            } else if (arg.startsWith("--serve=")) {
+                serveAddress = arg.substring("--serve=".length());
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshotPath = arg.substring("--snapshot=".length());
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshot = arg.substring("--save-snapshot=".length());
+            } else if ("--load".equals(arg)) {
+                loadAddress = "";
+            } else if (arg.startsWith("--load=")) {
+                loadAddress = arg.substring("--load=".length());
+            } else if (arg.startsWith("--bound=")) {
+                boundFormula = arg.substring("--bound=".length());
+            } else if (arg.startsWith("--range=") || arg.startsWith("--exceeds=")) {
+                String[] parts = arg.substring(arg.indexOf('=') + 1).split(":", -1);
+                double[] values = new double[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    try {
+                        values[i] = Double.parseDouble(parts[i].trim().replace(',', '.'));
+                    } catch (NumberFormatException ex) {
+                        values[i] = Double.NaN;
+                    }
+                }
+                if (arg.startsWith("--exceeds=")) {
+                    threshold = parts.length == 1 ? values[0] : Double.NaN;
+                    if (Double.isNaN(threshold)) {
+                        System.out.println("Ошибка: ожидалось число в '" + arg + "'");
+                        return;
+                    }
+                } else if (parts.length != 3 || !(values[1] <= values[2])
+                        || Double.isInfinite(values[1]) || Double.isInfinite(values[2])) {
+                    System.out.println("Ошибка: ожидался диапазон вида --range=x:0:1 с конечными границами: '" + arg + "'");
+                    return;
+                } else {
+                    ranges.put(parts[0].trim(), new double[] {values[1], values[2]});
+                }
+            } else if (arg.startsWith("--connections=") || arg.startsWith("--requests=") || arg.startsWith("--boxes=")) {
+                int value;
+                try {
+                    value = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException ex) {
+                    value = 0;
+                }
+                if (value <= 0) {
+                    System.out.println("Ошибка: ожидалось положительное целое: '" + arg + "'");
+                    return;
+                }
+                if (arg.startsWith("--connections=")) {
+                    connections = value;
+                } else if (arg.startsWith("--boxes=")) {
+                    boxes = value;
+                } else {
+                    requests = value;
+                }
+            } else if ("--bench".equals(arg)) {
+                benchmarkFilter = "";
+            } else if (arg.startsWith("--bench=")) {
+                benchmarkFilter = arg.substring("--bench=".length());
+            } else if (arg.startsWith("--batch=")) {
+                batchFormula = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--input=")) {
+                input = arg.substring("--input=".length());
+            } else if (arg.startsWith("--output=")) {
+                output = arg.substring("--output=".length());
+            } else if (arg.startsWith("--format=")) {
+                String format = arg.substring("--format=".length());
+                if (!"csv".equalsIgnoreCase(format) && !"columnar".equalsIgnoreCase(format)) {
+                    System.out.println("Ошибка: неизвестный формат '" + format + "', ожидался csv или columnar");
+                    return;
+                }
+                columnar = "columnar".equalsIgnoreCase(format);
+            } else if (arg.startsWith("--delimiter=")) {
+                String value = arg.substring("--delimiter=".length());
+                if ("tab".equalsIgnoreCase(value) || "\\t".equals(value)) {
+                    value = "\t";
+                }
+                if (value.length() != 1 || value.charAt(0) > 127) {
+                    System.out.println("Ошибка: разделитель должен быть одним ASCII-символом или 'tab'");
+                    return;
+                }
+                delimiter = (byte) value.charAt(0);
+            } else if (arg.startsWith("--engine=")) {
+                engine = Engine.byName(arg.substring("--engine=".length()));
+                if (engine == null) {
+                    System.out.println("Ошибка: неизвестный режим вычисления '" + arg + "'");
+                    return;
+                }
+            } else if (arg.startsWith("--precision=")) {
+                precision = Precision.byName(arg.substring("--precision=".length()));
+                if (precision == null) {
+                    System.out.println("Ошибка: неизвестная точность '" + arg
+                            + "', ожидалось double, double_double или decimal");
+                    return;
+                }
+            } else if (arg.startsWith("--digits=") || arg.startsWith("--tolerance=")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--digits=")) {
+                        digits = Integer.parseInt(value);
+                    } else {
+                        tolerance = Double.parseDouble(value);
+                    }
+                } catch (NumberFormatException ex) {
+                    digits = -1;
+                }
+                boolean badTolerance = arg.startsWith("--tolerance=") && !(tolerance >= 0.0);
+                if (digits < 1 || digits > PrecisionEvaluator.MAX_DIGITS || badTolerance) {
+                    System.out.println("Ошибка: ожидалось число знаков от 1 до " + PrecisionEvaluator.MAX_DIGITS
+                            + " или неотрицательный допуск: '" + arg + "'");
+                    return;
+                }
+            }
+        }
+
+        if (metrics) {
+            // снимок печатается при выходе, каким бы путём main ни завершился
+            Metrics.enable(true);
+            Metrics.registerMBean();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(Metrics.snapshot().toJson())));
+        }
+        // свои функции регистрируются до любого разбора, в порядке ключей: определение может звать предыдущие
+        for (String definition : definitions) {
+            try {
+                FunctionRegistry.define(definition);
+            } catch (ParseException ex) {
+                System.out.println("Ошибка в определении функции: " + ex.getMessage());
+                return;
+            }
+        }
+
+        if (saveSnapshot != null) {
+            runSaveSnapshot(saveSnapshot, input);
+            return;
+        }
+        ExpressionCache cache;
+        try {
+            cache = new ExpressionCache(EvaluationServer.DEFAULT_CACHE,
+                    snapshotPath == null ? null : ExpressionSnapshot.open(Paths.get(snapshotPath)));
+        } catch (IOException ex) {
+            System.err.println("Ошибка чтения снимка: " + ex.getMessage());
+            return;
+        }
+        if (serveAddress != null) {
+            runServer(serveAddress, cache);
+            return;
+        }
+        if (loadAddress != null) {
+            runLoad(loadAddress, connections, requests, cache);
+            return;
+        }
+
+        if (benchmarkFilter != null) {
+            try {
+                Benchmark.standard().run(benchmarkFilter, System.out);
+            } catch (ParseException ex) {
+                System.out.println("Ошибка: " + ex.getMessage());
+            }
+            return;
+        }
+        if (selfCheck) {
+            if (!new SelfCheck(System.out).run()) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (boundFormula != null) {
+            runBound(boundFormula, ranges, threshold, boxes);
+            return;
+        }
+        if (batchFormula != null && columnar) {
+            runColumnar(batchFormula, input, output);
+            return;
+        }
+        if (batchFormula != null) {
+            runBatch(batchFormula, input, output, delimiter);
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
         System.out.print("Введите выражение: ");
         String text = scanner.nextLine().trim();
@@ -29,24 +272,242 @@ public class Main {
 
         try {
             Parser parser = new Parser(text);
-            Node root = parser.parse();
+            Node parsed = parser.parse();
+            Node root = new Optimizer().optimize(parsed);
 
             Set<String> variables = new TreeSet<>();
             root.collectVariables(variables);
 
-            EvaluationContext context = new EvaluationContext();
+            Evaluator evaluator = engine.prepare(root, parser.getLayout());
+            EvaluationContext context = new EvaluationContext(parser.getLayout());
             for (String var : variables) {
                 double value = readDouble(scanner, "Введите значение для " + var + ": ");
                 context.setVariable(var, value);
             }
 
-            double result = root.evaluate(context);
+            long started = Metrics.start();
+            double result = evaluator.evaluate(context);
+            Metrics.record(Metrics.EVALUATE, started);
             System.out.println("Результат: " + result);
+            if (precision != null || tolerance >= 0.0) {
+                printPrecise(new PrecisionEvaluator(parsed, parser.getLayout()), context,
+                        precision == null ? Precision.DOUBLE : precision, digits, tolerance);
+            }
+            if (gradient && !variables.isEmpty()) {
+                GradientEvaluator gradientEvaluator = new GradientEvaluator(root, parser.getLayout());
+                double[] partials = new double[gradientEvaluator.getVariables().size()];
+                gradientEvaluator.evaluate(context, partials);
+                for (int i = 0; i < partials.length; i++) {
+                    System.out.println("d/d" + gradientEvaluator.getVariables().get(i) + " = " + partials[i]);
+                }
+            }
+        } catch (ParseException | EvaluationException ex) {
+            System.out.println("Ошибка: " + ex.getMessage());
+        }
+    }
+
+    // операция встроенного замера по имени вида "evaluate.tree:trig" — для модуля JMH в bench/.
+    // Класс из безымянного пакета виден оттуда только через отражение, поэтому в сигнатуре лишь типы JDK
+    public static DoubleSupplier benchmarkOperation(String id) {
+        try {
+            return Benchmark.standard().operation(id);
+        } catch (ParseException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    // с допуском режим выбирается автоматически, иначе берётся заданный
+    private static void printPrecise(PrecisionEvaluator evaluator, EvaluationContext context, Precision precision,
+                                     int digits, double tolerance) {
+        if (tolerance >= 0.0) {
+            evaluator.evaluate(context, tolerance);
+        } else {
+            evaluator.evaluate(context, precision, digits);
+        }
+        BigDecimal value = evaluator.getDecimal();
+        String shown = value == null
+                ? String.valueOf(evaluator.getValue())
+                : value.round(new MathContext(evaluator.getSignificantDigits(), RoundingMode.HALF_EVEN)).toString();
+        String mode = evaluator.getMode().name().toLowerCase(Locale.ROOT);
+        if (evaluator.getMode() == Precision.DECIMAL) {
+            mode += ", " + evaluator.getSignificantDigits() + " знаков";
+        }
+        System.out.println("Результат (" + mode + "): " + shown + " ± "
+                + String.format(Locale.ROOT, "%.3g", evaluator.getErrorBound()));
+    }
+
+    private static void runBatch(String formula, String input, String output, byte delimiter) {
+        try {
+            CsvProcessor processor = FormulaSet.isDefinition(formula)
+                    ? new CsvProcessor(FormulaSet.parse(formula), delimiter)
+                    : new CsvProcessor(CompiledExpression.compile(formula), delimiter);
+            try (ReadableByteChannel in = input == null
+                    ? new FileInputStream(FileDescriptor.in).getChannel()
+                    : FileChannel.open(Paths.get(input), StandardOpenOption.READ);
+                 OutputStream out = output == null
+                         ? new FileOutputStream(FileDescriptor.out)
+                         : Files.newOutputStream(Paths.get(output))) {
+                processor.process(in, out);
+            }
+            System.err.println("Обработано строк: " + processor.getRowCount() + ", с ошибкой: " + processor.getFailureCount());
+            if (processor.getFirstFailure() != null) {
+                System.err.println("Первая ошибка: " + processor.getFirstFailure());
+            }
+        } catch (ParseException | EvaluationException ex) {
+            System.err.println("Ошибка: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Ошибка ввода-вывода: " + ex.getMessage());
+        }
+    }
+
+    private static void runColumnar(String formula, String input, String output) {
+        if (input == null || output == null) {
+            System.err.println("Ошибка: для столбцового формата нужны --input и --output");
+            return;
+        }
+        try {
+            ColumnarProcessor processor = FormulaSet.isDefinition(formula)
+                    ? new ColumnarProcessor(FormulaSet.parse(formula))
+                    : new ColumnarProcessor(CompiledExpression.compile(formula));
+            long rows = processor.process(Paths.get(input), Paths.get(output));
+            System.err.println("Обработано строк: " + rows + ", с ошибкой: " + processor.getFailureCount());
+            if (processor.getFirstFailure() != null) {
+                System.err.println("Первая ошибка: " + processor.getFirstFailure());
+            }
+        } catch (ParseException | EvaluationException ex) {
+            System.err.println("Ошибка: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Ошибка ввода-вывода: " + ex.getMessage());
+        }
+    }
+
+    // границы формулы на прямоугольнике --range и, если задан порог, поиск точки, где он превышается
+    private static void runBound(String formula, Map<String, double[]> ranges, double threshold, int boxes) {
+        try {
+            CompiledExpression expression = CompiledExpression.compile(formula);
+            VariableLayout layout = expression.getLayout();
+            double[] lo = new double[layout.size()];
+            double[] hi = new double[layout.size()];
+            Arrays.fill(lo, Double.NaN);
+            Arrays.fill(hi, Double.NaN);
+            for (String name : expression.getVariables()) {
+                double[] range = ranges.get(name);
+                if (range == null) {
+                    System.out.println("Ошибка: для переменной '" + name + "' не задан диапазон --range=" + name + ":от:до");
+                    return;
+                }
+                lo[layout.slotOf(name)] = range[0];
+                hi[layout.slotOf(name)] = range[1];
+            }
+            IntervalEvaluator intervals = new IntervalEvaluator(expression.getRoot(), layout);
+            intervals.evaluate(lo, hi);
+            if (intervals.mustFail()) {
+                System.out.println("Выражение не определено ни в одной точке диапазона");
+            } else {
+                System.out.println("Границы: [" + intervals.getLo() + ", " + intervals.getHi() + "]");
+                if (intervals.mayFail()) {
+                    System.out.println("В диапазоне есть точки, где выражение не определено; границы даны для остальных");
+                }
+            }
+            if (Double.isNaN(threshold)) {
+                return;
+            }
+            ThresholdSearch search = new ThresholdSearch(expression.getRoot(), layout);
+            switch (search.search(threshold, lo, hi, boxes, 0.0)) {
+                case EXCEEDS:
+                    StringBuilder point = new StringBuilder();
+                    for (String name : expression.getVariables()) {
+                        point.append(point.length() == 0 ? "" : ", ").append(name).append(" = ")
+                                .append(search.getWitness()[layout.slotOf(name)]);
+                    }
+                    System.out.println("Порог " + threshold + " превышается: при " + point
+                            + " значение " + search.getWitnessValue());
+                    break;
+                case NEVER_EXCEEDS:
+                    System.out.println("Порог " + threshold + " не превышается нигде в диапазоне");
+                    break;
+                default:
+                    System.out.println("Превышение порога " + threshold + " не найдено, но и не исключено: не хватило --boxes="
+                            + boxes);
+                    break;
+            }
+            System.out.println("Подобластей проверено: " + search.getEvaluatedBoxes() + ", отброшено по оценке: "
+                    + search.getPrunedBoxes() + ", не решено: " + search.getUndecidedBoxes());
         } catch (ParseException | EvaluationException ex) {
             System.out.println("Ошибка: " + ex.getMessage());
         }
     }
 
+    private static void runServer(String address, ExpressionCache cache) {
+        try (EvaluationServer server = EvaluationServer.start(address, cache)) {
+            System.err.println("Сервер слушает " + server.getAddress());
+            // по сигналу остановки закрываем сокет, чтобы не оставить файл unix-сокета
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+            server.await();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Ошибка: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Ошибка ввода-вывода: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // без адреса нагрузка идёт на сервер в этом же процессе на свободном порту, и печатается размер его пакетов
+    private static void runLoad(String address, int connections, int requests, ExpressionCache cache) {
+        EvaluationServer server = null;
+        try {
+            if (address.isEmpty()) {
+                server = EvaluationServer.start("tcp:0", cache);
+                address = server.getAddress();
+            }
+            LoadGenerator generator = new LoadGenerator(address, connections, requests);
+            System.err.println("Нагрузка на " + address);
+            generator.run(System.out);
+            if (server != null) {
+                System.out.println(String.format(Locale.ROOT, "Пакетов: %d, в среднем запросов в пакете: %.2f",
+                        server.getBatches(), server.getBatchedRequests() / (double) Math.max(1, server.getBatches())));
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Ошибка: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Ошибка ввода-вывода: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+    }
+
+    // формулы по одной на строку; строки с ошибкой разбора пропускаются с сообщением
+    private static void runSaveSnapshot(String path, String input) {
+        List<CompiledExpression> expressions = new ArrayList<>();
+        int skipped = 0;
+        try (BufferedReader reader = input == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String formula = line.trim();
+                if (formula.isEmpty()) {
+                    continue;
+                }
+                try {
+                    expressions.add(CompiledExpression.compile(formula));
+                } catch (ParseException ex) {
+                    skipped++;
+                    System.err.println("Ошибка в '" + formula + "': " + ex.getMessage());
+                }
+            }
+            int saved = ExpressionSnapshot.write(Paths.get(path), expressions);
+            System.err.println("Сохранено формул: " + saved + ", пропущено: " + skipped);
+        } catch (IOException ex) {
+            System.err.println("Ошибка ввода-вывода: " + ex.getMessage());
+        }
+    }
+
     private static double readDouble(Scanner scanner, String prompt) {
         while (true) {
             System.out.print(prompt);
@@ -69,73 +530,165 @@ public class Main {
         EOF
     }
 
-    private static final class Token {
-        final TokenType type;
-        final String text;
-        final int position;
-
-        Token(TokenType type, String text, int position) {
-            this.type = type;
-            this.text = text;
-            this.position = position;
-        }
-    }
-
     private static final class Tokenizer {
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
         private final String input;
         private final int length;
         private int pos = 0;
+        private TokenType type;
+        private int start;
 
         Tokenizer(String input) {
             this.input = input;
             this.length = input.length();
         }
 
-        List<Token> tokenize() throws ParseException {
-            List<Token> tokens = new ArrayList<>();
-            while (pos < length) {
-                char c = input.charAt(pos);
-                if (Character.isWhitespace(c)) {
-                    pos++;
-                    continue;
+        TokenType next() throws ParseException {
+            while (pos < length && Character.isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+            start = pos;
+            if (pos >= length) {
+                type = TokenType.EOF;
+                return type;
+            }
+            char c = input.charAt(pos);
+            if (Character.isDigit(c) || (c == '.' && nextIsDigit())) {
+                skipNumber();
+                type = TokenType.NUMBER;
+                return type;
+            }
+            if (Character.isLetter(c) || c == '_') {
+                skipIdentifier();
+                type = TokenType.IDENT;
+                return type;
+            }
+            switch (c) {
+                case '+': type = TokenType.PLUS; break;
+                case '-': type = TokenType.MINUS; break;
+                case '*': type = TokenType.STAR; break;
+                case '/': type = TokenType.SLASH; break;
+                case '^': type = TokenType.CARET; break;
+                case '(': type = TokenType.LPAREN; break;
+                case ')': type = TokenType.RPAREN; break;
+                case ',': type = TokenType.COMMA; break;
+                default:
+                    throw new ParseException("Недопустимый символ '" + c + "' на позиции " + pos);
+            }
+            pos++;
+            return type;
+        }
+
+        TokenType type() {
+            return type;
+        }
+
+        int position() {
+            return start;
+        }
+
+        int end() {
+            return pos;
+        }
+
+        // строка создаётся только по запросу: для имён и сообщений об ошибках
+        String text() {
+            return input.substring(start, pos);
+        }
+
+        double number() throws ParseException {
+            try {
+                return parseNumber(input, start, pos);
+            } catch (NumberFormatException ex) {
+                throw new ParseException("Не удалось прочитать число '" + text() + "'");
+            }
+        }
+
+        // точный быстрый путь для коротких мантисс, иначе — Double.parseDouble
+        static double parseNumber(CharSequence text, int from, int to) {
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            int i = from;
+            boolean negative = false;
+            if (i < to && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                negative = text.charAt(i) == '-';
+                i++;
+            }
+            int mantissaStart = i;
+            boolean dot = false;
+            for (; i < to; i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (mantissa != 0 || c != '0') {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (dot) {
+                        scale--;
+                    }
+                    if (digits > 15) {
+                        return slowParse(text, from, to);
+                    }
+                } else if (c == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
                 }
-                if (Character.isDigit(c) || (c == '.' && nextIsDigit())) {
-                    tokens.add(readNumber());
-                    continue;
+            }
+            if (i == mantissaStart || (dot && i == mantissaStart + 1)) {
+                return slowParse(text, from, to);
+            }
+            if (i < to) {
+                char c = text.charAt(i);
+                if (c != 'e' && c != 'E') {
+                    return slowParse(text, from, to);
                 }
-                if (Character.isLetter(c) || c == '_') {
-                    tokens.add(readIdentifier());
-                    continue;
+                i++;
+                boolean negativeExponent = false;
+                if (i < to && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                    negativeExponent = text.charAt(i) == '-';
+                    i++;
                 }
-                switch (c) {
-                    case '+': tokens.add(simple(TokenType.PLUS)); break;
-                    case '-': tokens.add(simple(TokenType.MINUS)); break;
-                    case '*': tokens.add(simple(TokenType.STAR)); break;
-                    case '/': tokens.add(simple(TokenType.SLASH)); break;
-                    case '^': tokens.add(simple(TokenType.CARET)); break;
-                    case '(': tokens.add(simple(TokenType.LPAREN)); break;
-                    case ')': tokens.add(simple(TokenType.RPAREN)); break;
-                    case ',': tokens.add(simple(TokenType.COMMA)); break;
-                    default:
-                        throw new ParseException("Недопустимый символ '" + c + "' на позиции " + pos);
+                if (i == to) {
+                    return slowParse(text, from, to);
+                }
+                int exponent = 0;
+                for (; i < to; i++) {
+                    char d = text.charAt(i);
+                    if (d < '0' || d > '9' || exponent > 1000) {
+                        return slowParse(text, from, to);
+                    }
+                    exponent = exponent * 10 + (d - '0');
                 }
+                scale += negativeExponent ? -exponent : exponent;
+            }
+            double value;
+            if (mantissa == 0) {
+                value = 0.0;
+            } else if (scale >= 0 && scale < POWERS_OF_TEN.length) {
+                value = mantissa * POWERS_OF_TEN[scale];
+            } else if (scale < 0 && -scale < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-scale];
+            } else {
+                return slowParse(text, from, to);
             }
-            tokens.add(new Token(TokenType.EOF, "", pos));
-            return tokens;
+            return negative ? -value : value;
         }
 
-        private boolean nextIsDigit() {
-            return pos + 1 < length && Character.isDigit(input.charAt(pos + 1));
+        private static double slowParse(CharSequence text, int from, int to) {
+            return Double.parseDouble(text.subSequence(from, to).toString());
         }
 
-        private Token simple(TokenType type) {
-            Token t = new Token(type, String.valueOf(input.charAt(pos)), pos);
-            pos++;
-            return t;
+        private boolean nextIsDigit() {
+            return pos + 1 < length && Character.isDigit(input.charAt(pos + 1));
         }
 
-        private Token readNumber() {
-            int start = pos;
+        private void skipNumber() {
             boolean hasDot = false;
             boolean hasExp = false;
 
@@ -156,11 +709,9 @@ public class Main {
                     break;
                 }
             }
-            return new Token(TokenType.NUMBER, input.substring(start, pos), start);
         }
 
-        private Token readIdentifier() {
-            int start = pos;
+        private void skipIdentifier() {
             pos++;
             while (pos < length) {
                 char c = input.charAt(pos);
@@ -170,153 +721,357 @@ public class Main {
                     break;
                 }
             }
-            return new Token(TokenType.IDENT, input.substring(start, pos), start);
         }
     }
 
     private static final class Parser {
-        private final List<Token> tokens;
-        private int current = 0;
+        // маркеры на стеке операторов: унарный минус, скобка и вызов функции
+        private static final char NEGATE = '~';
+        private static final char PAREN = '(';
+        private static final char CALL = 'f';
+
+        private final Tokenizer tokenizer;
+        private final VariableLayout layout;
+        private final Map<String, Node> definitions;
+        private final List<Node> operands = new ArrayList<>();
+        private final List<FunctionCall> calls = new ArrayList<>();
+        private char[] operators = new char[16];
+        private int operatorCount = 0;
+        private char[] frames = new char[16];
+        private int frameCount = 0;
+        // при включённых метриках время токенизатора копится отдельно от остального разбора
+        private final boolean timed = Metrics.isEnabled();
+        private long tokenizeNanos;
 
         Parser(String text) throws ParseException {
-            this.tokens = new Tokenizer(text).tokenize();
+            this(text, new VariableLayout());
         }
 
-        Node parse() throws ParseException {
-            Node node = parseExpression();
-            expect(TokenType.EOF, "Ожидался конец выражения");
-            return node;
+        Parser(String text, VariableLayout layout) throws ParseException {
+            this(text, layout, Collections.<String, Node>emptyMap());
         }
 
-        private Node parseExpression() throws ParseException {
-            Node node = parseTerm();
-            while (match(TokenType.PLUS) || match(TokenType.MINUS)) {
-                Token op = previous();
-                Node right = parseTerm();
-                node = new BinaryNode(op.text, node, right);
-            }
-            return node;
+        // имена из definitions подставляются готовыми поддеревьями, так что diff видит их содержимое
+        Parser(String text, VariableLayout layout, Map<String, Node> definitions) throws ParseException {
+            this.tokenizer = new Tokenizer(text);
+            this.layout = layout;
+            this.definitions = definitions;
+            next();
         }
 
-        private Node parseTerm() throws ParseException {
-            Node node = parsePower();
-            while (match(TokenType.STAR) || match(TokenType.SLASH)) {
-                Token op = previous();
-                Node right = parsePower();
-                node = new BinaryNode(op.text, node, right);
-            }
-            return node;
+        VariableLayout getLayout() {
+            return layout;
         }
 
-        private Node parsePower() throws ParseException {
-            Node node = parseUnary();
-            if (match(TokenType.CARET)) {
-                Token op = previous();
-                Node right = parsePower();
-                node = new BinaryNode(op.text, node, right);
+        // в метрику parse входит и токенизация; неудачный разбор не замеряется
+        Node parse() throws ParseException {
+            if (!timed) {
+                return parseTokens();
             }
-            return node;
+            long started = System.nanoTime();
+            Node result = parseTokens();
+            Metrics.recordNanos(Metrics.PARSE, System.nanoTime() - started);
+            Metrics.recordNanos(Metrics.TOKENIZE, tokenizeNanos);
+            return result;
         }
 
-        private Node parseUnary() throws ParseException {
-            if (match(TokenType.PLUS)) {
-                return parseUnary();
-            }
-            if (match(TokenType.MINUS)) {
-                return new UnaryMinusNode(parseUnary());
+        // разбор без рекурсии: глубина вложенности ограничена только памятью
+        private Node parseTokens() throws ParseException {
+            boolean expectOperand = true;
+            while (true) {
+                TokenType type = tokenizer.type();
+                if (expectOperand) {
+                    expectOperand = readOperand(type);
+                    continue;
+                }
+                switch (type) {
+                    case PLUS:
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                    case CARET:
+                        char op = operator();
+                        reduceWhileStronger(op);
+                        pushOperator(op);
+                        expectOperand = true;
+                        break;
+                    case COMMA:
+                        if (innermostFrame() != CALL) {
+                            throw unclosedFrame();
+                        }
+                        reduceToFrame();
+                        advance();
+                        expectOperand = true;
+                        break;
+                    case RPAREN:
+                        if (innermostFrame() == PAREN) {
+                            reduceToFrame();
+                            operatorCount--;
+                            frameCount--;
+                            advance();
+                        } else if (innermostFrame() == CALL) {
+                            reduceToFrame();
+                            closeCall();
+                        } else {
+                            throw unclosedFrame();
+                        }
+                        break;
+                    case EOF:
+                        if (frameCount > 0) {
+                            throw unclosedFrame();
+                        }
+                        reduceToFrame();
+                        return operands.get(0);
+                    default:
+                        throw unclosedFrame();
+                }
             }
-            return parsePrimary();
         }
 
-        private Node parsePrimary() throws ParseException {
-            Token token = peek();
-            switch (token.type) {
+        private boolean readOperand(TokenType type) throws ParseException {
+            switch (type) {
+                case PLUS:
+                    advance();
+                    return true;
+                case MINUS:
+                    advance();
+                    pushOperator(NEGATE);
+                    return true;
                 case NUMBER:
+                    double value = tokenizer.number();
                     advance();
-                    try {
-                        return new NumberNode(Double.parseDouble(token.text));
-                    } catch (NumberFormatException ex) {
-                        throw new ParseException("Не удалось прочитать число '" + token.text + "'");
-                    }
+                    operands.add(new NumberNode(value));
+                    return false;
                 case IDENT:
+                    String original = tokenizer.text();
                     advance();
-                    String original = token.text;
                     String canonical = original.toLowerCase(Locale.ROOT);
-                    if (match(TokenType.LPAREN)) {
-                        return parseFunctionCall(original, canonical);
+                    if (check(TokenType.LPAREN)) {
+                        advance();
+                        calls.add(new FunctionCall(original, canonical, operands.size()));
+                        pushOperator(CALL);
+                        pushFrame(CALL);
+                        if (check(TokenType.RPAREN)) {
+                            closeCall();
+                            return false;
+                        }
+                        return true;
                     }
-                    if (CONSTANTS.containsKey(canonical)) {
-                        return new NumberNode(CONSTANTS.get(canonical));
+                    if (definitions.containsKey(original)) {
+                        operands.add(definitions.get(original));
+                    } else if (CONSTANTS.containsKey(canonical)) {
+                        operands.add(new NumberNode(CONSTANTS.get(canonical)));
+                    } else {
+                        operands.add(new VariableNode(original, layout));
                     }
-                    return new VariableNode(original);
+                    return false;
                 case LPAREN:
                     advance();
-                    Node inside = parseExpression();
-                    expect(TokenType.RPAREN, "Ожидалась ')'");
-                    return inside;
+                    pushOperator(PAREN);
+                    pushFrame(PAREN);
+                    return true;
                 default:
-                    throw new ParseException("Неожиданный токен '" + token.text + "' на позиции " + token.position);
+                    throw new ParseException("Неожиданный токен '" + tokenizer.text() + "' на позиции " + tokenizer.position());
             }
         }
 
-        private Node parseFunctionCall(String original, String canonical) throws ParseException {
-            List<Node> args = new ArrayList<>();
-            if (!check(TokenType.RPAREN)) {
-                do {
-                    args.add(parseExpression());
-                } while (match(TokenType.COMMA));
+        private void closeCall() throws ParseException {
+            FunctionCall call = calls.remove(calls.size() - 1);
+            expect(TokenType.RPAREN, "Ожидалась ')' после аргументов функции " + call.original);
+            operatorCount--;
+            frameCount--;
+            List<Node> argumentView = operands.subList(call.firstOperand, operands.size());
+            List<Node> args = new ArrayList<>(argumentView);
+            argumentView.clear();
+            operands.add(buildCall(call.original, call.canonical, args));
+        }
+
+        // функция и её арность определяются здесь один раз, узел хранит прямую ссылку
+        private Node buildCall(String original, String canonical, List<Node> args) throws ParseException {
+            if ("diff".equals(canonical)) {
+                if (args.size() == 3 && args.get(1) instanceof VariableNode) {
+                    String variable = ((VariableNode) args.get(1)).getName();
+                    Node derivative = new Differentiator(variable).derive(args.get(0));
+                    if (derivative != null) {
+                        return Differentiator.substitute(derivative, variable, args.get(2));
+                    }
+                }
+                return FunctionNode.derivative(original, args);
+            }
+            if (SolveNode.SOLVE.equals(canonical) || SolveNode.MINIMIZE.equals(canonical)) {
+                if (args.size() != 4) {
+                    throw new ParseException("Функция '" + original + "' ожидает 4 аргумента, а получено " + args.size());
+                }
+                if (!(args.get(1) instanceof VariableNode)) {
+                    throw new ParseException("Во втором аргументе " + original + " нужно указать имя переменной");
+                }
+                return new SolveNode(original, canonical, args.get(0), (VariableNode) args.get(1), args.get(2), args.get(3));
             }
-            expect(TokenType.RPAREN, "Ожидалась ')' после аргументов функции " + original);
-            if (!FUNCTIONS.contains(canonical)) {
+            MathFunction function = FunctionRegistry.find(canonical);
+            if (function == null) {
                 throw new ParseException("Неизвестная функция '" + original + "'");
             }
-            return new FunctionNode(original, canonical, args);
+            if (function.getArity() != args.size()) {
+                throw new ParseException("Функция '" + original + "' ожидает " + function.getArity()
+                        + " аргумент(а), а получено " + args.size());
+            }
+            return new FunctionNode(original, function, args);
         }
 
-        private boolean match(TokenType type) {
-            if (check(type)) {
-                advance();
-                return true;
+        private ParseException unclosedFrame() {
+            String message;
+            switch (innermostFrame()) {
+                case PAREN:
+                    message = "Ожидалась ')'";
+                    break;
+                case CALL:
+                    message = "Ожидалась ')' после аргументов функции " + calls.get(calls.size() - 1).original;
+                    break;
+                default:
+                    message = "Ожидался конец выражения";
+                    break;
             }
-            return false;
+            return new ParseException(message + " (позиция " + tokenizer.position() + ")");
+        }
+
+        private void reduceWhileStronger(char incoming) {
+            int incomingPrecedence = precedence(incoming);
+            while (operatorCount > 0) {
+                char top = operators[operatorCount - 1];
+                if (top == PAREN || top == CALL) {
+                    return;
+                }
+                int topPrecedence = precedence(top);
+                // '^' правоассоциативен, остальные бинарные операции — левоассоциативны
+                if (topPrecedence < incomingPrecedence || (topPrecedence == incomingPrecedence && incoming == '^')) {
+                    return;
+                }
+                reduceTop();
+            }
+        }
+
+        private void reduceToFrame() {
+            while (operatorCount > 0) {
+                char top = operators[operatorCount - 1];
+                if (top == PAREN || top == CALL) {
+                    return;
+                }
+                reduceTop();
+            }
+        }
+
+        private void reduceTop() {
+            char op = operators[--operatorCount];
+            Node right = operands.remove(operands.size() - 1);
+            if (op == NEGATE) {
+                operands.add(new UnaryMinusNode(right));
+                return;
+            }
+            Node left = operands.remove(operands.size() - 1);
+            operands.add(new BinaryNode(symbol(op), left, right));
+        }
+
+        private static String symbol(char op) {
+            switch (op) {
+                case '+': return "+";
+                case '-': return "-";
+                case '*': return "*";
+                case '/': return "/";
+                default: return "^";
+            }
+        }
+
+        private static int precedence(char op) {
+            switch (op) {
+                case '+':
+                case '-':
+                    return 1;
+                case '*':
+                case '/':
+                    return 2;
+                case '^':
+                    return 3;
+                default:
+                    return 4;
+            }
+        }
+
+        private char innermostFrame() {
+            return frameCount == 0 ? 0 : frames[frameCount - 1];
+        }
+
+        private void pushOperator(char op) {
+            if (operatorCount == operators.length) {
+                operators = Arrays.copyOf(operators, operatorCount * 2);
+            }
+            operators[operatorCount++] = op;
+        }
+
+        private void pushFrame(char frame) {
+            if (frameCount == frames.length) {
+                frames = Arrays.copyOf(frames, frameCount * 2);
+            }
+            frames[frameCount++] = frame;
         }
 
         private void expect(TokenType type, String message) throws ParseException {
             if (!check(type)) {
-                throw new ParseException(message + " (позиция " + peek().position + ")");
+                throw new ParseException(message + " (позиция " + tokenizer.position() + ")");
             }
             advance();
         }
 
         private boolean check(TokenType type) {
-            if (isAtEnd()) {
-                return type == TokenType.EOF;
-            }
-            return peek().type == type;
+            return tokenizer.type() == type;
         }
 
-        private Token advance() {
-            if (!isAtEnd()) {
-                current++;
+        private char operator() throws ParseException {
+            char op;
+            switch (tokenizer.type()) {
+                case PLUS: op = '+'; break;
+                case MINUS: op = '-'; break;
+                case STAR: op = '*'; break;
+                case SLASH: op = '/'; break;
+                default: op = '^'; break;
             }
-            return previous();
+            advance();
+            return op;
         }
 
-        private boolean isAtEnd() {
-            return peek().type == TokenType.EOF;
+        private void advance() throws ParseException {
+            if (tokenizer.type() != TokenType.EOF) {
+                next();
+            }
         }
 
-        private Token peek() {
-            return tokens.get(current);
+        private void next() throws ParseException {
+            if (!timed) {
+                tokenizer.next();
+                return;
+            }
+            long started = System.nanoTime();
+            tokenizer.next();
+            tokenizeNanos += System.nanoTime() - started;
         }
 
-        private Token previous() {
-            return tokens.get(current - 1);
+        private static final class FunctionCall {
+            final String original;
+            final String canonical;
+            final int firstOperand;
+
+            FunctionCall(String original, String canonical, int firstOperand) {
+                this.original = original;
+                this.canonical = canonical;
+                this.firstOperand = firstOperand;
+            }
         }
     }
 
-    private interface Node {
+    private interface Evaluator {
         double evaluate(EvaluationContext context);
+    }
+
+    private interface Node extends Evaluator {
         void collectVariables(Set<String> target);
     }
 
@@ -340,17 +1095,29 @@ public class Main {
 
     private static final class VariableNode implements Node {
         private final String name;
+        private final VariableLayout layout;
+        private final int slot;
 
-        VariableNode(String name) {
+        VariableNode(String name, VariableLayout layout) {
             this.name = name;
+            this.layout = layout;
+            this.slot = layout.slotOf(name);
         }
 
         public String getName() {
             return name;
         }
 
+        int getSlot() {
+            return slot;
+        }
+
         @Override
         public double evaluate(EvaluationContext context) {
+            if (context.getLayout() == layout) {
+                return context.getSlot(slot);
+            }
+            // контекст собран под другую раскладку — ищем по имени
             return context.getVariable(name);
         }
 
@@ -360,28 +1127,40 @@ public class Main {
         }
     }
 
-    private static final class UnaryMinusNode implements Node {
-        private final Node inner;
-
-        UnaryMinusNode(Node inner) {
-            this.inner = inner;
-        }
+    // составной узел вычисляется не рекурсией по дереву, а циклом TreeEvaluator по узлам в обратном порядке;
+    // план обхода строится при первом вычислении и остаётся при узле
+    private abstract static class CompositeNode implements Node {
+        private TreeEvaluator tree;
 
         @Override
-        public double evaluate(EvaluationContext context) {
-            return -inner.evaluate(context);
+        public final double evaluate(EvaluationContext context) {
+            TreeEvaluator walker = tree;
+            if (walker == null) {
+                // гонка безвредна: план неизменяем, а его поля final
+                walker = new TreeEvaluator(this);
+                tree = walker;
+            }
+            return walker.evaluate(context);
         }
 
         @Override
         public void collectVariables(Set<String> target) {
-            inner.collectVariables(target);
+            Nodes.collectVariables(this, target);
         }
     }
 
-    private static final class BinaryNode implements Node {
-        private final String op;
-        private final Node left;
-        private final Node right;
+    private static final class UnaryMinusNode extends CompositeNode {
+        private final Node inner;
+
+        UnaryMinusNode(Node inner) {
+            this.inner = inner;
+        }
+    }
+
+    private static final class BinaryNode extends CompositeNode {
+        private final String op;
+        private final Node left;
+        private final Node right;
 
         BinaryNode(String op, Node left, Node right) {
             this.op = op;
@@ -389,102 +1168,114 @@ public class Main {
             this.right = right;
         }
 
-        @Override
-        public double evaluate(EvaluationContext context) {
-            double a = left.evaluate(context);
-            double b = right.evaluate(context);
+        // операнды уже вычислены обходом дерева
+        double apply(EvaluationContext context, double a, double b) {
+            if (context.isQuiet() && Math.abs(b) < 1e-12 && "/".equals(op)) {
+                return context.fail(ErrorKind.DIVISION_BY_ZERO, this);
+            }
+            return apply(a, b);
+        }
+
+        double apply(double a, double b) {
             switch (op) {
                 case "+": return a + b;
                 case "-": return a - b;
                 case "*": return a * b;
                 case "/":
                     if (Math.abs(b) < 1e-12) {
-                        throw new EvaluationException("Деление на ноль");
+                        throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
                     }
                     return a / b;
                 case "^": return Math.pow(a, b);
                 default:
-                    throw new EvaluationException("Неизвестная операция '" + op + "'");
+                    throw new EvaluationException(ErrorKind.UNSUPPORTED, "Неизвестная операция '" + op + "'");
             }
         }
-
-        @Override
-        public void collectVariables(Set<String> target) {
-            left.collectVariables(target);
-            right.collectVariables(target);
-        }
     }
 
-    private static final class FunctionNode implements Node {
+    private static final class FunctionNode extends CompositeNode {
         private final String originalName;
         private final String canonicalName;
+        private final MathFunction function;
         private final List<Node> arguments;
 
-        FunctionNode(String originalName, String canonicalName, List<Node> arguments) {
+        FunctionNode(String originalName, MathFunction function, List<Node> arguments) {
+            this(originalName, function.getName(), function, arguments);
+            if (arguments.size() != function.getArity()) {
+                throw new IllegalArgumentException("Функция '" + originalName + "' ожидает " + function.getArity()
+                        + " аргумент(а), а получено " + arguments.size());
+            }
+        }
+
+        private FunctionNode(String originalName, String canonicalName, MathFunction function, List<Node> arguments) {
             this.originalName = originalName;
             this.canonicalName = canonicalName;
+            this.function = function;
             this.arguments = arguments;
         }
 
-        @Override
-        public double evaluate(EvaluationContext context) {
-            if ("diff".equals(canonicalName)) {
-                return evaluateDerivative(context);
+        // diff — не функция реестра: выражение и переменная разбираются особо
+        static FunctionNode derivative(String originalName, List<Node> arguments) {
+            return new FunctionNode(originalName, "diff", null, arguments);
+        }
+
+        FunctionNode withArguments(List<Node> replacement) {
+            return new FunctionNode(originalName, canonicalName, function, replacement);
+        }
+
+        // аргументы уже вычислены обходом дерева: values[arguments[i]] — значение i-го вычисляемого аргумента.
+        // В режиме без исключений ошибка функции или diff остаётся в контексте
+        double apply(EvaluationContext context, double[] values, int[] arguments) {
+            if (!context.isQuiet()) {
+                return applyChecked(context, values, arguments);
             }
-            double[] values = new double[arguments.size()];
-            for (int i = 0; i < arguments.size(); i++) {
-                values[i] = arguments.get(i).evaluate(context);
+            try {
+                return applyChecked(context, values, arguments);
+            } catch (EvaluationException ex) {
+                return context.fail(ex, this);
             }
-            switch (canonicalName) {
-                case "sin":
-                    requireArgs(1, values.length);
-                    return Math.sin(values[0]);
-                case "cos":
-                    requireArgs(1, values.length);
-                    return Math.cos(values[0]);
-                case "tan":
-                    requireArgs(1, values.length);
-                    return Math.tan(values[0]);
-                case "ln":
-                    requireArgs(1, values.length);
-                    return Math.log(values[0]);
-                case "log10":
-                    requireArgs(1, values.length);
-                    return Math.log10(values[0]);
-                case "sqrt":
-                    requireArgs(1, values.length);
-                    if (values[0] < 0) {
-                        throw new EvaluationException("sqrt: отрицательный аргумент");
+        }
+
+        private double applyChecked(EvaluationContext context, double[] values, int[] arguments) {
+            if (function == null) {
+                return evaluateDerivative(context, values, arguments);
+            }
+            switch (arguments.length) {
+                case 1:
+                    return function.applyAsDouble(values[arguments[0]]);
+                case 2:
+                    return function.applyAsDouble(values[arguments[0]], values[arguments[1]]);
+                default: {
+                    double[] args = new double[arguments.length];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = values[arguments[i]];
                     }
-                    return Math.sqrt(values[0]);
-                case "abs":
-                    requireArgs(1, values.length);
-                    return Math.abs(values[0]);
-                case "exp":
-                    requireArgs(1, values.length);
-                    return Math.exp(values[0]);
-                case "pow":
-                    requireArgs(2, values.length);
-                    return Math.pow(values[0], values[1]);
-                default:
-                    throw new EvaluationException("Функция '" + originalName + "' пока не реализована");
+                    return function.applyAsDouble(args);
+                }
             }
         }
 
-        private double evaluateDerivative(EvaluationContext context) {
-            if (arguments.size() < 3 || arguments.size() > 4) {
-                throw new EvaluationException("diff ожидает 3 или 4 аргумента");
+        // значения аргументов уже вычислены; для diff не подходит
+        double apply(double[] values) {
+            return function.applyAsDouble(values);
+        }
+
+        // вычисляемые аргументы diff — точка и шаг; само выражение считается своим планом при сдвинутой переменной
+        private double evaluateDerivative(EvaluationContext context, double[] values, int[] arguments) {
+            if (this.arguments.size() < 3 || this.arguments.size() > 4) {
+                throw new EvaluationException(ErrorKind.UNSUPPORTED, "diff ожидает 3 или 4 аргумента");
             }
-            Node expressionNode = arguments.get(0);
-            Node variableNode = arguments.get(1);
+            Node expressionNode = this.arguments.get(0);
+            Node variableNode = this.arguments.get(1);
             if (!(variableNode instanceof VariableNode)) {
-                throw new EvaluationException("Во втором аргументе diff нужно указать имя переменной");
+                throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                        "Во втором аргументе diff нужно указать имя переменной");
             }
             String variableName = ((VariableNode) variableNode).getName();
-            double point = arguments.get(2).evaluate(context);
+            double point = values[arguments[0]];
             double step;
-            if (arguments.size() == 4) {
-                step = Math.abs(arguments.get(3).evaluate(context));
+            if (arguments.length == 2) {
+                step = Math.abs(values[arguments[1]]);
                 if (step == 0.0) {
                     step = 1e-5;
                 }
@@ -492,6 +1283,7 @@ public class Main {
                 step = 1e-5 * Math.max(1.0, Math.abs(point));
             }
 
+            long started = Metrics.start();
             VariableSnapshot snapshot = new VariableSnapshot(context, variableName);
             try {
                 snapshot.set(point + step);
@@ -501,103 +1293,8444 @@ public class Main {
                 return (fPlus - fMinus) / (2.0 * step);
             } finally {
                 snapshot.restore();
+                Metrics.record(Metrics.DIFF, started);
+            }
+        }
+    }
+
+    // solve(f, x, a, b) — корень f на [a, b], minimize(f, x, a, b) — точка минимума f на [a, b];
+    // переменная x связана внутри f, как в diff. Сама f и её производные заранее переведены в байт-код,
+    // поэтому шаги поиска идут по стеку контекста и ничего не выделяют
+    private static final class SolveNode extends CompositeNode {
+        static final String SOLVE = "solve";
+        static final String MINIMIZE = "minimize";
+
+        private static final int MAX_ITERATIONS = 2200;
+        private static final double GOLDEN = 0.5 * (3.0 - Math.sqrt(5.0));
+        private static final double SQRT_EPSILON = Math.sqrt(Math.ulp(1.0));
+
+        private final String originalName;
+        private final String kind;
+        private final Node body;
+        private final VariableNode variable;
+        private final Node lo;
+        private final Node hi;
+        private final Program function;
+        // f' и f'' по связанной переменной; null, если производную не удалось построить
+        private final Program slope;
+        private final Program curvature;
+        private final int maxStack;
+
+        SolveNode(String originalName, String kind, Node body, VariableNode variable, Node lo, Node hi) {
+            this.originalName = originalName;
+            this.kind = kind;
+            this.body = body;
+            this.variable = variable;
+            this.lo = lo;
+            this.hi = hi;
+            this.function = new ProgramCompiler(variable.layout).compile(body);
+            Node first = new Differentiator(variable.name).derive(body);
+            Node second = null;
+            if (first != null && MINIMIZE.equals(kind)) {
+                first = Optimizer.simplify(first);
+                second = new Differentiator(variable.name).derive(first);
             }
+            this.slope = first == null ? null : new ProgramCompiler(variable.layout).compile(Optimizer.simplify(first));
+            this.curvature = second == null ? null : new ProgramCompiler(variable.layout).compile(Optimizer.simplify(second));
+            int stack = function.maxStack;
+            stack = Math.max(stack, slope == null ? 0 : slope.maxStack);
+            this.maxStack = Math.max(stack, curvature == null ? 0 : curvature.maxStack);
         }
 
-        private void requireArgs(int expected, int actual) {
-            if (expected != actual) {
-                throw new EvaluationException(
-                        "Функция '" + originalName + "' ожидает " + expected + " аргумент(а), а получено " + actual
-                );
+        SolveNode withChildren(Node body, Node lo, Node hi) {
+            if (body == this.body && lo == this.lo && hi == this.hi) {
+                return this;
             }
+            return new SolveNode(originalName, kind, body, variable, lo, hi);
         }
 
-        @Override
-        public void collectVariables(Set<String> target) {
-            if ("diff".equals(canonicalName)) {
-                if (!arguments.isEmpty()) {
-                    arguments.get(0).collectVariables(target);
+        boolean isMinimize() {
+            return MINIMIZE.equals(kind);
+        }
+
+        // границы уже вычислены обходом дерева
+        double apply(EvaluationContext context, double a, double b) {
+            if (!context.isQuiet()) {
+                return solve(context, context.stack(maxStack), 0, context.sharedValues(0), a, b);
+            }
+            try {
+                return solve(context, context.stack(maxStack), 0, context.sharedValues(0), a, b);
+            } catch (EvaluationException ex) {
+                return context.fail(ex, this);
+            }
+        }
+
+        // stack[base..] свободен; так же вызывается из Program поверх уже занятой части стека
+        double solve(EvaluationContext context, double[] stack, int base, double[] shared, double a, double b) {
+            if (Double.isNaN(a) || Double.isNaN(b)) {
+                throw new EvaluationException(ErrorKind.DOMAIN, originalName + ": границы отрезка не определены");
+            }
+            double left = Math.min(a, b);
+            double right = Math.max(a, b);
+            boolean bySlot = context.getLayout() == variable.layout;
+            if (!bySlot) {
+                VariableSnapshot snapshot = new VariableSnapshot(context, variable.name);
+                try {
+                    return search(context, stack, base, shared, false, left, right);
+                } finally {
+                    snapshot.restore();
+                }
+            }
+            boolean existed = context.isSlotDefined(variable.slot);
+            double previousValue = existed ? context.peekSlot(variable.slot) : 0.0;
+            try {
+                return search(context, stack, base, shared, true, left, right);
+            } finally {
+                if (existed) {
+                    context.setSlot(variable.slot, previousValue);
+                } else {
+                    context.clearSlot(variable.slot);
+                }
+            }
+        }
+
+        private double search(EvaluationContext context, double[] stack, int base, double[] shared, boolean bySlot,
+                              double left, double right) {
+            if (isMinimize()) {
+                return minimum(context, stack, base, shared, bySlot, left, right);
+            }
+            return root(function, slope, context, stack, base, shared, bySlot, left, right);
+        }
+
+        // Ньютон внутри отрезка со сменой знака; шаг, выходящий за отрезок или сходящийся медленнее деления
+        // пополам, заменяется делением. Без производной вместо неё берётся наклон секущей
+        private double root(Program g, Program dg, EvaluationContext context, double[] stack, int base,
+                            double[] shared, boolean bySlot, double left, double right) {
+            double gLeft = at(g, left, context, stack, base, shared, bySlot);
+            if (gLeft == 0.0) {
+                return left;
+            }
+            double gRight = at(g, right, context, stack, base, shared, bySlot);
+            if (gRight == 0.0) {
+                return right;
+            }
+            if (Double.isNaN(gLeft) || Double.isNaN(gRight) || (gLeft < 0) == (gRight < 0)) {
+                throw new EvaluationException(ErrorKind.NO_SOLUTION,
+                        originalName + ": на концах отрезка [" + left + ", " + right + "] функция одного знака");
+            }
+            // g(below) < 0 < g(above)
+            double below = gLeft < 0 ? left : right;
+            double above = gLeft < 0 ? right : left;
+            double previousX = left;
+            double previousG = gLeft;
+            double step = right - left;
+            double stepBefore = step;
+            double x = 0.5 * left + 0.5 * right;
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                double gx = at(g, x, context, stack, base, shared, bySlot);
+                if (gx == 0.0) {
+                    return x;
                 }
-                if (arguments.size() > 2) {
-                    arguments.get(2).collectVariables(target);
+                if (Double.isNaN(gx)) {
+                    throw new EvaluationException(ErrorKind.DOMAIN, originalName + ": функция не определена в точке " + x);
                 }
-                if (arguments.size() > 3) {
-                    arguments.get(3).collectVariables(target);
+                if (gx < 0) {
+                    below = x;
+                } else {
+                    above = x;
                 }
-                if (arguments.size() > 1 && arguments.get(1) instanceof VariableNode) {
-                    target.remove(((VariableNode) arguments.get(1)).getName());
+                double derivative = dg != null
+                        ? at(dg, x, context, stack, base, shared, bySlot)
+                        : (gx - previousG) / (x - previousX);
+                previousX = x;
+                previousG = gx;
+                double next = x - gx / derivative;
+                double low = Math.min(below, above);
+                double high = Math.max(below, above);
+                if (!(next > low && next < high && Math.abs(next - x) < 0.5 * Math.abs(stepBefore))) {
+                    next = 0.5 * low + 0.5 * high;
                 }
-                return;
+                stepBefore = step;
+                step = next - x;
+                if (next == x || Math.abs(step) <= 2.0 * Math.ulp(next) || high - low <= 2.0 * Math.ulp(next)) {
+                    return next;
+                }
+                x = next;
+            }
+            return x;
+        }
+
+        // метод Брента (золотое сечение с параболической интерполяцией) находит минимум с точностью ~sqrt(eps);
+        // затем корень f' уточняет его до полной точности. Концы отрезка сравниваются отдельно
+        private double minimum(EvaluationContext context, double[] stack, int base, double[] shared, boolean bySlot,
+                               double left, double right) {
+            double a = left;
+            double b = right;
+            double x = a + GOLDEN * (b - a);
+            double w = x;
+            double v = x;
+            double fx = at(function, x, context, stack, base, shared, bySlot);
+            double fw = fx;
+            double fv = fx;
+            double d = 0.0;
+            double e = 0.0;
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                double middle = 0.5 * (a + b);
+                double tolerance = SQRT_EPSILON * Math.abs(x) + 1e-12;
+                double twice = 2.0 * tolerance;
+                if (Math.abs(x - middle) <= twice - 0.5 * (b - a)) {
+                    break;
+                }
+                boolean golden = true;
+                if (Math.abs(e) > tolerance) {
+                    double r = (x - w) * (fx - fv);
+                    double q = (x - v) * (fx - fw);
+                    double p = (x - v) * q - (x - w) * r;
+                    q = 2.0 * (q - r);
+                    if (q > 0.0) {
+                        p = -p;
+                    } else {
+                        q = -q;
+                    }
+                    double previousE = e;
+                    e = d;
+                    if (Math.abs(p) < Math.abs(0.5 * q * previousE) && p > q * (a - x) && p < q * (b - x)) {
+                        d = p / q;
+                        double u = x + d;
+                        if (u - a < twice || b - u < twice) {
+                            d = x < middle ? tolerance : -tolerance;
+                        }
+                        golden = false;
+                    }
+                }
+                if (golden) {
+                    e = (x < middle ? b : a) - x;
+                    d = GOLDEN * e;
+                }
+                double u = Math.abs(d) >= tolerance ? x + d : (d > 0 ? x + tolerance : x - tolerance);
+                double fu = at(function, u, context, stack, base, shared, bySlot);
+                if (fu <= fx) {
+                    if (u < x) {
+                        b = x;
+                    } else {
+                        a = x;
+                    }
+                    v = w;
+                    fv = fw;
+                    w = x;
+                    fw = fx;
+                    x = u;
+                    fx = fu;
+                } else {
+                    if (u < x) {
+                        a = u;
+                    } else {
+                        b = u;
+                    }
+                    if (fu <= fw || w == x) {
+                        v = w;
+                        fv = fw;
+                        w = u;
+                        fw = fu;
+                    } else if (fu <= fv || v == x || v == w) {
+                        v = u;
+                        fv = fu;
+                    }
+                }
+            }
+            if (slope != null) {
+                x = refine(x, context, stack, base, shared, bySlot, left, right);
+                fx = at(function, x, context, stack, base, shared, bySlot);
+            }
+            if (Double.isNaN(fx)) {
+                throw new EvaluationException(ErrorKind.DOMAIN, originalName + ": функция не определена на отрезке");
+            }
+            // минимум может лежать на границе, где производная не обязана обращаться в ноль
+            double fLeft = at(function, left, context, stack, base, shared, bySlot);
+            double fRight = at(function, right, context, stack, base, shared, bySlot);
+            if (fLeft < fx && !(fRight < fLeft)) {
+                return left;
             }
-            for (Node arg : arguments) {
-                arg.collectVariables(target);
+            return fRight < fx ? right : x;
+        }
+
+        // ищет рядом с x смену знака f' с минуса на плюс и находит там корень f'
+        private double refine(double x, EvaluationContext context, double[] stack, int base, double[] shared,
+                              boolean bySlot, double left, double right) {
+            double radius = 16.0 * (SQRT_EPSILON * Math.abs(x) + 1e-12);
+            for (int attempt = 0; attempt < 3; attempt++, radius *= 16.0) {
+                double low = Math.max(left, x - radius);
+                double high = Math.min(right, x + radius);
+                double gLow = at(slope, low, context, stack, base, shared, bySlot);
+                double gHigh = at(slope, high, context, stack, base, shared, bySlot);
+                if (gLow <= 0.0 && gHigh >= 0.0) {
+                    return root(slope, curvature, context, stack, base, shared, bySlot, low, high);
+                }
+            }
+            return x;
+        }
+
+        private double at(Program program, double x, EvaluationContext context, double[] stack, int base,
+                          double[] shared, boolean bySlot) {
+            if (bySlot) {
+                context.setSlot(variable.slot, x);
+            } else {
+                context.setVariable(variable.name, x);
             }
+            return program.run(context, stack, base, shared);
         }
     }
 
-    private static final class EvaluationContext {
-        private final Map<String, Double> vars = new HashMap<>();
+    // функция калькулятора: фиксированная арность, реализация над примитивами и, если есть, правила производной
+    private static final class MathFunction {
+        interface Implementation {
+            double applyAsDouble(double[] args);
+        }
 
-        void setVariable(String name, double value) {
-            vars.put(name, value);
+        // производная всего вызова; derivatives — уже найденные производные аргументов
+        interface Derivative {
+            Node derive(List<Node> args, List<Node> derivatives, Node call);
         }
 
-        double getVariable(String name) {
-            Double value = vars.get(name);
-            if (value == null) {
-                throw new EvaluationException("Переменная '" + name + "' не определена");
+        // частная производная по одному аргументу в виде выражения
+        interface Partial {
+            Node derive(List<Node> args, Node call);
+        }
+
+        // та же частная производная в точке; value — значение самой функции
+        interface Slope {
+            double at(double[] args, double value);
+        }
+
+        private final String name;
+        private final int arity;
+        private final boolean pure;
+        private final boolean builtin;
+        private final int opcode;
+        private final String jitOwner;
+        private final String jitMethod;
+        private final DoubleUnaryOperator unary;
+        private final DoubleBinaryOperator binary;
+        private final Implementation general;
+        private final Derivative derivative;
+        private final Slope[] slopes;
+
+        private MathFunction(String name, int arity, boolean pure, boolean builtin, int opcode, String jitOwner,
+                             String jitMethod, DoubleUnaryOperator unary, DoubleBinaryOperator binary,
+                             Implementation general, Derivative derivative, Slope[] slopes) {
+            this.name = name;
+            this.arity = arity;
+            this.pure = pure;
+            this.builtin = builtin;
+            this.opcode = opcode;
+            this.jitOwner = jitOwner;
+            this.jitMethod = jitMethod;
+            this.unary = unary;
+            this.binary = binary;
+            this.general = general;
+            this.derivative = derivative;
+            this.slopes = slopes;
+        }
+
+        static MathFunction unary(String name, DoubleUnaryOperator implementation) {
+            return new MathFunction(name.toLowerCase(Locale.ROOT), 1, true, false, Program.CALL, null, null,
+                    implementation, null, null, null, null);
+        }
+
+        static MathFunction binary(String name, DoubleBinaryOperator implementation) {
+            return new MathFunction(name.toLowerCase(Locale.ROOT), 2, true, false, Program.CALL, null, null,
+                    null, implementation, null, null, null);
+        }
+
+        static MathFunction of(String name, int arity, Implementation implementation) {
+            if (arity < 0) {
+                throw new IllegalArgumentException("Арность не может быть отрицательной");
             }
-            return value;
+            return new MathFunction(name.toLowerCase(Locale.ROOT), arity, true, false, Program.CALL, null, null,
+                    null, null, implementation, null, null);
         }
 
-        boolean hasVariable(String name) {
-            return vars.containsKey(name);
+        // slopes нужны градиенту и передаются по одному на аргумент; без них градиент по функции не считается
+        MathFunction withDerivative(Derivative rule, Slope... partialSlopes) {
+            if (partialSlopes.length != 0 && partialSlopes.length != arity) {
+                throw new IllegalArgumentException("Нужно по одной частной производной на аргумент");
+            }
+            return new MathFunction(name, arity, pure, builtin, opcode, jitOwner, jitMethod, unary, binary, general,
+                    rule, partialSlopes.length == 0 ? null : partialSlopes.clone());
         }
 
-        Double peekValue(String name) {
-            return vars.get(name);
+        // цепное правило: сумма частных производных, умноженных на производные аргументов
+        MathFunction withPartials(Partial[] partials, Slope... partialSlopes) {
+            if (partials.length != arity) {
+                throw new IllegalArgumentException("Нужно по одной частной производной на аргумент");
+            }
+            Partial[] rules = partials.clone();
+            return withDerivative((args, derivatives, call) -> {
+                Node result = Differentiator.ZERO;
+                for (int i = 0; i < rules.length; i++) {
+                    if (!Differentiator.isZero(derivatives.get(i))) {
+                        result = Differentiator.add(result,
+                                Differentiator.multiply(rules[i].derive(args, call), derivatives.get(i)));
+                    }
+                }
+                return result;
+            }, partialSlopes);
         }
 
-        void removeVariable(String name) {
-            vars.remove(name);
+        // значение может меняться между вызовами: не сворачивается в константу и не считается общим подвыражением
+        MathFunction impure() {
+            return new MathFunction(name, arity, false, builtin, opcode, jitOwner, jitMethod, unary, binary, general,
+                    derivative, slopes);
+        }
+
+        private MathFunction builtin(int programOpcode, String owner, String method) {
+            return new MathFunction(name, arity, pure, true, programOpcode, owner, method, unary, binary, general,
+                    derivative, slopes);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getArity() {
+            return arity;
+        }
+
+        boolean isPure() {
+            return pure;
+        }
+
+        boolean isBuiltin() {
+            return builtin;
+        }
+
+        boolean isDifferentiable() {
+            return derivative != null;
+        }
+
+        boolean hasSlopes() {
+            return slopes != null;
+        }
+
+        // собственный код операции стековой программы или Program.CALL
+        int getOpcode() {
+            return opcode;
+        }
+
+        // статический метод (double...)D, который JIT вызывает напрямую; null — функция в JIT не попадает
+        String getJitOwner() {
+            return jitOwner;
+        }
+
+        String getJitMethod() {
+            return jitMethod;
+        }
+
+        double applyAsDouble(double a) {
+            if (unary != null) {
+                return unary.applyAsDouble(a);
+            }
+            return general.applyAsDouble(new double[] {a});
+        }
+
+        double applyAsDouble(double a, double b) {
+            if (binary != null) {
+                return binary.applyAsDouble(a, b);
+            }
+            return general.applyAsDouble(new double[] {a, b});
+        }
+
+        double applyAsDouble(double[] args) {
+            if (unary != null) {
+                return unary.applyAsDouble(args[0]);
+            }
+            if (binary != null) {
+                return binary.applyAsDouble(args[0], args[1]);
+            }
+            return general.applyAsDouble(args);
+        }
+
+        Node derive(List<Node> args, List<Node> derivatives, Node call) {
+            return derivative.derive(args, derivatives, call);
+        }
+
+        double slope(int index, double[] args, double value) {
+            return slopes[index].at(args, value);
         }
     }
 
-    private static final class VariableSnapshot {
-        private final EvaluationContext context;
-        private final String name;
-        private final boolean existed;
-        private final double previousValue;
+    private static final class FunctionRegistry {
+        private static final String MATH = JitCompiler.MATH_NAME;
+        private static final double LN_10 = Math.log(10.0);
 
-        VariableSnapshot(EvaluationContext context, String name) {
-            this.context = context;
-            this.name = name;
-            this.existed = context.hasVariable(name);
-            this.previousValue = existed ? context.peekValue(name) : 0.0;
+        static final MathFunction SIN = MathFunction.unary("sin", Math::sin)
+                .withDerivative((args, d, call) -> Differentiator.multiply(Differentiator.call(FunctionRegistry.COS, args.get(0)), d.get(0)),
+                        (args, value) -> Math.cos(args[0]))
+                .builtin(Program.SIN, MATH, "sin");
+        static final MathFunction COS = MathFunction.unary("cos", Math::cos)
+                .withDerivative((args, d, call) -> Differentiator.negate(
+                                Differentiator.multiply(Differentiator.call(FunctionRegistry.SIN, args.get(0)), d.get(0))),
+                        (args, value) -> -Math.sin(args[0]))
+                .builtin(Program.COS, MATH, "cos");
+        static final MathFunction TAN = MathFunction.unary("tan", Math::tan)
+                .withDerivative((args, d, call) -> {
+                    Node cos = Differentiator.call(FunctionRegistry.COS, args.get(0));
+                    return Differentiator.divide(d.get(0), Differentiator.multiply(cos, cos));
+                }, (args, value) -> {
+                    double cos = Math.cos(args[0]);
+                    return 1.0 / (cos * cos);
+                })
+                .builtin(Program.TAN, MATH, "tan");
+        static final MathFunction LN = MathFunction.unary("ln", Math::log)
+                .withDerivative((args, d, call) -> Differentiator.divide(d.get(0), args.get(0)),
+                        (args, value) -> 1.0 / args[0])
+                .builtin(Program.LN, MATH, "log");
+        static final MathFunction LOG10 = MathFunction.unary("log10", Math::log10)
+                .withDerivative((args, d, call) -> Differentiator.divide(d.get(0),
+                                Differentiator.multiply(args.get(0), new NumberNode(LN_10))),
+                        (args, value) -> 1.0 / (args[0] * LN_10))
+                .builtin(Program.LOG10, MATH, "log10");
+        static final MathFunction SQRT = MathFunction.unary("sqrt", JitRuntime::sqrt)
+                .withDerivative((args, d, call) -> Differentiator.divide(d.get(0),
+                                Differentiator.multiply(new NumberNode(2.0), call)),
+                        (args, value) -> 1.0 / (2.0 * value))
+                .builtin(Program.SQRT, JitCompiler.RUNTIME_NAME, "sqrt");
+        static final MathFunction ABS = MathFunction.unary("abs", Math::abs)
+                .withDerivative((args, d, call) -> Differentiator.multiply(d.get(0),
+                                Differentiator.call(FunctionRegistry.SIGN, args.get(0))),
+                        (args, value) -> Math.signum(args[0]))
+                .builtin(Program.ABS, MATH, "abs");
+        static final MathFunction SIGN = MathFunction.unary("sign", Math::signum)
+                .withDerivative((args, d, call) -> Differentiator.ZERO, (args, value) -> 0.0)
+                .builtin(Program.SIGN, MATH, "signum");
+        static final MathFunction EXP = MathFunction.unary("exp", Math::exp)
+                .withDerivative((args, d, call) -> Differentiator.multiply(call, d.get(0)), (args, value) -> value)
+                .builtin(Program.EXP, MATH, "exp");
+        // логарифм основания нужен только там, где показатель действительно меняется (см. GradientEvaluator)
+        static final MathFunction POW = MathFunction.binary("pow", Math::pow)
+                .withDerivative((args, d, call) -> Differentiator.derivePower(args.get(0), args.get(1), d.get(0), d.get(1), call),
+                        (args, value) -> args[1] == 0.0 ? 0.0 : args[1] * Math.pow(args[0], args[1] - 1.0),
+                        (args, value) -> value * Math.log(args[0]))
+                .builtin(Program.POW, MATH, "pow");
+        // при равных аргументах производная min и max — среднее односторонних
+        static final MathFunction MIN = MathFunction.binary("min", Math::min)
+                .withPartials(new MathFunction.Partial[] {
+                        (args, call) -> FunctionRegistry.step(args.get(1), args.get(0)),
+                        (args, call) -> FunctionRegistry.step(args.get(0), args.get(1))},
+                        (args, value) -> args[0] < args[1] ? 1.0 : args[0] > args[1] ? 0.0 : 0.5,
+                        (args, value) -> args[1] < args[0] ? 1.0 : args[1] > args[0] ? 0.0 : 0.5)
+                .builtin(Program.CALL, MATH, "min");
+        static final MathFunction MAX = MathFunction.binary("max", Math::max)
+                .withPartials(new MathFunction.Partial[] {
+                        (args, call) -> FunctionRegistry.step(args.get(0), args.get(1)),
+                        (args, call) -> FunctionRegistry.step(args.get(1), args.get(0))},
+                        (args, value) -> args[0] > args[1] ? 1.0 : args[0] < args[1] ? 0.0 : 0.5,
+                        (args, value) -> args[1] > args[0] ? 1.0 : args[1] < args[0] ? 0.0 : 0.5)
+                .builtin(Program.CALL, MATH, "max");
+        static final MathFunction HYPOT = MathFunction.binary("hypot", Math::hypot)
+                .withPartials(new MathFunction.Partial[] {
+                        (args, call) -> Differentiator.divide(args.get(0), call),
+                        (args, call) -> Differentiator.divide(args.get(1), call)},
+                        (args, value) -> args[0] / value,
+                        (args, value) -> args[1] / value)
+                .builtin(Program.CALL, MATH, "hypot");
+        // atan2(y, x): сначала ордината, как в Math.atan2
+        static final MathFunction ATAN2 = MathFunction.binary("atan2", Math::atan2)
+                .withPartials(new MathFunction.Partial[] {
+                        (args, call) -> Differentiator.divide(args.get(1), FunctionRegistry.squares(args)),
+                        (args, call) -> Differentiator.negate(Differentiator.divide(args.get(0), FunctionRegistry.squares(args)))},
+                        (args, value) -> args[1] / (args[0] * args[0] + args[1] * args[1]),
+                        (args, value) -> -args[0] / (args[0] * args[0] + args[1] * args[1]))
+                .builtin(Program.CALL, MATH, "atan2");
+
+        private static final ConcurrentHashMap<String, MathFunction> FUNCTIONS = new ConcurrentHashMap<>();
+        // растёт с каждой регистрацией: ExpressionCache по нему узнаёт, что прежние разборы устарели
+        private static final AtomicLong GENERATION = new AtomicLong();
+        private static final Pattern DEFINITION = Pattern.compile(
+                "\\s*([A-Za-z_][A-Za-z0-9_$]*)\\s*\\(([^)]*)\\)\\s*=(.*)", Pattern.DOTALL);
+        private static final Pattern PARAMETER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+
+        static {
+            for (MathFunction function : Arrays.asList(SIN, COS, TAN, LN, LOG10, SQRT, ABS, SIGN, EXP, POW,
+                    MIN, MAX, HYPOT, ATAN2)) {
+                FUNCTIONS.put(function.getName(), function);
+            }
         }
 
-        void set(double value) {
-            context.setVariable(name, value);
+        private FunctionRegistry() {
         }
 
-        void restore() {
-            if (existed) {
-                context.setVariable(name, previousValue);
-            } else {
-                context.removeVariable(name);
+        // имя функции сопоставляется при разборе; уже разобранные выражения хранят ссылку на прежнюю функцию
+        static void register(MathFunction function) {
+            String name = function.getName();
+            boolean identifier = !name.isEmpty() && (Character.isLetter(name.charAt(0)) || name.charAt(0) == '_');
+            for (int i = 1; i < name.length() && identifier; i++) {
+                char c = name.charAt(i);
+                identifier = Character.isLetterOrDigit(c) || c == '_' || c == '$';
+            }
+            if (!identifier) {
+                throw new IllegalArgumentException("Недопустимое имя функции '" + name + "'");
+            }
+            if (isSpecialForm(name) || CONSTANTS.containsKey(name)) {
+                throw new IllegalArgumentException("Имя '" + name + "' зарезервировано");
+            }
+            FUNCTIONS.compute(name, (key, existing) -> {
+                if (existing != null && existing.isBuiltin()) {
+                    throw new IllegalArgumentException("Встроенную функцию '" + name + "' заменить нельзя");
+                }
+                return function;
+            });
+            GENERATION.incrementAndGet();
+        }
+
+        static long generation() {
+            return GENERATION.get();
+        }
+
+        // f(a, b) = выражение над a и b. Частные производные строятся символьно из тела и при разборе diff
+        // подставляются вместо параметров; если тело символьно не дифференцируется (например, само содержит
+        // diff с шагом), функция регистрируется без производной и diff от неё считается конечными разностями
+        static MathFunction define(String definition) throws ParseException {
+            Matcher matcher = DEFINITION.matcher(definition);
+            if (!matcher.matches()) {
+                throw new ParseException("Ожидалось определение вида f(x, y) = выражение: '" + definition.trim() + "'");
             }
+            String name = matcher.group(1);
+            List<String> parameters = new ArrayList<>();
+            VariableLayout layout = new VariableLayout();
+            String list = matcher.group(2).trim();
+            for (String part : list.isEmpty() ? new String[0] : list.split(",")) {
+                String parameter = part.trim();
+                if (!PARAMETER.matcher(parameter).matches() || CONSTANTS.containsKey(parameter.toLowerCase(Locale.ROOT))) {
+                    throw new ParseException("Недопустимый параметр '" + parameter + "' функции " + name);
+                }
+                if (parameters.contains(parameter)) {
+                    throw new ParseException("Параметр '" + parameter + "' функции " + name + " указан дважды");
+                }
+                parameters.add(parameter);
+                layout.slotOf(parameter);
+            }
+            Node body = new Parser(matcher.group(3), layout).parse();
+            Set<String> free = new TreeSet<>();
+            body.collectVariables(free);
+            free.removeAll(parameters);
+            if (!free.isEmpty()) {
+                throw new ParseException("В теле функции " + name + " неизвестная переменная '" + free.iterator().next() + "'");
+            }
+            boolean pure = true;
+            for (Node node : Nodes.postOrder(body, false)) {
+                if (node instanceof FunctionNode && ((FunctionNode) node).function != null) {
+                    pure &= ((FunctionNode) node).function.isPure();
+                }
+            }
+
+            Program program = new ProgramCompiler(layout).compile(new Optimizer().optimize(body));
+            MathFunction function = MathFunction.of(name, parameters.size(), args -> run(program, layout, args));
+            MathFunction.Partial[] partials = new MathFunction.Partial[parameters.size()];
+            MathFunction.Slope[] slopes = new MathFunction.Slope[parameters.size()];
+            for (int i = 0; i < parameters.size() && partials != null; i++) {
+                Node partial = new Differentiator(parameters.get(i)).derive(body);
+                if (partial == null) {
+                    partials = null;
+                } else {
+                    Program slope = new ProgramCompiler(layout).compile(new Optimizer().optimize(partial));
+                    partials[i] = (args, call) -> bind(partial, parameters, args);
+                    slopes[i] = (args, value) -> run(slope, layout, args);
+                }
+            }
+            if (partials != null) {
+                function = function.withPartials(partials, slopes);
+            }
+            if (!pure) {
+                function = function.impure();
+            }
+            try {
+                register(function);
+            } catch (IllegalArgumentException ex) {
+                throw new ParseException(ex.getMessage());
+            }
+            return function;
+        }
+
+        // контекст свой на каждый вызов: функцию могут звать одновременно из разных потоков
+        private static double run(Program program, VariableLayout layout, double[] args) {
+            EvaluationContext context = new EvaluationContext(layout);
+            for (int i = 0; i < args.length; i++) {
+                context.setSlot(i, args[i]);
+            }
+            return program.evaluate(context);
+        }
+
+        // параметры сперва переименовываются в имена, которых не бывает в формулах: иначе вызов f(b, a)
+        // при f(a, b) подставил бы аргумент в уже подставленный
+        private static Node bind(Node body, List<String> parameters, List<Node> args) {
+            VariableLayout placeholders = new VariableLayout();
+            Node result = body;
+            for (int i = 0; i < parameters.size(); i++) {
+                result = Differentiator.substitute(result, parameters.get(i), new VariableNode("#" + i, placeholders));
+            }
+            for (int i = 0; i < parameters.size(); i++) {
+                result = Differentiator.substitute(result, "#" + i, args.get(i));
+            }
+            return result;
+        }
+
+        static MathFunction find(String canonicalName) {
+            return FUNCTIONS.get(canonicalName);
+        }
+
+        // имена, которые парсер понимает как вызов, включая diff, solve и minimize
+        static boolean isReserved(String canonicalName) {
+            return isSpecialForm(canonicalName) || FUNCTIONS.containsKey(canonicalName);
+        }
+
+        // вызовы со связанной переменной: разбираются парсером особо и в реестре не живут
+        private static boolean isSpecialForm(String canonicalName) {
+            return "diff".equals(canonicalName) || SolveNode.SOLVE.equals(canonicalName)
+                    || SolveNode.MINIMIZE.equals(canonicalName);
+        }
+
+        // 1, если a > b, 0, если a < b, и 1/2 при равенстве
+        private static Node step(Node a, Node b) {
+            Node sign = Differentiator.call(SIGN, new BinaryNode("-", a, b));
+            return new BinaryNode("*", new NumberNode(0.5), new BinaryNode("+", Differentiator.ONE, sign));
+        }
+
+        private static Node squares(List<Node> args) {
+            Node y = args.get(0);
+            Node x = args.get(1);
+            return new BinaryNode("+", new BinaryNode("*", x, x), new BinaryNode("*", y, y));
         }
     }
 
-    private static final class ParseException extends Exception {
-        ParseException(String message) {
-            super(message);
+    private static final class SharedNode extends CompositeNode {
+        private final int index;
+        private final Node inner;
+
+        SharedNode(int index, Node inner) {
+            this.index = index;
+            this.inner = inner;
         }
     }
 
-    private static final class EvaluationException extends RuntimeException {
-        EvaluationException(String message) {
-            super(message);
+    // бывает только корнем: область общих значений открывается до вычисления всего, что под ней
+    private static final class SharedScopeNode extends CompositeNode {
+        private final int sharedCount;
+        private final Node inner;
+
+        SharedScopeNode(int sharedCount, Node inner) {
+            this.sharedCount = sharedCount;
+            this.inner = inner;
+        }
+    }
+
+    // обходы дерева без рекурсии: глубина выражения не ограничена стеком потока
+    private static final class Nodes {
+        private Nodes() {
+        }
+
+        // все прямые потомки, включая выражение и переменную diff, solve и minimize
+        static List<Node> children(Node node) {
+            if (node instanceof FunctionNode) {
+                return ((FunctionNode) node).arguments;
+            }
+            if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                return Arrays.asList(solve.body, solve.variable, solve.lo, solve.hi);
+            }
+            return evaluatedChildren(node);
+        }
+
+        // выражение внутри diff и solve вычисляется при других значениях переменной, поэтому в обход не входит
+        static List<Node> evaluatedChildren(Node node) {
+            if (node instanceof UnaryMinusNode) {
+                return Collections.singletonList(((UnaryMinusNode) node).inner);
+            }
+            if (node instanceof BinaryNode) {
+                return Arrays.asList(((BinaryNode) node).left, ((BinaryNode) node).right);
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                if ("diff".equals(function.canonicalName)) {
+                    return function.arguments.size() > 2
+                            ? function.arguments.subList(2, function.arguments.size())
+                            : Collections.<Node>emptyList();
+                }
+                return function.arguments;
+            }
+            if (node instanceof SharedNode) {
+                return Collections.singletonList(((SharedNode) node).inner);
+            }
+            if (node instanceof SharedScopeNode) {
+                return Collections.singletonList(((SharedScopeNode) node).inner);
+            }
+            if (node instanceof SolveNode) {
+                return Arrays.asList(((SolveNode) node).lo, ((SolveNode) node).hi);
+            }
+            return Collections.emptyList();
+        }
+
+        // каждый узел ровно один раз, потомки раньше родителя, слева направо
+        static List<Node> postOrder(Node root, boolean evaluatedOnly) {
+            return postOrder(root, evaluatedOnly, node -> false);
+        }
+
+        // то же без потомков, для которых known истинно (их результат уже посчитан); корень входит всегда
+        static List<Node> postOrder(Node root, boolean evaluatedOnly, Predicate<Node> known) {
+            List<Node> order = new ArrayList<>();
+            Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Node> path = new ArrayDeque<>();
+            Deque<Iterator<Node>> pending = new ArrayDeque<>();
+            seen.add(root);
+            path.push(root);
+            pending.push(childrenOf(root, evaluatedOnly).iterator());
+            while (!path.isEmpty()) {
+                Iterator<Node> next = pending.peek();
+                if (next.hasNext()) {
+                    Node child = next.next();
+                    if (!known.test(child) && seen.add(child)) {
+                        path.push(child);
+                        pending.push(childrenOf(child, evaluatedOnly).iterator());
+                    }
+                } else {
+                    pending.pop();
+                    order.add(path.pop());
+                }
+            }
+            return order;
+        }
+
+        static int depth(Node root) {
+            Map<Node, Integer> depths = new IdentityHashMap<>();
+            for (Node node : postOrder(root, false)) {
+                int depth = 0;
+                for (Node child : children(node)) {
+                    depth = Math.max(depth, depths.get(child));
+                }
+                depths.put(node, depth + 1);
+            }
+            return depths.get(root);
+        }
+
+        // переменная diff и solve связана только внутри выражения; рекурсия здесь лишь по их вложенности
+        static void collectVariables(Node root, Set<String> target) {
+            for (Node node : postOrder(root, true)) {
+                if (node instanceof VariableNode) {
+                    target.add(((VariableNode) node).name);
+                } else if (node instanceof FunctionNode && "diff".equals(((FunctionNode) node).canonicalName)) {
+                    List<Node> args = ((FunctionNode) node).arguments;
+                    if (args.isEmpty()) {
+                        continue;
+                    }
+                    Set<String> inner = new HashSet<>();
+                    collectVariables(args.get(0), inner);
+                    if (args.size() > 1 && args.get(1) instanceof VariableNode) {
+                        inner.remove(((VariableNode) args.get(1)).name);
+                    }
+                    target.addAll(inner);
+                } else if (node instanceof SolveNode) {
+                    Set<String> inner = new HashSet<>();
+                    collectVariables(((SolveNode) node).body, inner);
+                    inner.remove(((SolveNode) node).variable.name);
+                    target.addAll(inner);
+                }
+            }
+        }
+
+        private static List<Node> childrenOf(Node node, boolean evaluatedOnly) {
+            return evaluatedOnly ? evaluatedChildren(node) : children(node);
+        }
+    }
+
+    // обход дерева без рекурсии: узлы идут в обратном порядке из Nodes.postOrder, и значение каждого
+    // считается по уже готовым значениям потомков. Общий узел входит в порядок один раз, а выражение
+    // diff считается собственным планом, так что стек потока растёт только с вложенностью diff
+    private static final class TreeEvaluator implements Evaluator {
+        private final Node[] nodes;
+        private final int[][] children;
+        // -1, если корень не открывает область общих значений
+        private final int sharedCount;
+
+        TreeEvaluator(Node root) {
+            List<Node> order = Nodes.postOrder(root, true);
+            this.nodes = order.toArray(new Node[0]);
+            Map<Node, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                index.put(nodes[i], i);
+            }
+            this.children = new int[nodes.length][];
+            for (int i = 0; i < nodes.length; i++) {
+                List<Node> direct = Nodes.evaluatedChildren(nodes[i]);
+                children[i] = new int[direct.size()];
+                for (int c = 0; c < direct.size(); c++) {
+                    children[i][c] = index.get(direct.get(c));
+                }
+            }
+            this.sharedCount = root instanceof SharedScopeNode ? ((SharedScopeNode) root).sharedCount : -1;
+        }
+
+        @Override
+        public double evaluate(EvaluationContext context) {
+            double[] values = new double[nodes.length];
+            if (sharedCount >= 0) {
+                context.beginShared(sharedCount);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                values[i] = compute(i, values, context);
+            }
+            return values[nodes.length - 1];
+        }
+
+        private double compute(int i, double[] values, EvaluationContext context) {
+            Node node = nodes[i];
+            int[] direct = children[i];
+            if (node instanceof BinaryNode) {
+                return ((BinaryNode) node).apply(context, values[direct[0]], values[direct[1]]);
+            }
+            if (node instanceof UnaryMinusNode) {
+                return -values[direct[0]];
+            }
+            if (node instanceof FunctionNode) {
+                return ((FunctionNode) node).apply(context, values, direct);
+            }
+            if (node instanceof SharedNode) {
+                int shared = ((SharedNode) node).index;
+                if (context.hasShared(shared)) {
+                    return context.sharedValue(shared);
+                }
+                context.storeShared(shared, values[direct[0]]);
+                return values[direct[0]];
+            }
+            if (node instanceof SharedScopeNode) {
+                return values[direct[0]];
+            }
+            if (node instanceof SolveNode) {
+                return ((SolveNode) node).apply(context, values[direct[0]], values[direct[1]]);
+            }
+            return node.evaluate(context);
+        }
+    }
+
+    private static final class Optimizer {
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<Node, Integer> nodeKeys = new IdentityHashMap<>();
+        private final Map<Integer, Integer> occurrences = new HashMap<>();
+        private final Map<Integer, Node> rebuilt = new HashMap<>();
+        private int sharedCount = 0;
+        private int removedNodes = 0;
+
+        Node optimize(Node root) {
+            int before = countNodes(root);
+            Node simplified = simplify(root);
+            countOccurrences(simplified);
+            Node result = rebuild(simplified);
+            if (sharedCount > 0) {
+                result = new SharedScopeNode(sharedCount, result);
+            }
+            removedNodes = before - countNodes(result);
+            Metrics.optimized(removedNodes, sharedCount);
+            return result;
+        }
+
+        int getRemovedNodes() {
+            return removedNodes;
+        }
+
+        int getSharedCount() {
+            return sharedCount;
+        }
+
+        private static Node simplify(Node root) {
+            Map<Node, Node> simplified = new IdentityHashMap<>();
+            for (Node node : Nodes.postOrder(root, false)) {
+                simplified.put(node, simplifyNode(node, simplified));
+            }
+            return simplified.get(root);
+        }
+
+        // потомки уже упрощены и лежат в simplified
+        private static Node simplifyNode(Node node, Map<Node, Node> simplified) {
+            if (node instanceof UnaryMinusNode) {
+                Node inner = simplified.get(((UnaryMinusNode) node).inner);
+                if (inner instanceof NumberNode) {
+                    return new NumberNode(-((NumberNode) inner).value);
+                }
+                if (inner instanceof UnaryMinusNode) {
+                    return ((UnaryMinusNode) inner).inner;
+                }
+                return inner == ((UnaryMinusNode) node).inner ? node : new UnaryMinusNode(inner);
+            }
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                Node left = simplified.get(binary.left);
+                Node right = simplified.get(binary.right);
+                Node identity = applyIdentity(binary.op, left, right);
+                if (identity != null) {
+                    return identity;
+                }
+                Node result = left == binary.left && right == binary.right ? node : new BinaryNode(binary.op, left, right);
+                return left instanceof NumberNode && right instanceof NumberNode ? fold(result) : result;
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                boolean isDiff = "diff".equals(function.canonicalName);
+                List<Node> args = new ArrayList<>(function.arguments.size());
+                boolean changed = false;
+                boolean constant = true;
+                for (int i = 0; i < function.arguments.size(); i++) {
+                    Node arg = function.arguments.get(i);
+                    // второй аргумент diff — имя переменной, его не трогаем
+                    Node replacement = isDiff && i == 1 ? arg : simplified.get(arg);
+                    changed |= replacement != arg;
+                    constant &= replacement instanceof NumberNode;
+                    args.add(replacement);
+                }
+                Node result = changed ? function.withArguments(args) : node;
+                if (isDiff) {
+                    Set<String> free = new HashSet<>();
+                    Nodes.collectVariables(result, free);
+                    constant = free.isEmpty();
+                } else {
+                    constant &= function.function.isPure();
+                }
+                return constant ? fold(result) : result;
+            }
+            if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                Node result = solve.withChildren(simplified.get(solve.body), simplified.get(solve.lo), simplified.get(solve.hi));
+                Set<String> free = new HashSet<>();
+                Nodes.collectVariables(result, free);
+                return free.isEmpty() ? fold(result) : result;
+            }
+            return node;
+        }
+
+        private static Node applyIdentity(String op, Node left, Node right) {
+            switch (op) {
+                case "-":
+                    // x + 0 не упрощается: при x = -0.0 результат +0.0, а x - 0 сохраняет знак нуля
+                    return isConstant(right, 0.0) ? left : null;
+                case "*":
+                    if (isConstant(right, 1.0)) {
+                        return left;
+                    }
+                    return isConstant(left, 1.0) ? right : null;
+                case "/":
+                case "^":
+                    return isConstant(right, 1.0) ? left : null;
+                default:
+                    return null;
+            }
+        }
+
+        private static boolean isConstant(Node node, double value) {
+            return node instanceof NumberNode && ((NumberNode) node).value == value;
+        }
+
+        // через программу, а не обходом дерева: свёртка не должна зависеть от глубины выражения
+        private static Node fold(Node node) {
+            try {
+                VariableLayout layout = new VariableLayout();
+                Program program = new ProgramCompiler(layout).compile(node);
+                return new NumberNode(program.evaluate(new EvaluationContext(layout)));
+            } catch (EvaluationException ex) {
+                // ошибка должна возникнуть при вычислении, а не при оптимизации
+                return node;
+            }
+        }
+
+        private int keyOf(Node root) {
+            Integer cached = nodeKeys.get(root);
+            if (cached != null) {
+                return cached;
+            }
+            for (Node node : Nodes.postOrder(root, false)) {
+                if (!nodeKeys.containsKey(node)) {
+                    nodeKeys.put(node, newKey(node));
+                }
+            }
+            return nodeKeys.get(root);
+        }
+
+        private int newKey(Node node) {
+            StringBuilder key = new StringBuilder();
+            if (node instanceof NumberNode) {
+                key.append("N").append(Double.doubleToRawLongBits(((NumberNode) node).value));
+            } else if (node instanceof VariableNode) {
+                key.append("V").append(((VariableNode) node).name);
+            } else if (node instanceof UnaryMinusNode) {
+                key.append("U").append(nodeKeys.get(((UnaryMinusNode) node).inner));
+            } else if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                key.append("B").append(binary.op).append(nodeKeys.get(binary.left)).append(':').append(nodeKeys.get(binary.right));
+            } else if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                key.append("F").append(function.canonicalName);
+                if (function.function != null && !function.function.isPure()) {
+                    // каждый вызов такой функции — отдельное значение
+                    key.append('#').append(nodeKeys.size());
+                }
+                for (Node arg : function.arguments) {
+                    key.append(':').append(nodeKeys.get(arg));
+                }
+            } else if (node instanceof SolveNode) {
+                key.append("S").append(((SolveNode) node).kind);
+                for (Node child : Nodes.children(node)) {
+                    key.append(':').append(nodeKeys.get(child));
+                }
+            } else {
+                key.append("?").append(System.identityHashCode(node));
+            }
+            Integer id = keys.get(key.toString());
+            if (id == null) {
+                id = keys.size();
+                keys.put(key.toString(), id);
+            }
+            return id;
+        }
+
+        private void countOccurrences(Node root) {
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                int count = occurrences.merge(keyOf(node), 1, Integer::sum);
+                if (count > 1) {
+                    continue;
+                }
+                for (Node child : Nodes.evaluatedChildren(node)) {
+                    pending.push(child);
+                }
+            }
+        }
+
+        // индексы SharedNode раздаются в порядке обхода: потомки раньше родителя
+        private Node rebuild(Node root) {
+            for (Node node : Nodes.postOrder(root, true)) {
+                int key = keyOf(node);
+                if (!rebuilt.containsKey(key)) {
+                    rebuilt.put(key, rebuildNode(node, key));
+                }
+            }
+            return rebuilt.get(keyOf(root));
+        }
+
+        private Node rebuildNode(Node node, int key) {
+            Node result = node;
+            if (node instanceof UnaryMinusNode) {
+                Node inner = rebuilt.get(keyOf(((UnaryMinusNode) node).inner));
+                if (inner != ((UnaryMinusNode) node).inner) {
+                    result = new UnaryMinusNode(inner);
+                }
+            } else if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                Node left = rebuilt.get(keyOf(binary.left));
+                Node right = rebuilt.get(keyOf(binary.right));
+                if (left != binary.left || right != binary.right) {
+                    result = new BinaryNode(binary.op, left, right);
+                }
+            } else if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                int first = "diff".equals(function.canonicalName) ? 2 : 0;
+                List<Node> args = new ArrayList<>(function.arguments);
+                boolean changed = false;
+                for (int i = first; i < args.size(); i++) {
+                    Node arg = rebuilt.get(keyOf(args.get(i)));
+                    changed |= arg != args.get(i);
+                    args.set(i, arg);
+                }
+                if (changed) {
+                    result = function.withArguments(args);
+                }
+            } else if (node instanceof SolveNode) {
+                // выражение под solve вычисляется отдельной программой и общих частей с внешним не делит
+                SolveNode solve = (SolveNode) node;
+                result = solve.withChildren(solve.body, rebuilt.get(keyOf(solve.lo)), rebuilt.get(keyOf(solve.hi)));
+            }
+            boolean leaf = node instanceof NumberNode || node instanceof VariableNode;
+            if (!leaf && occurrences.getOrDefault(key, 0) > 1) {
+                result = new SharedNode(sharedCount++, result);
+            }
+            return result;
+        }
+
+        private static int countNodes(Node root) {
+            Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Node> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                    pending.push(Nodes.children(node).get(0));
+                    continue;
+                }
+                if (!seen.add(node)) {
+                    continue;
+                }
+                for (Node child : Nodes.children(node)) {
+                    pending.push(child);
+                }
+            }
+            return seen.size();
+        }
+    }
+
+    private static final class Differentiator {
+        static final NumberNode ZERO = new NumberNode(0.0);
+        static final NumberNode ONE = new NumberNode(1.0);
+
+        private final String variable;
+        private final Map<Node, Boolean> dependency = new IdentityHashMap<>();
+        private final Map<Node, Node> derivatives = new IdentityHashMap<>();
+
+        Differentiator(String variable) {
+            this.variable = variable;
+        }
+
+        // null — производную в замкнутом виде построить нельзя, остаются конечные разности.
+        // Потомки обходятся раньше родителя, поэтому вызовы derive внутри deriveUncached находят готовый
+        // результат в кэше и глубина стека не зависит от глубины выражения; так же устроены dependsOn и substitute
+        Node derive(Node node) {
+            if (!dependsOn(node)) {
+                return ZERO;
+            }
+            if (derivatives.containsKey(node)) {
+                return derivatives.get(node);
+            }
+            Predicate<Node> known = done -> !dependsOn(done) || derivatives.containsKey(done);
+            for (Node next : Nodes.postOrder(node, false, known)) {
+                derivatives.put(next, deriveUncached(next));
+            }
+            return derivatives.get(node);
+        }
+
+        private Node deriveUncached(Node node) {
+            if (node instanceof VariableNode) {
+                return ONE;
+            }
+            if (node instanceof UnaryMinusNode) {
+                Node inner = derive(((UnaryMinusNode) node).inner);
+                return inner == null ? null : negate(inner);
+            }
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                return deriveBinary(binary.op, binary.left, binary.right, node);
+            }
+            if (node instanceof FunctionNode) {
+                return deriveFunction((FunctionNode) node);
+            }
+            if (node instanceof SharedNode) {
+                return derive(((SharedNode) node).inner);
+            }
+            if (node instanceof SharedScopeNode) {
+                return derive(((SharedScopeNode) node).inner);
+            }
+            if (node instanceof SolveNode) {
+                return deriveRoot((SolveNode) node);
+            }
+            return null;
+        }
+
+        // корень r(p) уравнения f(r, p) = 0 от границ локально не зависит, а по теореме о неявной функции
+        // r' = -f_p / f_r в точке корня; для minimize остаются конечные разности
+        private Node deriveRoot(SolveNode solve) {
+            String bound = solve.variable.name;
+            if (solve.isMinimize()) {
+                return null;
+            }
+            if (variable.equals(bound)) {
+                return ZERO;
+            }
+            Node partial = derive(solve.body);
+            Node slope = new Differentiator(bound).derive(solve.body);
+            if (partial == null || slope == null) {
+                return null;
+            }
+            return substitute(negate(divide(partial, slope)), bound, solve);
+        }
+
+        private Node deriveBinary(String op, Node u, Node v, Node node) {
+            Node du = derive(u);
+            Node dv = derive(v);
+            if (du == null || dv == null) {
+                return null;
+            }
+            switch (op) {
+                case "+":
+                    return add(du, dv);
+                case "-":
+                    return subtract(du, dv);
+                case "*":
+                    return add(multiply(du, v), multiply(u, dv));
+                case "/":
+                    if (isZero(dv)) {
+                        return divide(du, v);
+                    }
+                    // (du - (u/v)*dv) / v, а не (du*v - u*dv) / v^2: защита от деления на ноль должна видеть
+                    // тот же знаменатель, что и исходное выражение, а не v^2, который исчезает уже при |v| < 1e-6
+                    return divide(subtract(du, multiply(node, dv)), v);
+                case "^":
+                    return derivePower(u, v, du, dv, node);
+                default:
+                    return null;
+            }
+        }
+
+        static Node derivePower(Node u, Node v, Node du, Node dv, Node power) {
+            if (isZero(dv)) {
+                Node exponent = v instanceof NumberNode
+                        ? new NumberNode(((NumberNode) v).value - 1.0)
+                        : new BinaryNode("-", v, ONE);
+                return multiply(multiply(v, new BinaryNode("^", u, exponent)), du);
+            }
+            Node logU = call(FunctionRegistry.LN, u);
+            if (isZero(du)) {
+                return multiply(multiply(power, logU), dv);
+            }
+            return multiply(power, add(multiply(dv, logU), divide(multiply(v, du), u)));
+        }
+
+        private Node deriveFunction(FunctionNode function) {
+            if (function.function == null || !function.function.isDifferentiable()) {
+                return null;
+            }
+            List<Node> derivatives = new ArrayList<>(function.arguments.size());
+            for (Node arg : function.arguments) {
+                Node derivative = derive(arg);
+                if (derivative == null) {
+                    return null;
+                }
+                derivatives.add(derivative);
+            }
+            return function.function.derive(function.arguments, derivatives, function);
+        }
+
+        private boolean dependsOn(Node node) {
+            Boolean cached = dependency.get(node);
+            if (cached != null) {
+                return cached;
+            }
+            for (Node next : Nodes.postOrder(node, false, dependency::containsKey)) {
+                dependency.put(next, dependsOnUncached(next));
+            }
+            return dependency.get(node);
+        }
+
+        private boolean dependsOnUncached(Node node) {
+            boolean result;
+            if (node instanceof VariableNode) {
+                result = variable.equals(((VariableNode) node).name);
+            } else if (node instanceof UnaryMinusNode) {
+                result = dependsOn(((UnaryMinusNode) node).inner);
+            } else if (node instanceof BinaryNode) {
+                result = dependsOn(((BinaryNode) node).left) || dependsOn(((BinaryNode) node).right);
+            } else if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                result = false;
+                for (int i = 0; i < function.arguments.size() && !result; i++) {
+                    if (i == 0 && bindsVariable(function)) {
+                        continue;
+                    }
+                    result = dependsOn(function.arguments.get(i));
+                }
+            } else if (node instanceof SharedNode) {
+                result = dependsOn(((SharedNode) node).inner);
+            } else if (node instanceof SharedScopeNode) {
+                result = dependsOn(((SharedScopeNode) node).inner);
+            } else if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                result = dependsOn(solve.lo) || dependsOn(solve.hi)
+                        || (!variable.equals(solve.variable.name) && dependsOn(solve.body));
+            } else {
+                result = false;
+            }
+            return result;
+        }
+
+        private boolean bindsVariable(FunctionNode function) {
+            return "diff".equals(function.canonicalName) && function.arguments.size() > 1
+                    && function.arguments.get(1) instanceof VariableNode
+                    && variable.equals(((VariableNode) function.arguments.get(1)).name);
+        }
+
+        static Node substitute(Node node, String variable, Node replacement) {
+            return new Differentiator(variable).substitute(node, replacement, new IdentityHashMap<>());
+        }
+
+        private Node substitute(Node node, Node replacement, Map<Node, Node> done) {
+            if (!dependsOn(node)) {
+                return node;
+            }
+            Node cached = done.get(node);
+            if (cached != null) {
+                return cached;
+            }
+            for (Node next : Nodes.postOrder(node, false, known -> !dependsOn(known) || done.containsKey(known))) {
+                done.put(next, substituteUncached(next, replacement, done));
+            }
+            return done.get(node);
+        }
+
+        private Node substituteUncached(Node node, Node replacement, Map<Node, Node> done) {
+            Node result = node;
+            if (node instanceof VariableNode) {
+                result = replacement;
+            } else if (node instanceof UnaryMinusNode) {
+                result = new UnaryMinusNode(substitute(((UnaryMinusNode) node).inner, replacement, done));
+            } else if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                result = new BinaryNode(binary.op,
+                        substitute(binary.left, replacement, done), substitute(binary.right, replacement, done));
+            } else if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                List<Node> args = new ArrayList<>(function.arguments.size());
+                for (int i = 0; i < function.arguments.size(); i++) {
+                    Node arg = function.arguments.get(i);
+                    boolean bound = (i == 0 && bindsVariable(function)) || (i == 1 && "diff".equals(function.canonicalName));
+                    args.add(bound ? arg : substitute(arg, replacement, done));
+                }
+                result = function.withArguments(args);
+            } else if (node instanceof SharedNode) {
+                result = substitute(((SharedNode) node).inner, replacement, done);
+            } else if (node instanceof SharedScopeNode) {
+                result = substitute(((SharedScopeNode) node).inner, replacement, done);
+            } else if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                Node body = variable.equals(solve.variable.name) ? solve.body : substitute(solve.body, replacement, done);
+                result = solve.withChildren(body, substitute(solve.lo, replacement, done), substitute(solve.hi, replacement, done));
+            }
+            return result;
+        }
+
+        static Node call(MathFunction function, Node argument) {
+            return new FunctionNode(function.getName(), function, Collections.singletonList(argument));
+        }
+
+        static boolean isZero(Node node) {
+            return node instanceof NumberNode && ((NumberNode) node).value == 0.0;
+        }
+
+        private static boolean isOne(Node node) {
+            return node instanceof NumberNode && ((NumberNode) node).value == 1.0;
+        }
+
+        static Node add(Node a, Node b) {
+            if (isZero(a)) {
+                return b;
+            }
+            return isZero(b) ? a : new BinaryNode("+", a, b);
+        }
+
+        static Node subtract(Node a, Node b) {
+            if (isZero(b)) {
+                return a;
+            }
+            return isZero(a) ? negate(b) : new BinaryNode("-", a, b);
+        }
+
+        static Node multiply(Node a, Node b) {
+            if (isZero(a) || isZero(b)) {
+                return ZERO;
+            }
+            if (isOne(a)) {
+                return b;
+            }
+            return isOne(b) ? a : new BinaryNode("*", a, b);
+        }
+
+        static Node divide(Node a, Node b) {
+            if (isZero(a)) {
+                return ZERO;
+            }
+            return isOne(b) ? a : new BinaryNode("/", a, b);
+        }
+
+        static Node negate(Node a) {
+            if (a instanceof NumberNode) {
+                return new NumberNode(-((NumberNode) a).value);
+            }
+            return a instanceof UnaryMinusNode ? ((UnaryMinusNode) a).inner : new UnaryMinusNode(a);
+        }
+    }
+
+    // значения и касательные хранятся по узлам в порядке обхода (потомки раньше родителя), так что
+    // вычисление идёт циклом без рекурсии; узел, встреченный несколько раз, считается один раз
+    private static final class GradientEvaluator {
+        private final Node[] nodes;
+        private final int[][] children;
+        private final List<String> variables;
+        private final double[] values;
+        private final double[][] tangents;
+        private final double[][] argumentValues;
+        private final double[] partials;
+
+        GradientEvaluator(Node root, VariableLayout layout) {
+            Set<String> names = new TreeSet<>();
+            root.collectVariables(names);
+            this.variables = Collections.unmodifiableList(new ArrayList<>(names));
+            List<Node> order = Nodes.postOrder(root, true);
+            this.nodes = order.toArray(new Node[0]);
+            Map<Node, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                index.put(nodes[i], i);
+            }
+            int n = variables.size();
+            this.children = new int[nodes.length][];
+            this.values = new double[nodes.length];
+            this.tangents = new double[nodes.length][n];
+            this.argumentValues = new double[nodes.length][];
+            int maxArity = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                List<Node> evaluated = Nodes.evaluatedChildren(nodes[i]);
+                children[i] = new int[evaluated.size()];
+                for (int c = 0; c < children[i].length; c++) {
+                    children[i][c] = index.get(evaluated.get(c));
+                }
+                if (nodes[i] instanceof FunctionNode) {
+                    int arity = ((FunctionNode) nodes[i]).arguments.size();
+                    argumentValues[i] = new double[arity];
+                    maxArity = Math.max(maxArity, arity);
+                } else if (nodes[i] instanceof NumberNode) {
+                    values[i] = ((NumberNode) nodes[i]).value;
+                } else if (nodes[i] instanceof VariableNode) {
+                    // касательная переменной постоянна: единица в её собственной позиции
+                    int position = variables.indexOf(((VariableNode) nodes[i]).name);
+                    if (position >= 0) {
+                        tangents[i][position] = 1.0;
+                    }
+                }
+            }
+            this.partials = new double[maxArity];
+        }
+
+        List<String> getVariables() {
+            return variables;
+        }
+
+        double evaluate(EvaluationContext context, double[] gradient) {
+            for (int i = 0; i < nodes.length; i++) {
+                values[i] = evaluate(i, context);
+            }
+            int root = nodes.length - 1;
+            System.arraycopy(tangents[root], 0, gradient, 0, variables.size());
+            return values[root];
+        }
+
+        private double evaluate(int i, EvaluationContext context) {
+            Node node = nodes[i];
+            double[] tangent = tangents[i];
+            int[] args = children[i];
+            if (node instanceof NumberNode) {
+                return values[i];
+            }
+            if (node instanceof VariableNode) {
+                return node.evaluate(context);
+            }
+            if (node instanceof UnaryMinusNode) {
+                double[] inner = tangents[args[0]];
+                for (int k = 0; k < tangent.length; k++) {
+                    tangent[k] = -inner[k];
+                }
+                return -values[args[0]];
+            }
+            if (node instanceof BinaryNode) {
+                System.arraycopy(tangents[args[0]], 0, tangent, 0, tangent.length);
+                return combine(((BinaryNode) node).op, values[args[0]], values[args[1]], tangent, tangents[args[1]]);
+            }
+            if (node instanceof FunctionNode) {
+                return evaluateFunction((FunctionNode) node, i);
+            }
+            if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                System.arraycopy(tangents[args[0]], 0, tangent, 0, tangent.length);
+                return values[args[0]];
+            }
+            throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                    "Градиент для узла " + node.getClass().getSimpleName() + " не поддерживается");
+        }
+
+        private double combine(String op, double a, double b, double[] ta, double[] tb) {
+            switch (op) {
+                case "+":
+                    for (int i = 0; i < ta.length; i++) {
+                        ta[i] += tb[i];
+                    }
+                    return a + b;
+                case "-":
+                    for (int i = 0; i < ta.length; i++) {
+                        ta[i] -= tb[i];
+                    }
+                    return a - b;
+                case "*":
+                    for (int i = 0; i < ta.length; i++) {
+                        ta[i] = ta[i] * b + a * tb[i];
+                    }
+                    return a * b;
+                case "/":
+                    if (Math.abs(b) < 1e-12) {
+                        throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                    }
+                    for (int i = 0; i < ta.length; i++) {
+                        ta[i] = (ta[i] * b - a * tb[i]) / (b * b);
+                    }
+                    return a / b;
+                case "^":
+                    return power(a, b, ta, tb);
+                default:
+                    throw new EvaluationException(ErrorKind.UNSUPPORTED, "Неизвестная операция '" + op + "'");
+            }
+        }
+
+        private static double power(double a, double b, double[] ta, double[] tb) {
+            double value = Math.pow(a, b);
+            double byBase = b == 0.0 ? 0.0 : b * Math.pow(a, b - 1.0);
+            double byExponent = value * Math.log(a);
+            for (int i = 0; i < ta.length; i++) {
+                // логарифм основания нужен только там, где показатель действительно меняется
+                ta[i] = byBase * ta[i] + (tb[i] == 0.0 ? 0.0 : byExponent * tb[i]);
+            }
+            return value;
+        }
+
+        private double evaluateFunction(FunctionNode function, int node) {
+            if ("diff".equals(function.canonicalName)) {
+                throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                        "Градиент для diff с конечными разностями не поддерживается");
+            }
+            MathFunction f = function.function;
+            if (!f.hasSlopes()) {
+                throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                        "Градиент для функции '" + function.originalName + "' не поддерживается");
+            }
+            int[] args = children[node];
+            int n = args.length;
+            double[] values = argumentValues[node];
+            for (int i = 0; i < n; i++) {
+                values[i] = this.values[args[i]];
+            }
+            double value = f.applyAsDouble(values);
+            double[] tangent = tangents[node];
+            if (n == 0) {
+                Arrays.fill(tangent, 0.0);
+                return value;
+            }
+            for (int i = 0; i < n; i++) {
+                partials[i] = f.slope(i, values, value);
+            }
+            double[] first = tangents[args[0]];
+            for (int k = 0; k < tangent.length; k++) {
+                double sum = partials[0] * first[k];
+                for (int i = 1; i < n; i++) {
+                    double t = tangents[args[i]][k];
+                    // как и для '^': частная производная по неизменному аргументу не участвует, даже если она NaN
+                    sum += t == 0.0 ? 0.0 : partials[i] * t;
+                }
+                tangent[k] = sum;
+            }
+            return value;
+        }
+    }
+
+    // каждый узел помнит последнее значение; изменение переменной помечает только узлы, которые от неё зависят
+    private static final class IncrementalEvaluator {
+        private final VariableLayout layout;
+        private final EvaluationContext context;
+        private final Node[] nodes;
+        private final int[] rootIndices;
+        private final int[][] children;
+        private final int[][] dependents;
+        private final int[] alwaysDirty;
+        private final double[] values;
+        private final long[] dirty;
+        private final double[][] arguments;
+        private final int sharedCount;
+        private long evaluations = 0;
+        private long recomputed = 0;
+        private int lastRecomputed = 0;
+
+        IncrementalEvaluator(Node root, VariableLayout layout) {
+            this(Collections.singletonList(root), layout);
+        }
+
+        // несколько корней над одной сетью узлов: общие узлы хранятся и пересчитываются один раз
+        IncrementalEvaluator(List<Node> roots, VariableLayout layout) {
+            this.layout = layout;
+            this.context = new EvaluationContext(layout);
+            Map<Node, Integer> index = new IdentityHashMap<>();
+            List<Node> order = new ArrayList<>();
+            for (Node root : roots) {
+                for (Node node : Nodes.postOrder(root, true)) {
+                    if (!index.containsKey(node)) {
+                        index.put(node, order.size());
+                        order.add(node);
+                    }
+                }
+            }
+            this.nodes = order.toArray(new Node[0]);
+            this.rootIndices = new int[roots.size()];
+            for (int i = 0; i < rootIndices.length; i++) {
+                rootIndices[i] = index.get(roots.get(i));
+            }
+            this.children = new int[nodes.length][];
+            this.arguments = new double[nodes.length][];
+            List<BitSet> slotsOf = new ArrayList<>(nodes.length);
+            boolean[] impure = new boolean[nodes.length];
+            int impureCount = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                Node node = nodes[i];
+                BitSet slots = new BitSet();
+                impure[i] = node instanceof FunctionNode && ((FunctionNode) node).function != null
+                        && !((FunctionNode) node).function.isPure();
+                if (isOpaque(node)) {
+                    // diff и solve пересчитываются целиком при смене любой своей свободной переменной
+                    children[i] = new int[0];
+                    Set<String> names = new HashSet<>();
+                    node.collectVariables(names);
+                    for (String name : names) {
+                        slots.set(layout.slotOf(name));
+                    }
+                } else {
+                    List<Node> direct = Nodes.evaluatedChildren(node);
+                    children[i] = new int[direct.size()];
+                    for (int c = 0; c < direct.size(); c++) {
+                        children[i][c] = index.get(direct.get(c));
+                        slots.or(slotsOf.get(children[i][c]));
+                        impure[i] |= impure[children[i][c]];
+                    }
+                    if (node instanceof VariableNode) {
+                        slots.set(slotOf((VariableNode) node));
+                    } else if (node instanceof FunctionNode) {
+                        arguments[i] = new double[direct.size()];
+                    }
+                }
+                slotsOf.add(slots);
+                impureCount += impure[i] ? 1 : 0;
+            }
+            // узлы, зависящие от нечистых функций, пересчитываются на каждом шаге
+            this.alwaysDirty = new int[impureCount];
+            for (int i = 0, next = 0; i < nodes.length; i++) {
+                if (impure[i]) {
+                    alwaysDirty[next++] = i;
+                }
+            }
+            int slotCount = layout.size();
+            List<List<Integer>> bySlot = new ArrayList<>(slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                bySlot.add(new ArrayList<>());
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                BitSet slots = slotsOf.get(i);
+                for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                    bySlot.get(slot).add(i);
+                }
+            }
+            this.dependents = new int[slotCount][];
+            for (int slot = 0; slot < slotCount; slot++) {
+                List<Integer> list = bySlot.get(slot);
+                dependents[slot] = new int[list.size()];
+                for (int i = 0; i < list.size(); i++) {
+                    dependents[slot][i] = list.get(i);
+                }
+            }
+            this.values = new double[nodes.length];
+            this.dirty = new long[(nodes.length + 63) >>> 6];
+            for (int i = 0; i < nodes.length; i++) {
+                dirty[i >>> 6] |= 1L << (i & 63);
+            }
+            int shared = 0;
+            for (Node root : roots) {
+                if (root instanceof SharedScopeNode) {
+                    shared = Math.max(shared, ((SharedScopeNode) root).sharedCount);
+                }
+            }
+            this.sharedCount = shared;
+        }
+
+        void setVariable(String name, double value) {
+            int slot = layout.find(name);
+            if (slot < 0) {
+                // переменная в выражение не входит и ни на что не влияет
+                context.setVariable(name, value);
+                return;
+            }
+            setSlot(slot, value);
+        }
+
+        void setSlot(int slot, double value) {
+            if (context.isSlotDefined(slot)
+                    && Double.doubleToRawLongBits(context.peekSlot(slot)) == Double.doubleToRawLongBits(value)) {
+                return;
+            }
+            context.setSlot(slot, value);
+            if (slot < dependents.length) {
+                for (int node : dependents[slot]) {
+                    dirty[node >>> 6] |= 1L << (node & 63);
+                }
+            }
+        }
+
+        // узлы пересчитываются в порядке обхода, поэтому потомки всегда готовы раньше родителя;
+        // при ошибке непересчитанные узлы остаются помеченными до следующего вызова
+        double evaluate() {
+            update();
+            return values[rootIndices[0]];
+        }
+
+        // значения всех корней по порядку
+        void evaluate(double[] out) {
+            update();
+            for (int i = 0; i < rootIndices.length; i++) {
+                out[i] = values[rootIndices[i]];
+            }
+        }
+
+        private void update() {
+            evaluations++;
+            for (int node : alwaysDirty) {
+                dirty[node >>> 6] |= 1L << (node & 63);
+            }
+            int count = 0;
+            try {
+                for (int word = 0; word < dirty.length; word++) {
+                    while (dirty[word] != 0) {
+                        int i = (word << 6) + Long.numberOfTrailingZeros(dirty[word]);
+                        values[i] = compute(i);
+                        dirty[word] &= dirty[word] - 1;
+                        count++;
+                    }
+                }
+            } finally {
+                lastRecomputed = count;
+                recomputed += count;
+            }
+        }
+
+        int getNodeCount() {
+            return nodes.length;
+        }
+
+        int getLastRecomputed() {
+            return lastRecomputed;
+        }
+
+        int getLastReused() {
+            return nodes.length - lastRecomputed;
+        }
+
+        long getTotalRecomputed() {
+            return recomputed;
+        }
+
+        long getTotalReused() {
+            return evaluations * nodes.length - recomputed;
+        }
+
+        private double compute(int i) {
+            Node node = nodes[i];
+            int[] direct = children[i];
+            if (node instanceof NumberNode) {
+                return ((NumberNode) node).value;
+            }
+            if (node instanceof VariableNode) {
+                return context.getSlot(slotOf((VariableNode) node));
+            }
+            if (node instanceof UnaryMinusNode) {
+                return -values[direct[0]];
+            }
+            if (node instanceof BinaryNode) {
+                return ((BinaryNode) node).apply(values[direct[0]], values[direct[1]]);
+            }
+            if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                return values[direct[0]];
+            }
+            if (isOpaque(node)) {
+                // общие подвыражения в аргументах diff и solve читаются из контекста и должны считаться заново
+                context.beginShared(sharedCount);
+                return node.evaluate(context);
+            }
+            double[] args = arguments[i];
+            for (int c = 0; c < direct.length; c++) {
+                args[c] = values[direct[c]];
+            }
+            return ((FunctionNode) node).apply(args);
+        }
+
+        private int slotOf(VariableNode variable) {
+            return variable.layout == layout ? variable.slot : layout.slotOf(variable.name);
+        }
+
+        private static boolean isOpaque(Node node) {
+            return node instanceof SolveNode
+                    || (node instanceof FunctionNode && "diff".equals(((FunctionNode) node).canonicalName));
+        }
+    }
+
+    // интервальное вычисление: границы [lo, hi] для всех точек прямоугольника значений переменных;
+    // границы расширяются на ulp наружу, так что точное значение в любой точке всегда внутри
+    private static final class IntervalEvaluator {
+        // в прямоугольнике есть точки, где обычное вычисление бросит исключение или даст NaN
+        static final int MAY_FAIL = 1;
+        // определённых значений в прямоугольнике нет вовсе
+        static final int MUST_FAIL = 2;
+
+        private static final double TWO_PI = 2.0 * Math.PI;
+
+        private final VariableLayout layout;
+        private final Node[] nodes;
+        private final int[][] children;
+        private final int[] slots;
+        private final double[] lo;
+        private final double[] hi;
+        private final int[] status;
+
+        IntervalEvaluator(Node root, VariableLayout layout) {
+            this.layout = layout;
+            List<Node> order = Nodes.postOrder(root, true);
+            this.nodes = order.toArray(new Node[0]);
+            Map<Node, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                index.put(nodes[i], i);
+            }
+            this.children = new int[nodes.length][];
+            this.slots = new int[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                List<Node> direct = Nodes.evaluatedChildren(nodes[i]);
+                children[i] = new int[direct.size()];
+                for (int c = 0; c < direct.size(); c++) {
+                    children[i][c] = index.get(direct.get(c));
+                }
+                if (nodes[i] instanceof VariableNode) {
+                    VariableNode variable = (VariableNode) nodes[i];
+                    slots[i] = variable.layout == layout ? variable.slot : layout.slotOf(variable.name);
+                }
+            }
+            this.lo = new double[nodes.length];
+            this.hi = new double[nodes.length];
+            this.status = new int[nodes.length];
+        }
+
+        VariableLayout getLayout() {
+            return layout;
+        }
+
+        // границы переменных передаются по слотам раскладки
+        void evaluate(double[] boxLo, double[] boxHi) {
+            for (int i = 0; i < nodes.length; i++) {
+                compute(i, boxLo, boxHi);
+                if (Double.isNaN(lo[i])) {
+                    lo[i] = Double.NEGATIVE_INFINITY;
+                    status[i] |= MAY_FAIL;
+                }
+                if (Double.isNaN(hi[i])) {
+                    hi[i] = Double.POSITIVE_INFINITY;
+                    status[i] |= MAY_FAIL;
+                }
+            }
+        }
+
+        double getLo() {
+            return lo[nodes.length - 1];
+        }
+
+        double getHi() {
+            return hi[nodes.length - 1];
+        }
+
+        boolean mayFail() {
+            return status[nodes.length - 1] != 0;
+        }
+
+        boolean mustFail() {
+            return (status[nodes.length - 1] & MUST_FAIL) != 0;
+        }
+
+        private void compute(int i, double[] boxLo, double[] boxHi) {
+            Node node = nodes[i];
+            int[] direct = children[i];
+            int inherited = 0;
+            for (int child : direct) {
+                inherited |= status[child];
+            }
+            status[i] = inherited;
+            if (node instanceof NumberNode) {
+                lo[i] = ((NumberNode) node).value;
+                hi[i] = lo[i];
+            } else if (node instanceof VariableNode) {
+                int slot = slots[i];
+                if (slot >= boxLo.length || Double.isNaN(boxLo[slot]) || Double.isNaN(boxHi[slot])) {
+                    throw new EvaluationException(ErrorKind.UNDEFINED_VARIABLE,
+                            "Переменная '" + layout.nameOf(slot) + "' не определена");
+                }
+                lo[i] = boxLo[slot];
+                hi[i] = boxHi[slot];
+            } else if (node instanceof UnaryMinusNode) {
+                lo[i] = -hi[direct[0]];
+                hi[i] = -lo[direct[0]];
+            } else if (node instanceof BinaryNode) {
+                binary(i, ((BinaryNode) node).op, direct[0], direct[1]);
+            } else if (node instanceof FunctionNode) {
+                function(i, (FunctionNode) node, direct);
+            } else if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                lo[i] = lo[direct[0]];
+                hi[i] = hi[direct[0]];
+            } else if (node instanceof SolveNode) {
+                // найденная точка всегда лежит между границами отрезка; самой точки может и не быть
+                set(i, Math.min(lo[direct[0]], lo[direct[1]]), Math.max(hi[direct[0]], hi[direct[1]]));
+                status[i] |= MAY_FAIL;
+            } else {
+                whole(i, MAY_FAIL);
+            }
+        }
+
+        private void binary(int i, String op, int a, int b) {
+            switch (op) {
+                case "+":
+                    set(i, down(lo[a] + lo[b]), up(hi[a] + hi[b]));
+                    break;
+                case "-":
+                    set(i, down(lo[a] - hi[b]), up(hi[a] - lo[b]));
+                    break;
+                case "*":
+                    multiply(i, lo[a], hi[a], lo[b], hi[b]);
+                    break;
+                case "/":
+                    divide(i, a, b);
+                    break;
+                default:
+                    power(i, lo[a], hi[a], lo[b], hi[b]);
+                    break;
+            }
+        }
+
+        private void multiply(int i, double aLo, double aHi, double bLo, double bHi) {
+            double p1 = product(aLo, bLo);
+            double p2 = product(aLo, bHi);
+            double p3 = product(aHi, bLo);
+            double p4 = product(aHi, bHi);
+            set(i, down(Math.min(Math.min(p1, p2), Math.min(p3, p4))), up(Math.max(Math.max(p1, p2), Math.max(p3, p4))));
+        }
+
+        // как и при обычном вычислении, делитель по модулю меньше 1e-12 — ошибка; граница берётся по допустимым делителям
+        private void divide(int i, int a, int b) {
+            final double eps = 1e-12;
+            double bLo = lo[b];
+            double bHi = hi[b];
+            boolean touchesZero = bLo < eps && bHi > -eps;
+            if (!touchesZero) {
+                quotient(i, lo[a], hi[a], bLo, bHi);
+                return;
+            }
+            boolean negative = bLo <= -eps;
+            boolean positive = bHi >= eps;
+            if (!negative && !positive) {
+                whole(i, MUST_FAIL);
+                return;
+            }
+            status[i] |= MAY_FAIL;
+            double resultLo = Double.POSITIVE_INFINITY;
+            double resultHi = Double.NEGATIVE_INFINITY;
+            if (negative) {
+                quotient(i, lo[a], hi[a], bLo, -eps);
+                resultLo = lo[i];
+                resultHi = hi[i];
+            }
+            if (positive) {
+                quotient(i, lo[a], hi[a], eps, bHi);
+                resultLo = Math.min(resultLo, lo[i]);
+                resultHi = Math.max(resultHi, hi[i]);
+            }
+            set(i, resultLo, resultHi);
+        }
+
+        // делитель не содержит нуля
+        private void quotient(int i, double aLo, double aHi, double bLo, double bHi) {
+            double q1 = aLo / bLo;
+            double q2 = aLo / bHi;
+            double q3 = aHi / bLo;
+            double q4 = aHi / bHi;
+            set(i, down(Math.min(Math.min(q1, q2), Math.min(q3, q4))), up(Math.max(Math.max(q1, q2), Math.max(q3, q4))));
+        }
+
+        private void power(int i, double aLo, double aHi, double bLo, double bHi) {
+            if (bLo == bHi) {
+                powerByConstant(i, aLo, aHi, bLo);
+                return;
+            }
+            if (aHi < 0 || aLo < 0) {
+                // отрицательное основание определено только при целых показателях
+                whole(i, MAY_FAIL);
+                return;
+            }
+            // при неотрицательном основании x^y = exp(y ln x) монотонна по каждому аргументу, крайние значения — в углах
+            double p1 = Math.pow(aLo, bLo);
+            double p2 = Math.pow(aLo, bHi);
+            double p3 = Math.pow(aHi, bLo);
+            double p4 = Math.pow(aHi, bHi);
+            set(i, Math.max(0.0, down(Math.min(Math.min(p1, p2), Math.min(p3, p4)))),
+                    up(Math.max(Math.max(p1, p2), Math.max(p3, p4))));
+        }
+
+        private void powerByConstant(int i, double aLo, double aHi, double exponent) {
+            if (exponent == 0.0) {
+                set(i, 1.0, 1.0);
+                return;
+            }
+            boolean integer = exponent == Math.rint(exponent) && Math.abs(exponent) < 1e15;
+            if (!integer) {
+                if (aHi < 0) {
+                    whole(i, MUST_FAIL);
+                    return;
+                }
+                if (aLo < 0) {
+                    status[i] |= MAY_FAIL;
+                    aLo = 0.0;
+                }
+                double first = Math.pow(aLo, exponent);
+                double second = Math.pow(aHi, exponent);
+                set(i, Math.max(0.0, down(Math.min(first, second))), up(Math.max(first, second)));
+                return;
+            }
+            boolean even = Math.abs(exponent) % 2.0 == 0.0;
+            double first = Math.pow(aLo, exponent);
+            double second = Math.pow(aHi, exponent);
+            if (exponent > 0) {
+                if (!even || aLo >= 0) {
+                    set(i, down(Math.min(first, second)), up(Math.max(first, second)));
+                } else if (aHi <= 0) {
+                    set(i, down(second), up(first));
+                } else {
+                    set(i, 0.0, up(Math.max(first, second)));
+                }
+                return;
+            }
+            if (aLo > 0 || aHi < 0) {
+                set(i, down(Math.min(first, second)), up(Math.max(first, second)));
+            } else if (even) {
+                // 1/x^n около нуля уходит в +бесконечность
+                set(i, down(Math.min(first, second)), Double.POSITIVE_INFINITY);
+            } else {
+                whole(i, 0);
+            }
+        }
+
+        private void function(int i, FunctionNode node, int[] direct) {
+            MathFunction function = node.function;
+            if (function == null) {
+                // diff с конечными разностями интервально не оценивается
+                whole(i, MAY_FAIL);
+                return;
+            }
+            double aLo = direct.length > 0 ? lo[direct[0]] : 0.0;
+            double aHi = direct.length > 0 ? hi[direct[0]] : 0.0;
+            double bLo = direct.length > 1 ? lo[direct[1]] : 0.0;
+            double bHi = direct.length > 1 ? hi[direct[1]] : 0.0;
+            switch (function.getOpcode()) {
+                case Program.SIN:
+                    periodic(i, aLo, aHi, Math.PI / 2, Math::sin);
+                    return;
+                case Program.COS:
+                    periodic(i, aLo, aHi, 0.0, Math::cos);
+                    return;
+                case Program.TAN:
+                    tan(i, aLo, aHi);
+                    return;
+                case Program.LN:
+                    logarithm(i, aLo, aHi, Math::log);
+                    return;
+                case Program.LOG10:
+                    logarithm(i, aLo, aHi, Math::log10);
+                    return;
+                case Program.SQRT:
+                    if (aHi < 0) {
+                        whole(i, MUST_FAIL);
+                        return;
+                    }
+                    if (aLo < 0) {
+                        status[i] |= MAY_FAIL;
+                        aLo = 0.0;
+                    }
+                    set(i, Math.max(0.0, down(Math.sqrt(aLo))), up(Math.sqrt(aHi)));
+                    return;
+                case Program.ABS:
+                    if (aLo >= 0) {
+                        set(i, aLo, aHi);
+                    } else if (aHi <= 0) {
+                        set(i, -aHi, -aLo);
+                    } else {
+                        set(i, 0.0, Math.max(-aLo, aHi));
+                    }
+                    return;
+                case Program.SIGN:
+                    set(i, Math.signum(aLo), Math.signum(aHi));
+                    return;
+                case Program.EXP:
+                    set(i, Math.max(0.0, down(Math.exp(aLo))), up(Math.exp(aHi)));
+                    return;
+                case Program.POW:
+                    power(i, aLo, aHi, bLo, bHi);
+                    return;
+                default:
+                    break;
+            }
+            if (function == FunctionRegistry.MIN) {
+                set(i, Math.min(aLo, bLo), Math.min(aHi, bHi));
+            } else if (function == FunctionRegistry.MAX) {
+                set(i, Math.max(aLo, bLo), Math.max(aHi, bHi));
+            } else if (function == FunctionRegistry.HYPOT) {
+                set(i, down(Math.hypot(smallestMagnitude(aLo, aHi), smallestMagnitude(bLo, bHi))),
+                        up(Math.hypot(Math.max(-aLo, aHi), Math.max(-bLo, bHi))));
+            } else if (function == FunctionRegistry.ATAN2 && bLo > 0) {
+                // в правой полуплоскости atan2(y, x) = atan(y / x), крайние значения — в углах
+                double p1 = Math.atan2(aLo, bLo);
+                double p2 = Math.atan2(aLo, bHi);
+                double p3 = Math.atan2(aHi, bLo);
+                double p4 = Math.atan2(aHi, bHi);
+                set(i, down(Math.min(Math.min(p1, p2), Math.min(p3, p4))), up(Math.max(Math.max(p1, p2), Math.max(p3, p4))));
+            } else if (function == FunctionRegistry.ATAN2) {
+                set(i, down(-Math.PI), up(Math.PI));
+            } else {
+                // о пользовательской функции известно только то, что она может бросить исключение
+                whole(i, MAY_FAIL);
+            }
+        }
+
+        // синусоида с максимумами в phase + 2kπ и минимумами в phase + π + 2kπ
+        private void periodic(int i, double aLo, double aHi, double phase, DoubleUnaryOperator f) {
+            if (aHi - aLo >= TWO_PI || Double.isInfinite(aLo) || Double.isInfinite(aHi)) {
+                set(i, -1.0, 1.0);
+                return;
+            }
+            double first = f.applyAsDouble(aLo);
+            double second = f.applyAsDouble(aHi);
+            double resultLo = containsPoint(aLo, aHi, phase + Math.PI, TWO_PI) ? -1.0 : Math.max(-1.0, down(Math.min(first, second)));
+            double resultHi = containsPoint(aLo, aHi, phase, TWO_PI) ? 1.0 : Math.min(1.0, up(Math.max(first, second)));
+            set(i, resultLo, resultHi);
+        }
+
+        private void tan(int i, double aLo, double aHi) {
+            if (aHi - aLo >= Math.PI || Double.isInfinite(aLo) || Double.isInfinite(aHi)
+                    || containsPoint(aLo, aHi, Math.PI / 2, Math.PI)) {
+                whole(i, 0);
+                return;
+            }
+            set(i, down(Math.tan(aLo)), up(Math.tan(aHi)));
+        }
+
+        // логарифм отрицательного числа — NaN, а не исключение, но значения там всё равно нет
+        private void logarithm(int i, double aLo, double aHi, DoubleUnaryOperator f) {
+            if (aHi < 0) {
+                whole(i, MUST_FAIL);
+                return;
+            }
+            if (aLo < 0) {
+                status[i] |= MAY_FAIL;
+                aLo = 0.0;
+            }
+            set(i, down(f.applyAsDouble(aLo)), up(f.applyAsDouble(aHi)));
+        }
+
+        // есть ли в [lo, hi] точка offset + k * period; отрезок слегка расширен, чтобы ошибка округления не потеряла экстремум
+        private static boolean containsPoint(double lo, double hi, double offset, double period) {
+            double slack = 1e-9 * Math.max(1.0, Math.max(Math.abs(lo), Math.abs(hi)));
+            double k = Math.ceil((lo - slack - offset) / period);
+            return offset + k * period <= hi + slack;
+        }
+
+        private static double smallestMagnitude(double lo, double hi) {
+            if (lo <= 0 && hi >= 0) {
+                return 0.0;
+            }
+            return Math.min(Math.abs(lo), Math.abs(hi));
+        }
+
+        // в интервальной арифметике 0 * бесконечность = 0
+        private static double product(double a, double b) {
+            return a == 0.0 || b == 0.0 ? 0.0 : a * b;
+        }
+
+        private void set(int i, double resultLo, double resultHi) {
+            lo[i] = resultLo;
+            hi[i] = resultHi;
+        }
+
+        private void whole(int i, int failure) {
+            status[i] |= failure;
+            lo[i] = Double.NEGATIVE_INFINITY;
+            hi[i] = Double.POSITIVE_INFINITY;
+        }
+
+        private static double down(double value) {
+            return Math.nextDown(value);
+        }
+
+        private static double up(double value) {
+            return Math.nextUp(value);
+        }
+    }
+
+    // может ли выражение превысить порог в прямоугольнике: подобласти, где интервальная оценка не выше порога,
+    // отбрасываются, остальные делятся пополам по самой широкой переменной; свидетель проверяется обычным вычислением
+    private static final class ThresholdSearch {
+        enum Verdict {
+            EXCEEDS, NEVER_EXCEEDS, UNKNOWN
+        }
+
+        static final int DEFAULT_BOXES = 100_000;
+
+        private final IntervalEvaluator intervals;
+        private final Program program;
+        private final EvaluationContext context;
+        private final int[] usedSlots;
+        private double[] witness;
+        private double witnessValue = Double.NaN;
+        private int evaluatedBoxes;
+        private int prunedBoxes;
+        private int undecidedBoxes;
+
+        ThresholdSearch(Node root, VariableLayout layout) {
+            this.intervals = new IntervalEvaluator(root, layout);
+            this.program = new ProgramCompiler(layout).compile(root);
+            this.context = new EvaluationContext(layout);
+            Set<String> names = new TreeSet<>();
+            root.collectVariables(names);
+            this.usedSlots = new int[names.size()];
+            int i = 0;
+            for (String name : names) {
+                usedSlots[i++] = layout.slotOf(name);
+            }
+        }
+
+        // maxBoxes ограничивает число интервальных вычислений, подобласти уже minWidth по всем переменным не делятся
+        Verdict search(double threshold, double[] boxLo, double[] boxHi, int maxBoxes, double minWidth) {
+            for (int slot : usedSlots) {
+                if (slot >= boxLo.length || slot >= boxHi.length || !(boxLo[slot] <= boxHi[slot])
+                        || Double.isInfinite(boxLo[slot]) || Double.isInfinite(boxHi[slot])) {
+                    throw new EvaluationException(ErrorKind.DOMAIN, "Для переменной '" + intervals.getLayout().nameOf(slot)
+                            + "' нужен конечный диапазон");
+                }
+            }
+            witness = null;
+            witnessValue = Double.NaN;
+            evaluatedBoxes = 0;
+            prunedBoxes = 0;
+            undecidedBoxes = 0;
+            // сначала смотрим подобласти с наибольшей верхней границей: там свидетель находится быстрее
+            PriorityQueue<Box> pending = new PriorityQueue<>((a, b) -> Double.compare(b.upper, a.upper));
+            pending.add(new Box(boxLo.clone(), boxHi.clone(), Double.POSITIVE_INFINITY));
+            while (!pending.isEmpty()) {
+                Box box = pending.poll();
+                if (evaluatedBoxes >= maxBoxes) {
+                    undecidedBoxes += 1 + pending.size();
+                    break;
+                }
+                evaluatedBoxes++;
+                intervals.evaluate(box.lo, box.hi);
+                if (intervals.mustFail() || intervals.getHi() <= threshold) {
+                    prunedBoxes++;
+                    continue;
+                }
+                if (exceedsAtCenter(box, threshold)) {
+                    return Verdict.EXCEEDS;
+                }
+                int split = widestSlot(box);
+                if (split < 0 || box.hi[split] - box.lo[split] <= minWidth) {
+                    undecidedBoxes++;
+                    continue;
+                }
+                double middle = box.lo[split] + (box.hi[split] - box.lo[split]) / 2;
+                double[] leftHi = box.hi.clone();
+                leftHi[split] = middle;
+                double[] rightLo = box.lo.clone();
+                rightLo[split] = middle;
+                pending.add(new Box(box.lo, leftHi, intervals.getHi()));
+                pending.add(new Box(rightLo, box.hi, intervals.getHi()));
+            }
+            return undecidedBoxes == 0 ? Verdict.NEVER_EXCEEDS : Verdict.UNKNOWN;
+        }
+
+        // значения переменных по слотам, при которых выражение больше порога
+        double[] getWitness() {
+            return witness;
+        }
+
+        double getWitnessValue() {
+            return witnessValue;
+        }
+
+        int getEvaluatedBoxes() {
+            return evaluatedBoxes;
+        }
+
+        int getPrunedBoxes() {
+            return prunedBoxes;
+        }
+
+        int getUndecidedBoxes() {
+            return undecidedBoxes;
+        }
+
+        private boolean exceedsAtCenter(Box box, double threshold) {
+            double[] point = new double[box.lo.length];
+            for (int slot : usedSlots) {
+                point[slot] = box.lo[slot] + (box.hi[slot] - box.lo[slot]) / 2;
+                context.setSlot(slot, point[slot]);
+            }
+            double value;
+            try {
+                value = program.evaluate(context);
+            } catch (EvaluationException ex) {
+                return false;
+            }
+            if (value > threshold) {
+                witness = point;
+                witnessValue = value;
+                return true;
+            }
+            return false;
+        }
+
+        // -1, если делить не по чему
+        private int widestSlot(Box box) {
+            int widest = -1;
+            for (int slot : usedSlots) {
+                if (widest < 0 || box.hi[slot] - box.lo[slot] > box.hi[widest] - box.lo[widest]) {
+                    widest = slot;
+                }
+            }
+            return widest;
+        }
+
+        private static final class Box {
+            final double[] lo;
+            final double[] hi;
+            final double upper;
+
+            Box(double[] lo, double[] hi, double upper) {
+                this.lo = lo;
+                this.hi = hi;
+                this.upper = upper;
+            }
+        }
+    }
+
+    // вычисление в выбранной арифметике с оценкой погрешности первого порядка в каждом узле:
+    // error[i] ограничивает расстояние от вычисленного значения до точного значения поддерева,
+    // если числа и переменные понимать как их кратчайшую десятичную запись (0.1 — это ровно 1/10).
+    // Строится по неоптимизированному дереву: свёртка констант в double уже потеряла бы точность.
+    // Узлы, погрешность которых оценить нельзя (diff с шагом, solve, пользовательские функции),
+    // считаются в double и дают бесконечную оценку
+    private static final class PrecisionEvaluator {
+        static final int DEFAULT_DIGITS = 34;
+        static final int MAX_DIGITS = 300;
+
+        // значения от Math.* отличаются от точных не больше чем на 1–2 ulp
+        private static final double LIBRARY_ROUNDING = 0x1p-51;
+        // ln 2, ln 10, 2 pi и pi/2 в двойной-двойной точности: старшая и младшая части
+        private static final double LN2_HI = 6.931471805599452862e-01;
+        private static final double LN2_LO = 2.319046813846299558e-17;
+        private static final double LN10_HI = 2.302585092994045901e+00;
+        private static final double LN10_LO = -2.170756223382249351e-16;
+        private static final double TWO_PI_HI = 6.283185307179586232e+00;
+        private static final double TWO_PI_LO = 2.449293598294706414e-16;
+        private static final double HALF_PI_HI = 1.570796326794896558e+00;
+        private static final double HALF_PI_LO = 6.123233995736766036e-17;
+        private static final double SERIES_EPSILON = 0x1p-110;
+
+        private final Node[] nodes;
+        private final int[][] children;
+        private final int sharedCount;
+        private final double[] value;
+        private final double[] low;
+        private final BigDecimal[] decimal;
+        private final double[] error;
+        // десятичная запись числа из выражения или последнего значения переменной и её отличие от самого double
+        private final BigDecimal[] literal;
+        private final double[] literalGap;
+        private final double[] inputs;
+        private Precision mode = Precision.DOUBLE;
+        private MathContext math = MathContext.DECIMAL128;
+        private MathContext work = new MathContext(DEFAULT_DIGITS + 10, RoundingMode.HALF_EVEN);
+        private BigDecimal pi;
+        private BigDecimal ln10;
+        private double arithmeticUnit;
+        private double libraryUnit;
+        private boolean unbounded;
+        // результат последней операции двойной-двойной арифметики и косинус из ddSinCos
+        private double rh;
+        private double rl;
+        private double cosHi;
+        private double cosLo;
+
+        PrecisionEvaluator(Node root, VariableLayout layout) {
+            List<Node> order = Nodes.postOrder(root, true);
+            this.nodes = order.toArray(new Node[0]);
+            Map<Node, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.length; i++) {
+                index.put(nodes[i], i);
+            }
+            this.children = new int[nodes.length][];
+            for (int i = 0; i < nodes.length; i++) {
+                List<Node> direct = Nodes.evaluatedChildren(nodes[i]);
+                children[i] = new int[direct.size()];
+                for (int c = 0; c < direct.size(); c++) {
+                    children[i][c] = index.get(direct.get(c));
+                }
+            }
+            this.sharedCount = root instanceof SharedScopeNode ? ((SharedScopeNode) root).sharedCount : 0;
+            this.value = new double[nodes.length];
+            this.low = new double[nodes.length];
+            this.decimal = new BigDecimal[nodes.length];
+            this.error = new double[nodes.length];
+            this.literal = new BigDecimal[nodes.length];
+            this.literalGap = new double[nodes.length];
+            this.inputs = new double[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] instanceof NumberNode && Double.isFinite(((NumberNode) nodes[i]).value)) {
+                    double number = ((NumberNode) nodes[i]).value;
+                    literal[i] = new BigDecimal(Double.toString(number));
+                    literalGap[i] = literal[i].subtract(new BigDecimal(number)).doubleValue();
+                }
+            }
+        }
+
+        void evaluate(EvaluationContext context, Precision mode) {
+            evaluate(context, mode, DEFAULT_DIGITS);
+        }
+
+        // digits — число значащих десятичных цифр для DECIMAL, в остальных режимах не используется
+        void evaluate(EvaluationContext context, Precision mode, int digits) {
+            if (digits < 1 || digits > MAX_DIGITS) {
+                throw new IllegalArgumentException("Число знаков должно быть от 1 до " + MAX_DIGITS);
+            }
+            this.mode = mode;
+            switch (mode) {
+                case DOUBLE:
+                    arithmeticUnit = 0x1p-53;
+                    libraryUnit = LIBRARY_ROUNDING;
+                    break;
+                case DOUBLE_DOUBLE:
+                    arithmeticUnit = 0x1p-103;
+                    libraryUnit = 0x1p-98;
+                    break;
+                default:
+                    if (math.getPrecision() != digits) {
+                        math = new MathContext(digits, RoundingMode.HALF_EVEN);
+                        work = new MathContext(digits + 10, RoundingMode.HALF_EVEN);
+                        pi = null;
+                        ln10 = null;
+                    }
+                    arithmeticUnit = Math.max(Math.pow(10.0, 1 - digits), Double.MIN_NORMAL);
+                    libraryUnit = 10.0 * arithmeticUnit;
+                    break;
+            }
+            unbounded = false;
+            context.beginShared(sharedCount);
+            for (int i = 0; i < nodes.length; i++) {
+                compute(i, context);
+                if (!Double.isFinite(value[i])) {
+                    low[i] = 0.0;
+                    decimal[i] = null;
+                    error[i] = Double.POSITIVE_INFINITY;
+                } else if (!(error[i] >= 0.0)) {
+                    error[i] = Double.POSITIVE_INFINITY;
+                }
+            }
+        }
+
+        // самый дешёвый режим, в котором оценка погрешности не больше tolerance * |результат|;
+        // если не хватает и 300 знаков, остаётся последний результат со своей оценкой
+        Precision evaluate(EvaluationContext context, double tolerance) {
+            if (!(tolerance >= 0.0)) {
+                throw new IllegalArgumentException("Допуск должен быть неотрицательным числом");
+            }
+            evaluate(context, Precision.DOUBLE);
+            if (meets(tolerance) || unbounded) {
+                return mode;
+            }
+            evaluate(context, Precision.DOUBLE_DOUBLE);
+            if (meets(tolerance)) {
+                return mode;
+            }
+            double wanted = tolerance > 0.0 ? -Math.log10(tolerance) : MAX_DIGITS;
+            int digits = (int) Math.min(MAX_DIGITS, Math.max(DEFAULT_DIGITS, Math.ceil(wanted) + 10));
+            while (true) {
+                evaluate(context, Precision.DECIMAL, digits);
+                if (meets(tolerance) || digits == MAX_DIGITS || Double.isInfinite(getErrorBound())) {
+                    return mode;
+                }
+                digits = Math.min(MAX_DIGITS, digits * 2);
+            }
+        }
+
+        Precision getMode() {
+            return mode;
+        }
+
+        // сколько значащих цифр результата имеет смысл печатать
+        int getSignificantDigits() {
+            switch (mode) {
+                case DOUBLE:
+                    return 17;
+                case DOUBLE_DOUBLE:
+                    return 32;
+                default:
+                    return math.getPrecision();
+            }
+        }
+
+        double getValue() {
+            return value[nodes.length - 1];
+        }
+
+        double getErrorBound() {
+            return error[nodes.length - 1];
+        }
+
+        // точное значение вычисленного результата; null, если он не конечен
+        BigDecimal getDecimal() {
+            int root = nodes.length - 1;
+            if (!Double.isFinite(value[root])) {
+                return null;
+            }
+            if (mode == Precision.DECIMAL && decimal[root] != null) {
+                return decimal[root];
+            }
+            BigDecimal result = new BigDecimal(value[root]);
+            return low[root] == 0.0 ? result : result.add(new BigDecimal(low[root]));
+        }
+
+        private boolean meets(double tolerance) {
+            return getErrorBound() <= tolerance * Math.abs(getValue());
+        }
+
+        private void compute(int i, EvaluationContext context) {
+            Node node = nodes[i];
+            int[] direct = children[i];
+            if (node instanceof NumberNode) {
+                input(i, ((NumberNode) node).value, literal[i], literalGap[i]);
+            } else if (node instanceof VariableNode) {
+                double v = node.evaluate(context);
+                if (!Double.isFinite(v)) {
+                    exact(i, v);
+                    return;
+                }
+                if (literal[i] == null || Double.doubleToRawLongBits(v) != Double.doubleToRawLongBits(inputs[i])) {
+                    inputs[i] = v;
+                    literal[i] = new BigDecimal(Double.toString(v));
+                    literalGap[i] = literal[i].subtract(new BigDecimal(v)).doubleValue();
+                }
+                input(i, v, literal[i], literalGap[i]);
+            } else if (node instanceof UnaryMinusNode) {
+                int a = direct[0];
+                value[i] = -value[a];
+                low[i] = -low[a];
+                decimal[i] = decimal[a] == null ? null : decimal[a].negate();
+                error[i] = error[a];
+            } else if (node instanceof BinaryNode) {
+                binary(i, ((BinaryNode) node).op, direct[0], direct[1]);
+            } else if (node instanceof FunctionNode && ((FunctionNode) node).function != null
+                    && ((FunctionNode) node).function.isBuiltin()) {
+                function(i, ((FunctionNode) node).function, direct);
+            } else if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                value[i] = value[direct[0]];
+                low[i] = low[direct[0]];
+                decimal[i] = decimal[direct[0]];
+                error[i] = error[direct[0]];
+            } else {
+                // diff, solve и пользовательские функции считаются обычным образом, их точность неизвестна
+                unbounded = true;
+                exact(i, node.evaluate(context));
+                error[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        private void input(int i, double v, BigDecimal text, double gap) {
+            if (text == null) {
+                exact(i, v);
+                return;
+            }
+            value[i] = v;
+            low[i] = 0.0;
+            decimal[i] = null;
+            switch (mode) {
+                case DOUBLE:
+                    error[i] = Math.abs(gap);
+                    break;
+                case DOUBLE_DOUBLE:
+                    low[i] = gap;
+                    error[i] = 0x1p-53 * Math.abs(gap);
+                    break;
+                default:
+                    decimal[i] = text.round(math);
+                    error[i] = text.precision() <= math.getPrecision() ? 0.0 : arithmeticUnit * Math.abs(v);
+                    break;
+            }
+        }
+
+        private void exact(int i, double v) {
+            fallback(i, v);
+            error[i] = 0.0;
+        }
+
+        // значение посчитано в double; в DECIMAL оно переводится в десятичное без округления
+        private void fallback(int i, double v) {
+            value[i] = v;
+            low[i] = 0.0;
+            decimal[i] = mode == Precision.DECIMAL && Double.isFinite(v) ? new BigDecimal(v) : null;
+        }
+
+        private void store(int i) {
+            value[i] = rh;
+            low[i] = rl;
+        }
+
+        private void store(int i, BigDecimal result) {
+            decimal[i] = result;
+            value[i] = result.doubleValue();
+            low[i] = 0.0;
+        }
+
+        private boolean decimals(int a, int b) {
+            return decimal[a] != null && decimal[b] != null;
+        }
+
+        private void binary(int i, String op, int a, int b) {
+            double ea = error[a];
+            double eb = error[b];
+            switch (op) {
+                case "+":
+                case "-": {
+                    boolean subtract = "-".equals(op);
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = subtract ? value[a] - value[b] : value[a] + value[b];
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        double sign = subtract ? -1.0 : 1.0;
+                        ddAdd(value[a], low[a], sign * value[b], sign * low[b]);
+                        store(i);
+                    } else if (decimals(a, b)) {
+                        store(i, subtract ? decimal[a].subtract(decimal[b], math) : decimal[a].add(decimal[b], math));
+                    } else {
+                        fallback(i, subtract ? value[a] - value[b] : value[a] + value[b]);
+                    }
+                    error[i] = ea + eb + arithmeticUnit * Math.abs(value[i]);
+                    break;
+                }
+                case "*":
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = value[a] * value[b];
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddMul(value[a], low[a], value[b], low[b]);
+                        store(i);
+                    } else if (decimals(a, b)) {
+                        store(i, decimal[a].multiply(decimal[b], math));
+                    } else {
+                        fallback(i, value[a] * value[b]);
+                    }
+                    error[i] = Math.abs(value[b]) * ea + Math.abs(value[a]) * eb + ea * eb
+                            + arithmeticUnit * Math.abs(value[i]);
+                    break;
+                case "/": {
+                    if (Math.abs(value[b]) < 1e-12) {
+                        throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                    }
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = value[a] / value[b];
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddDiv(value[a], low[a], value[b], low[b]);
+                        store(i);
+                    } else if (decimals(a, b)) {
+                        store(i, decimal[a].divide(decimal[b], math));
+                    } else {
+                        fallback(i, value[a] / value[b]);
+                    }
+                    // делитель может отличаться от точного на eb, поэтому берётся худший случай
+                    double margin = Math.abs(value[b]) - eb;
+                    error[i] = margin > 0.0
+                            ? (ea + Math.abs(value[i]) * eb) / margin + arithmeticUnit * Math.abs(value[i])
+                            : Double.POSITIVE_INFINITY;
+                    break;
+                }
+                default:
+                    power(i, a, b);
+                    break;
+            }
+        }
+
+        private void power(int i, int a, int b) {
+            double base = value[a];
+            double exponent = value[b];
+            boolean integral = low[b] == 0.0 && exponent == Math.rint(exponent) && Math.abs(exponent) <= 1 << 30;
+            if (mode == Precision.DECIMAL && decimal[b] != null) {
+                integral = Math.abs(exponent) <= 1 << 30
+                        && (decimal[b].signum() == 0 || decimal[b].stripTrailingZeros().scale() <= 0);
+            }
+            double approximate = Math.pow(base, exponent);
+            // BigDecimal не должен выходить далеко за диапазон double: показатель степени у него — int
+            boolean representable = Double.isFinite(approximate) && approximate != 0.0;
+            double unit;
+            if (mode == Precision.DOUBLE) {
+                value[i] = approximate;
+                unit = libraryUnit;
+            } else if (mode == Precision.DOUBLE_DOUBLE && integral && base != 0.0) {
+                ddPower(value[a], low[a], (long) exponent);
+                store(i);
+                // возведение в квадрат повторяется log2|n| раз, ошибка каждого шага накапливается
+                unit = arithmeticUnit * 2.0 * (2.0 + Math.getExponent(Math.abs(exponent) + 1.0));
+            } else if (mode == Precision.DOUBLE_DOUBLE && base > 0.0) {
+                ddLn(value[a], low[a]);
+                ddMul(rh, rl, value[b], low[b]);
+                double argument = rh;
+                ddExp(rh, rl);
+                store(i);
+                unit = libraryUnit * (1.0 + Math.abs(argument));
+            } else if (mode == Precision.DECIMAL && representable && decimals(a, b) && integral) {
+                // BigDecimal.pow с MathContext ошибается не больше чем на 2 ulp
+                store(i, decimal[a].pow(decimal[b].intValueExact(), math));
+                unit = 2.0 * arithmeticUnit;
+            } else if (mode == Precision.DECIMAL && representable && decimals(a, b) && decimal[a].signum() > 0) {
+                BigDecimal argument = decimal[b].multiply(decimalLn(decimal[a]), work);
+                store(i, decimalExp(argument, math));
+                unit = libraryUnit * (1.0 + Math.abs(argument.doubleValue()));
+            } else {
+                fallback(i, approximate);
+                unit = base == 0.0 ? 0.0 : LIBRARY_ROUNDING;
+            }
+            // ln|a^b| = b ln|a|: относительная ошибка основания умножается на |b|, ошибка показателя — на |ln a|
+            double result = Math.abs(value[i]);
+            double ea = error[a];
+            double eb = error[b];
+            double propagated;
+            if (ea == 0.0 && eb == 0.0) {
+                propagated = 0.0;
+            } else if (base == 0.0 || ea >= Math.abs(base) || (base < 0.0 && eb > 0.0)) {
+                propagated = Double.POSITIVE_INFINITY;
+            } else {
+                double logError = -Math.log1p(-ea / Math.abs(base));
+                propagated = result * Math.expm1((Math.abs(exponent) + eb) * logError
+                        + Math.abs(Math.log(Math.abs(base))) * eb);
+            }
+            error[i] = propagated + unit * result;
+        }
+
+        private void function(int i, MathFunction function, int[] direct) {
+            int a = direct[0];
+            double x = value[a];
+            double e = error[a];
+            double propagated;
+            double unit = libraryUnit;
+            // абсолютная добавка: разложения в ряд и приведение аргумента теряют младшие разряды около нуля
+            double floor = 0.0;
+            switch (function.getName()) {
+                case "sqrt":
+                    if (x < 0.0 || (mode == Precision.DECIMAL && decimal[a] != null && decimal[a].signum() < 0)) {
+                        throw new EvaluationException(ErrorKind.DOMAIN, "sqrt: отрицательный аргумент");
+                    }
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = Math.sqrt(x);
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddSqrt(x, low[a]);
+                        store(i);
+                    } else if (decimal[a] != null) {
+                        store(i, decimal[a].sqrt(math));
+                    } else {
+                        fallback(i, Math.sqrt(x));
+                    }
+                    unit = arithmeticUnit;
+                    // |sqrt(x) - sqrt(y)| = |x - y| / (sqrt(x) + sqrt(y))
+                    propagated = e == 0.0 ? 0.0 : Math.min(Math.sqrt(e), e / Math.sqrt(x));
+                    break;
+                case "exp":
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = Math.exp(x);
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddExp(x, low[a]);
+                        store(i);
+                    } else if (decimal[a] != null && Math.abs(x) <= 1e5) {
+                        store(i, decimalExp(decimal[a], math));
+                    } else {
+                        fallback(i, Math.exp(x));
+                        unit = LIBRARY_ROUNDING;
+                    }
+                    propagated = Math.abs(value[i]) * Math.expm1(e);
+                    break;
+                case "ln":
+                case "log10": {
+                    boolean common = "log10".equals(function.getName());
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = common ? Math.log10(x) : Math.log(x);
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddLn(x, low[a]);
+                        if (common) {
+                            ddDiv(rh, rl, LN10_HI, LN10_LO);
+                        }
+                        store(i);
+                        floor = libraryUnit;
+                    } else if (decimal[a] != null && decimal[a].signum() > 0) {
+                        BigDecimal result = decimalLn(decimal[a]);
+                        store(i, common ? result.divide(ln10(), math) : result.round(math));
+                        floor = libraryUnit;
+                    } else {
+                        fallback(i, common ? Math.log10(x) : Math.log(x));
+                    }
+                    propagated = e == 0.0 ? 0.0 : e < Math.abs(x) ? -Math.log1p(-e / Math.abs(x)) : Double.POSITIVE_INFINITY;
+                    if (common) {
+                        propagated /= LN10_HI;
+                    }
+                    break;
+                }
+                case "sin":
+                case "cos":
+                case "tan": {
+                    String name = function.getName();
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = "sin".equals(name) ? Math.sin(x) : "cos".equals(name) ? Math.cos(x) : Math.tan(x);
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddSinCos(x, low[a]);
+                        if ("cos".equals(name)) {
+                            rh = cosHi;
+                            rl = cosLo;
+                        } else if ("tan".equals(name)) {
+                            ddDiv(rh, rl, cosHi, cosLo);
+                        }
+                        store(i);
+                        floor = libraryUnit * (1.0 + Math.abs(x));
+                    } else if (decimal[a] != null) {
+                        store(i, decimalTrigonometric(name, decimal[a]));
+                        floor = libraryUnit * (1.0 + Math.abs(x));
+                    } else {
+                        fallback(i, Double.NaN);
+                    }
+                    if ("tan".equals(name)) {
+                        // производная 1/cos^2 на всём отрезке [x - e, x + e]
+                        double c = Math.abs(Math.cos(x));
+                        propagated = e == 0.0 ? 0.0 : c > e ? e / ((c - e) * (c - e)) : Double.POSITIVE_INFINITY;
+                    } else {
+                        double slope = Math.abs("sin".equals(name) ? Math.cos(x) : Math.sin(x));
+                        propagated = Math.min(2.0, slope * e + 0.5 * e * e);
+                    }
+                    break;
+                }
+                case "abs":
+                    if (mode == Precision.DECIMAL && decimal[a] != null) {
+                        store(i, decimal[a].abs());
+                    } else {
+                        boolean negative = x < 0.0 || (x == 0.0 && low[a] < 0.0);
+                        value[i] = negative ? -x : x;
+                        low[i] = negative ? -low[a] : low[a];
+                        decimal[i] = null;
+                    }
+                    unit = 0.0;
+                    propagated = e;
+                    break;
+                case "sign":
+                    exact(i, Math.signum(x));
+                    unit = 0.0;
+                    // знак может смениться, только если ноль ближе e
+                    propagated = e == 0.0 || Math.abs(x) > e ? 0.0 : 2.0;
+                    break;
+                case "min":
+                case "max": {
+                    int b = direct[1];
+                    int compared;
+                    if (mode == Precision.DECIMAL && decimals(a, b)) {
+                        compared = decimal[a].compareTo(decimal[b]);
+                    } else {
+                        compared = x != value[b] ? Double.compare(x, value[b]) : Double.compare(low[a], low[b]);
+                    }
+                    boolean first = "min".equals(function.getName()) ? compared <= 0 : compared >= 0;
+                    int chosen = Double.isNaN(x) ? a : Double.isNaN(value[b]) ? b : first ? a : b;
+                    value[i] = value[chosen];
+                    low[i] = low[chosen];
+                    decimal[i] = decimal[chosen];
+                    unit = 0.0;
+                    propagated = Math.max(e, error[b]);
+                    break;
+                }
+                case "pow":
+                    power(i, a, direct[1]);
+                    return;
+                case "hypot": {
+                    int b = direct[1];
+                    if (mode == Precision.DOUBLE) {
+                        value[i] = Math.hypot(x, value[b]);
+                    } else if (mode == Precision.DOUBLE_DOUBLE) {
+                        ddMul(x, low[a], x, low[a]);
+                        double squareHi = rh;
+                        double squareLo = rl;
+                        ddMul(value[b], low[b], value[b], low[b]);
+                        ddAdd(squareHi, squareLo, rh, rl);
+                        ddSqrt(rh, rl);
+                        store(i);
+                        unit = 3.0 * arithmeticUnit;
+                    } else if (decimals(a, b)) {
+                        BigDecimal sum = decimal[a].multiply(decimal[a]).add(decimal[b].multiply(decimal[b]));
+                        store(i, sum.sqrt(math));
+                        unit = arithmeticUnit;
+                    } else {
+                        fallback(i, Math.hypot(x, value[b]));
+                    }
+                    propagated = e + error[b];
+                    break;
+                }
+                default: {
+                    // atan2 и другие встроенные функции без своей реализации считаются в double
+                    double[] args = new double[direct.length];
+                    double spread = 0.0;
+                    for (int c = 0; c < direct.length; c++) {
+                        args[c] = value[direct[c]];
+                        spread += error[direct[c]];
+                    }
+                    fallback(i, function.applyAsDouble(args));
+                    unit = LIBRARY_ROUNDING;
+                    if (spread == 0.0) {
+                        propagated = 0.0;
+                    } else if ("atan2".equals(function.getName())) {
+                        // |grad atan2| = 1 / r
+                        double radius = Math.hypot(args[0], args[1]);
+                        propagated = radius > spread ? spread / (radius - spread) : Double.POSITIVE_INFINITY;
+                    } else {
+                        propagated = Double.POSITIVE_INFINITY;
+                    }
+                    break;
+                }
+            }
+            error[i] = propagated + unit * Math.abs(value[i]) + floor;
+        }
+
+        // двойная-двойная арифметика: значение — несокращаемая сумма hi + lo двух double
+
+        private void ddAdd(double ah, double al, double bh, double bl) {
+            double s = ah + bh;
+            double v = s - ah;
+            double e = (ah - (s - v)) + (bh - v);
+            double t = al + bl;
+            double w = t - al;
+            double f = (al - (t - w)) + (bl - w);
+            e += t;
+            double s1 = s + e;
+            e -= s1 - s;
+            e += f;
+            rh = s1 + e;
+            rl = e - (rh - s1);
+        }
+
+        private void ddMul(double ah, double al, double bh, double bl) {
+            double p = ah * bh;
+            double e = Math.fma(ah, bh, -p) + (ah * bl + al * bh);
+            rh = p + e;
+            rl = e - (rh - p);
+        }
+
+        private void ddDiv(double ah, double al, double bh, double bl) {
+            double q1 = ah / bh;
+            ddMul(q1, 0.0, bh, bl);
+            ddAdd(ah, al, -rh, -rl);
+            double q2 = rh / bh;
+            double remainderHi = rh;
+            double remainderLo = rl;
+            ddMul(q2, 0.0, bh, bl);
+            ddAdd(remainderHi, remainderLo, -rh, -rl);
+            double q3 = rh / bh;
+            double s = q1 + q2;
+            ddAdd(s, q2 - (s - q1), q3, 0.0);
+        }
+
+        private void ddSqrt(double ah, double al) {
+            if (ah == 0.0) {
+                rh = 0.0;
+                rl = 0.0;
+                return;
+            }
+            double x = Math.sqrt(ah);
+            double square = x * x;
+            ddAdd(ah, al, -square, -Math.fma(x, x, -square));
+            double correction = rh / (2.0 * x);
+            rh = x + correction;
+            rl = correction - (rh - x);
+        }
+
+        // n по модулю меньше 2^30, основание не ноль
+        private void ddPower(double ah, double al, long n) {
+            long k = Math.abs(n);
+            double baseHi = ah;
+            double baseLo = al;
+            double resultHi = 1.0;
+            double resultLo = 0.0;
+            while (k > 0) {
+                if ((k & 1) != 0) {
+                    ddMul(resultHi, resultLo, baseHi, baseLo);
+                    resultHi = rh;
+                    resultLo = rl;
+                }
+                k >>= 1;
+                if (k > 0) {
+                    ddMul(baseHi, baseLo, baseHi, baseLo);
+                    baseHi = rh;
+                    baseLo = rl;
+                }
+            }
+            if (n < 0) {
+                ddDiv(1.0, 0.0, resultHi, resultLo);
+            } else {
+                rh = resultHi;
+                rl = resultLo;
+            }
+        }
+
+        // x = m ln2 + r, exp(r) через expm1(r / 512) и девять удвоений
+        private void ddExp(double ah, double al) {
+            if (ah > 709.78) {
+                rh = Double.POSITIVE_INFINITY;
+                rl = 0.0;
+                return;
+            }
+            if (ah < -745.2) {
+                rh = 0.0;
+                rl = 0.0;
+                return;
+            }
+            double m = Math.rint(ah / LN2_HI);
+            ddMul(m, 0.0, LN2_HI, LN2_LO);
+            ddAdd(ah, al, -rh, -rl);
+            double th = rh / 512.0;
+            double tl = rl / 512.0;
+            double sumHi = th;
+            double sumLo = tl;
+            double termHi = th;
+            double termLo = tl;
+            for (int k = 2; k < 30 && Math.abs(termHi) > SERIES_EPSILON; k++) {
+                ddMul(termHi, termLo, th, tl);
+                ddDiv(rh, rl, k, 0.0);
+                termHi = rh;
+                termLo = rl;
+                ddAdd(sumHi, sumLo, termHi, termLo);
+                sumHi = rh;
+                sumLo = rl;
+            }
+            for (int k = 0; k < 9; k++) {
+                ddMul(sumHi, sumLo, sumHi, sumLo);
+                ddAdd(rh, rl, 2.0 * sumHi, 2.0 * sumLo);
+                sumHi = rh;
+                sumLo = rl;
+            }
+            ddAdd(sumHi, sumLo, 1.0, 0.0);
+            rh = Math.scalb(rh, (int) m);
+            rl = Math.scalb(rl, (int) m);
+        }
+
+        // шаг Ньютона от ln в double: y + a exp(-y) - 1
+        private void ddLn(double ah, double al) {
+            if (!(ah > 0.0) || Double.isInfinite(ah)) {
+                rh = Math.log(ah);
+                rl = 0.0;
+                return;
+            }
+            double y = Math.log(ah);
+            ddExp(-y, 0.0);
+            ddMul(ah, al, rh, rl);
+            ddAdd(rh, rl, -1.0, 0.0);
+            ddAdd(y, 0.0, rh, rl);
+        }
+
+        // синус в rh, rl и косинус в cosHi, cosLo; аргумент приводится к |t| <= pi/4
+        private void ddSinCos(double ah, double al) {
+            if (!Double.isFinite(ah)) {
+                rh = Double.NaN;
+                rl = 0.0;
+                cosHi = Double.NaN;
+                cosLo = 0.0;
+                return;
+            }
+            double k = Math.rint(ah / TWO_PI_HI);
+            ddMul(k, 0.0, TWO_PI_HI, TWO_PI_LO);
+            ddAdd(ah, al, -rh, -rl);
+            double reducedHi = rh;
+            double reducedLo = rl;
+            double j = Math.rint(reducedHi / HALF_PI_HI);
+            ddMul(j, 0.0, HALF_PI_HI, HALF_PI_LO);
+            ddAdd(reducedHi, reducedLo, -rh, -rl);
+            double th = rh;
+            double tl = rl;
+            ddMul(th, tl, th, tl);
+            double squareHi = rh;
+            double squareLo = rl;
+            double sinHi = th;
+            double sinLo = tl;
+            double termHi = th;
+            double termLo = tl;
+            for (int n = 3; n < 60 && Math.abs(termHi) > SERIES_EPSILON; n += 2) {
+                ddMul(termHi, termLo, squareHi, squareLo);
+                ddDiv(rh, rl, -(double) (n - 1) * n, 0.0);
+                termHi = rh;
+                termLo = rl;
+                ddAdd(sinHi, sinLo, termHi, termLo);
+                sinHi = rh;
+                sinLo = rl;
+            }
+            double cHi = 1.0;
+            double cLo = 0.0;
+            termHi = 1.0;
+            termLo = 0.0;
+            for (int n = 2; n < 60 && Math.abs(termHi) > SERIES_EPSILON; n += 2) {
+                ddMul(termHi, termLo, squareHi, squareLo);
+                ddDiv(rh, rl, -(double) (n - 1) * n, 0.0);
+                termHi = rh;
+                termLo = rl;
+                ddAdd(cHi, cLo, termHi, termLo);
+                cHi = rh;
+                cLo = rl;
+            }
+            switch ((int) ((long) j & 3)) {
+                case 0:
+                    rh = sinHi;
+                    rl = sinLo;
+                    cosHi = cHi;
+                    cosLo = cLo;
+                    break;
+                case 1:
+                    rh = cHi;
+                    rl = cLo;
+                    cosHi = -sinHi;
+                    cosLo = -sinLo;
+                    break;
+                case 2:
+                    rh = -sinHi;
+                    rl = -sinLo;
+                    cosHi = -cHi;
+                    cosLo = -cLo;
+                    break;
+                default:
+                    rh = -cHi;
+                    rl = -cLo;
+                    cosHi = sinHi;
+                    cosLo = sinLo;
+                    break;
+            }
+        }
+
+        // десятичные функции считаются с запасом в 10 цифр (work) и округляются до math
+
+        private BigDecimal decimalExp(BigDecimal x, MathContext target) {
+            if (x.signum() == 0) {
+                return BigDecimal.ONE;
+            }
+            double magnitude = Math.abs(x.doubleValue());
+            // |x| / 2^halvings < 1/2; каждое возведение в квадрат удваивает относительную ошибку
+            int halvings = magnitude < 0.5 ? 0 : Math.getExponent(magnitude) + 2;
+            MathContext local = new MathContext(work.getPrecision() + halvings / 3 + 1, RoundingMode.HALF_EVEN);
+            BigDecimal r = x.divide(BigDecimal.valueOf(2).pow(halvings), local);
+            BigDecimal threshold = BigDecimal.ONE.movePointLeft(local.getPrecision() + 1);
+            BigDecimal sum = BigDecimal.ONE;
+            BigDecimal term = BigDecimal.ONE;
+            for (int n = 1; term.abs().compareTo(threshold) >= 0; n++) {
+                term = term.multiply(r, local).divide(BigDecimal.valueOf(n), local);
+                sum = sum.add(term, local);
+            }
+            for (int k = 0; k < halvings; k++) {
+                sum = sum.multiply(sum, local);
+            }
+            return sum.round(target);
+        }
+
+        // x = m 10^k, 1 <= m < 10; ln m уточняется итерациями Галлея от значения в double
+        private BigDecimal decimalLn(BigDecimal x) {
+            int exponent = x.precision() - x.scale() - 1;
+            BigDecimal result = lnNear(x.movePointLeft(exponent));
+            if (exponent != 0) {
+                result = result.add(ln10().multiply(BigDecimal.valueOf(exponent), work), work);
+            }
+            return result;
+        }
+
+        private BigDecimal lnNear(BigDecimal m) {
+            BigDecimal y = new BigDecimal(Math.log(m.doubleValue()));
+            BigDecimal threshold = BigDecimal.ONE.movePointLeft(work.getPrecision());
+            BigDecimal two = BigDecimal.valueOf(2);
+            for (int k = 0; k < 64; k++) {
+                BigDecimal power = decimalExp(y, work);
+                BigDecimal correction = two.multiply(m.subtract(power, work), work).divide(m.add(power, work), work);
+                y = y.add(correction, work);
+                if (correction.abs().compareTo(threshold) < 0) {
+                    break;
+                }
+            }
+            return y;
+        }
+
+        private BigDecimal ln10() {
+            if (ln10 == null) {
+                ln10 = lnNear(BigDecimal.TEN);
+            }
+            return ln10;
+        }
+
+        // формула Мэчина: pi = 16 atan(1/5) - 4 atan(1/239)
+        private BigDecimal pi(MathContext precision) {
+            BigDecimal a = arctanOfInverse(5, precision).multiply(BigDecimal.valueOf(16));
+            return a.subtract(arctanOfInverse(239, precision).multiply(BigDecimal.valueOf(4)), precision);
+        }
+
+        private static BigDecimal arctanOfInverse(int n, MathContext precision) {
+            BigDecimal x = BigDecimal.ONE.divide(BigDecimal.valueOf(n), precision);
+            BigDecimal square = x.multiply(x, precision);
+            BigDecimal threshold = BigDecimal.ONE.movePointLeft(precision.getPrecision() + 1);
+            BigDecimal sum = x;
+            BigDecimal power = x;
+            for (int k = 1; ; k++) {
+                power = power.multiply(square, precision);
+                BigDecimal term = power.divide(BigDecimal.valueOf(2L * k + 1), precision);
+                sum = (k & 1) == 0 ? sum.add(term, precision) : sum.subtract(term, precision);
+                if (term.compareTo(threshold) < 0) {
+                    return sum;
+                }
+            }
+        }
+
+        // приведение по модулю 2 pi требует столько же лишних цифр, сколько их в целой части аргумента
+        private BigDecimal decimalTrigonometric(String name, BigDecimal x) {
+            int integerDigits = Math.max(0, x.precision() - x.scale());
+            MathContext local = new MathContext(work.getPrecision() + integerDigits, RoundingMode.HALF_EVEN);
+            if (pi == null || pi.precision() < local.getPrecision()) {
+                pi = pi(local);
+            }
+            BigDecimal twoPi = pi.multiply(BigDecimal.valueOf(2), local);
+            BigDecimal turns = x.divide(twoPi, local).setScale(0, RoundingMode.HALF_EVEN);
+            BigDecimal r = x.subtract(twoPi.multiply(turns, local), local);
+            BigDecimal sin = series(r, true, local);
+            BigDecimal cos = series(r, false, local);
+            switch (name) {
+                case "sin":
+                    return sin.round(math);
+                case "cos":
+                    return cos.round(math);
+                default:
+                    if (cos.signum() == 0) {
+                        throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                    }
+                    return sin.divide(cos, math);
+            }
+        }
+
+        private static BigDecimal series(BigDecimal r, boolean sine, MathContext precision) {
+            BigDecimal square = r.multiply(r, precision);
+            BigDecimal threshold = BigDecimal.ONE.movePointLeft(precision.getPrecision() + 1);
+            BigDecimal term = sine ? r : BigDecimal.ONE;
+            BigDecimal sum = term;
+            for (int n = sine ? 3 : 2; term.abs().compareTo(threshold) >= 0; n += 2) {
+                term = term.multiply(square, precision).divide(BigDecimal.valueOf(-(long) (n - 1) * n), precision);
+                sum = sum.add(term, precision);
+            }
+            return sum;
+        }
+    }
+
+    private static final class BatchEvaluator {
+        static final int DEFAULT_CHUNK = 1024;
+
+        private final Node root;
+        private final VariableLayout layout;
+        private final int chunkSize;
+        private final int[] requiredSlots;
+        private final double[][] buffers;
+        private final boolean[] failed;
+        private final double[][] sharedColumns;
+        private final boolean[] sharedReady;
+        private final Map<SolveNode, int[]> solveSlots = new IdentityHashMap<>();
+        private EvaluationContext solveContext;
+        private double[][] columns = new double[0][];
+        private int[] offsets = new int[0];
+        private int length;
+        // стек обхода вместо рекурсии: узел, номер буфера его результата и следующий шаг;
+        // для diff ещё столбец переменной, подменённый на время вычисления выражения
+        private Node[] frameNodes = new Node[16];
+        private int[] frameDepths = new int[16];
+        private int[] framePhases = new int[16];
+        private double[][] savedColumns = new double[16][];
+        private int[] savedOffsets = new int[16];
+        private int frames;
+
+        BatchEvaluator(Node root, VariableLayout layout) {
+            this(root, layout, DEFAULT_CHUNK);
+        }
+
+        BatchEvaluator(Node root, VariableLayout layout, int chunkSize) {
+            if (chunkSize <= 0 || chunkSize % 64 != 0) {
+                throw new IllegalArgumentException("Размер блока должен быть положительным и кратным 64");
+            }
+            validate(root);
+            this.root = root;
+            this.layout = layout;
+            this.chunkSize = chunkSize;
+            Set<String> names = new TreeSet<>();
+            root.collectVariables(names);
+            this.requiredSlots = new int[names.size()];
+            int i = 0;
+            for (String name : names) {
+                requiredSlots[i++] = layout.slotOf(name);
+            }
+            this.buffers = new double[requiredBuffers(root)][chunkSize];
+            this.failed = new boolean[chunkSize];
+            int sharedCount = root instanceof SharedScopeNode ? ((SharedScopeNode) root).sharedCount : 0;
+            this.sharedColumns = new double[sharedCount][chunkSize];
+            this.sharedReady = new boolean[sharedCount];
+        }
+
+        int getChunkSize() {
+            return chunkSize;
+        }
+
+        double[][] columnsByName(Map<String, double[]> byName) {
+            double[][] result = new double[layout.size()][];
+            for (Map.Entry<String, double[]> entry : byName.entrySet()) {
+                int slot = layout.find(entry.getKey());
+                if (slot >= 0) {
+                    result[slot] = entry.getValue();
+                }
+            }
+            return result;
+        }
+
+        int evaluate(double[][] input, double[] out, int rows, long[] errors) {
+            return evaluate(input, out, 0, rows, errors);
+        }
+
+        void checkColumns(double[][] input) {
+            for (int slot : requiredSlots) {
+                if (slot >= input.length || input[slot] == null) {
+                    throw new EvaluationException(ErrorKind.UNDEFINED_VARIABLE,
+                            "Переменная '" + layout.nameOf(slot) + "' не определена");
+                }
+            }
+        }
+
+        // строки с ошибкой получают NaN и отмеченный бит в errors (если он передан); возвращает число таких строк
+        int evaluate(double[][] input, double[] out, int from, int to, long[] errors) {
+            checkColumns(input);
+            if (columns.length < input.length) {
+                columns = new double[input.length][];
+                offsets = new int[input.length];
+            }
+            int failures = 0;
+            for (int start = from; start < to; start += chunkSize) {
+                length = Math.min(chunkSize, to - start);
+                for (int slot = 0; slot < input.length; slot++) {
+                    columns[slot] = input[slot];
+                    offsets[slot] = start;
+                }
+                Arrays.fill(failed, 0, length, false);
+                evaluate(root);
+                double[] result = buffers[0];
+                for (int i = 0; i < length; i++) {
+                    if (failed[i]) {
+                        out[start + i] = Double.NaN;
+                        failures++;
+                    } else {
+                        out[start + i] = result[i];
+                    }
+                }
+                if (errors != null) {
+                    markErrors(errors, start);
+                }
+            }
+            return failures;
+        }
+
+        private void markErrors(long[] errors, int start) {
+            for (int i = 0; i < length; i++) {
+                int row = start + i;
+                long bit = 1L << (row & 63);
+                if (failed[i]) {
+                    errors[row >>> 6] |= bit;
+                } else {
+                    errors[row >>> 6] &= ~bit;
+                }
+            }
+        }
+
+        // буферы распределяются как при рекурсивном обходе: операнд с номером i пишет в буфер depth + i
+        private void evaluate(Node root) {
+            frames = 0;
+            push(root, 0);
+            try {
+                while (frames > 0) {
+                    int top = frames - 1;
+                    if (step(top, frameNodes[top], frameDepths[top], framePhases[top]++)) {
+                        frameNodes[--frames] = null;
+                    }
+                }
+            } catch (RuntimeException | Error ex) {
+                // незавершённые diff возвращают столбцы своих переменных
+                for (int frame = frames - 1; frame >= 0; frame--) {
+                    if (isDerivative(frameNodes[frame]) && framePhases[frame] > 2) {
+                        restoreColumn(frame);
+                    }
+                }
+                Arrays.fill(frameNodes, 0, frames, null);
+                frames = 0;
+                throw ex;
+            }
+        }
+
+        private void push(Node node, int depth) {
+            if (frames == frameNodes.length) {
+                int capacity = frames * 2;
+                frameNodes = Arrays.copyOf(frameNodes, capacity);
+                frameDepths = Arrays.copyOf(frameDepths, capacity);
+                framePhases = Arrays.copyOf(framePhases, capacity);
+                savedColumns = Arrays.copyOf(savedColumns, capacity);
+                savedOffsets = Arrays.copyOf(savedOffsets, capacity);
+            }
+            frameNodes[frames] = node;
+            frameDepths[frames] = depth;
+            framePhases[frames] = 0;
+            frames++;
+        }
+
+        // true — результат узла готов в buffers[depth]; false — положен потомок или нужен следующий шаг
+        private boolean step(int frame, Node node, int depth, int phase) {
+            double[] r = buffers[depth];
+            int n = length;
+            if (node instanceof NumberNode) {
+                Arrays.fill(r, 0, n, ((NumberNode) node).value);
+                return true;
+            }
+            if (node instanceof VariableNode) {
+                int slot = slotOf((VariableNode) node);
+                System.arraycopy(columns[slot], offsets[slot], r, 0, n);
+                return true;
+            }
+            if (node instanceof UnaryMinusNode) {
+                if (phase == 0) {
+                    push(((UnaryMinusNode) node).inner, depth);
+                    return false;
+                }
+                for (int i = 0; i < n; i++) {
+                    r[i] = -r[i];
+                }
+                return true;
+            }
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                if (phase < 2) {
+                    push(phase == 0 ? binary.left : binary.right, depth + phase);
+                    return false;
+                }
+                binary(binary.op, r, buffers[depth + 1], n);
+                return true;
+            }
+            if (isDerivative(node)) {
+                return derivative(frame, (FunctionNode) node, depth, phase);
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                if (phase < function.arguments.size()) {
+                    push(function.arguments.get(phase), depth + phase);
+                    return false;
+                }
+                function(function, depth);
+                return true;
+            }
+            if (node instanceof SharedNode) {
+                SharedNode shared = (SharedNode) node;
+                if (phase == 0 && !sharedReady[shared.index]) {
+                    push(shared.inner, depth);
+                    return false;
+                }
+                if (phase == 0) {
+                    System.arraycopy(sharedColumns[shared.index], 0, r, 0, n);
+                } else {
+                    System.arraycopy(r, 0, sharedColumns[shared.index], 0, n);
+                    sharedReady[shared.index] = true;
+                }
+                return true;
+            }
+            if (node instanceof SharedScopeNode) {
+                if (phase == 0) {
+                    Arrays.fill(sharedReady, false);
+                    push(((SharedScopeNode) node).inner, depth);
+                    return false;
+                }
+                return true;
+            }
+            if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                if (phase < 2) {
+                    push(phase == 0 ? solve.lo : solve.hi, depth + phase);
+                    return false;
+                }
+                solve(solve, depth);
+                return true;
+            }
+            throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                    "Узел " + node.getClass().getSimpleName() + " не поддерживается");
+        }
+
+        private int slotOf(VariableNode variable) {
+            return variable.layout == layout ? variable.slot : layout.slotOf(variable.name);
+        }
+
+        private static boolean isDerivative(Node node) {
+            return node instanceof FunctionNode && "diff".equals(((FunctionNode) node).canonicalName);
+        }
+
+        private void binary(String op, double[] a, double[] b, int n) {
+            switch (op) {
+                case "+":
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] + b[i];
+                    }
+                    break;
+                case "-":
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] - b[i];
+                    }
+                    break;
+                case "*":
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] * b[i];
+                    }
+                    break;
+                case "/":
+                    for (int i = 0; i < n; i++) {
+                        failed[i] |= Math.abs(b[i]) < 1e-12;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        a[i] = a[i] / b[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        a[i] = Math.pow(a[i], b[i]);
+                    }
+                    break;
+            }
+        }
+
+        // аргументы уже лежат в buffers[depth + i]
+        private void function(FunctionNode function, int depth) {
+            double[] r = buffers[depth];
+            int n = length;
+            switch (function.function.getOpcode()) {
+                case Program.SIN:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.sin(r[i]);
+                    }
+                    break;
+                case Program.COS:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.cos(r[i]);
+                    }
+                    break;
+                case Program.TAN:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.tan(r[i]);
+                    }
+                    break;
+                case Program.LN:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.log(r[i]);
+                    }
+                    break;
+                case Program.LOG10:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.log10(r[i]);
+                    }
+                    break;
+                case Program.SQRT:
+                    for (int i = 0; i < n; i++) {
+                        failed[i] |= r[i] < 0;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.sqrt(r[i]);
+                    }
+                    break;
+                case Program.ABS:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.abs(r[i]);
+                    }
+                    break;
+                case Program.SIGN:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.signum(r[i]);
+                    }
+                    break;
+                case Program.EXP:
+                    for (int i = 0; i < n; i++) {
+                        r[i] = Math.exp(r[i]);
+                    }
+                    break;
+                case Program.POW:
+                    binary("^", r, buffers[depth + 1], n);
+                    break;
+                default:
+                    call(function.function, depth, n);
+                    break;
+            }
+        }
+
+        // функции без своего цикла: по одному вызову на строку, исключение отмечает только свою строку
+        private void call(MathFunction function, int depth, int n) {
+            double[] r = buffers[depth];
+            int arity = function.getArity();
+            double[] values = new double[arity];
+            for (int i = 0; i < n; i++) {
+                try {
+                    if (arity == 1) {
+                        r[i] = function.applyAsDouble(r[i]);
+                    } else if (arity == 2) {
+                        r[i] = function.applyAsDouble(r[i], buffers[depth + 1][i]);
+                    } else {
+                        for (int a = 0; a < arity; a++) {
+                            values[a] = buffers[depth + a][i];
+                        }
+                        r[i] = function.applyAsDouble(values);
+                    }
+                } catch (EvaluationException ex) {
+                    failed[i] = true;
+                    r[i] = Double.NaN;
+                }
+            }
+        }
+
+        // точка — в depth + 1, шаг — в depth + 2; выражение считается дважды в depth + 4 при подменённом
+        // столбце переменной, первый результат сохраняется в depth
+        private boolean derivative(int frame, FunctionNode function, int depth, int phase) {
+            List<Node> args = function.arguments;
+            double[] result = buffers[depth];
+            double[] point = buffers[depth + 1];
+            double[] step = buffers[depth + 2];
+            double[] shifted = buffers[depth + 3];
+            double[] minus = buffers[depth + 4];
+            int n = length;
+            switch (phase) {
+                case 0:
+                    push(args.get(2), depth + 1);
+                    return false;
+                case 1:
+                    if (args.size() == 4) {
+                        push(args.get(3), depth + 2);
+                    }
+                    return false;
+                case 2: {
+                    int slot = slotOf((VariableNode) args.get(1));
+                    savedColumns[frame] = slot < columns.length ? columns[slot] : null;
+                    savedOffsets[frame] = slot < offsets.length ? offsets[slot] : 0;
+                    if (args.size() == 4) {
+                        for (int i = 0; i < n; i++) {
+                            double h = Math.abs(step[i]);
+                            step[i] = h == 0.0 ? 1e-5 : h;
+                        }
+                    } else {
+                        for (int i = 0; i < n; i++) {
+                            step[i] = 1e-5 * Math.max(1.0, Math.abs(point[i]));
+                        }
+                    }
+                    if (slot >= columns.length) {
+                        columns = Arrays.copyOf(columns, slot + 1);
+                        offsets = Arrays.copyOf(offsets, slot + 1);
+                    }
+                    columns[slot] = shifted;
+                    offsets[slot] = 0;
+                    for (int i = 0; i < n; i++) {
+                        shifted[i] = point[i] + step[i];
+                    }
+                    push(args.get(0), depth + 4);
+                    return false;
+                }
+                case 3:
+                    System.arraycopy(minus, 0, result, 0, n);
+                    for (int i = 0; i < n; i++) {
+                        shifted[i] = point[i] - step[i];
+                    }
+                    push(args.get(0), depth + 4);
+                    return false;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        result[i] = (result[i] - minus[i]) / (2.0 * step[i]);
+                    }
+                    restoreColumn(frame);
+                    return true;
+            }
+        }
+
+        private void restoreColumn(int frame) {
+            int slot = slotOf((VariableNode) ((FunctionNode) frameNodes[frame]).arguments.get(1));
+            columns[slot] = savedColumns[frame];
+            offsets[slot] = savedOffsets[frame];
+            savedColumns[frame] = null;
+        }
+
+        // у каждой строки свой поиск: свободные переменные выражения переносятся из столбцов в контекст,
+        // а ошибка поиска отмечает только свою строку
+        private void solve(SolveNode solve, int depth) {
+            double[] r = buffers[depth];
+            double[] upper = buffers[depth + 1];
+            int[] slots = solveSlots.get(solve);
+            if (slots == null) {
+                Set<String> names = new TreeSet<>();
+                solve.collectVariables(names);
+                slots = new int[names.size()];
+                int next = 0;
+                for (String name : names) {
+                    slots[next++] = layout.slotOf(name);
+                }
+                solveSlots.put(solve, slots);
+            }
+            if (solveContext == null) {
+                solveContext = new EvaluationContext(layout);
+            }
+            double[] stack = solveContext.stack(solve.maxStack);
+            double[] shared = solveContext.sharedValues(0);
+            for (int i = 0; i < length; i++) {
+                for (int slot : slots) {
+                    solveContext.setSlot(slot, columns[slot][offsets[slot] + i]);
+                }
+                try {
+                    r[i] = solve.solve(solveContext, stack, 0, shared, r[i], upper[i]);
+                } catch (EvaluationException ex) {
+                    failed[i] = true;
+                    r[i] = Double.NaN;
+                }
+            }
+        }
+
+        // ошибки, которые одинаковы для всех строк, сообщаем сразу, а не построчно; обходятся аргументы функций
+        // (включая выражение diff) и границы solve, но не тело solve — оно считается отдельной программой
+        private static void validate(Node root) {
+            Deque<Node> pending = new ArrayDeque<>();
+            Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (!seen.add(node)) {
+                    continue;
+                }
+                if (isDerivative(node)) {
+                    FunctionNode function = (FunctionNode) node;
+                    if (function.arguments.size() < 3 || function.arguments.size() > 4) {
+                        throw new EvaluationException(ErrorKind.UNSUPPORTED, "diff ожидает 3 или 4 аргумента");
+                    }
+                    if (!(function.arguments.get(1) instanceof VariableNode)) {
+                        throw new EvaluationException(ErrorKind.UNSUPPORTED,
+                                "Во втором аргументе diff нужно указать имя переменной");
+                    }
+                }
+                List<Node> children = node instanceof FunctionNode
+                        ? ((FunctionNode) node).arguments
+                        : Nodes.evaluatedChildren(node);
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    pending.push(children.get(i));
+                }
+            }
+        }
+
+        // число буферов при обходе: операнд с номером i занимает буферы начиная с depth + i
+        private static int requiredBuffers(Node root) {
+            Map<Node, Integer> required = new IdentityHashMap<>();
+            for (Node node : Nodes.postOrder(root, false)) {
+                List<Node> children = Nodes.children(node);
+                int buffers = 1;
+                if (isDerivative(node)) {
+                    buffers = 4 + required.get(children.get(0));
+                    for (int i = 2; i < children.size(); i++) {
+                        buffers = Math.max(buffers, i - 1 + required.get(children.get(i)));
+                    }
+                } else if (node instanceof SolveNode) {
+                    SolveNode solve = (SolveNode) node;
+                    buffers = Math.max(required.get(solve.lo), 1 + required.get(solve.hi));
+                } else {
+                    for (int i = 0; i < children.size(); i++) {
+                        buffers = Math.max(buffers, i + required.get(children.get(i)));
+                    }
+                }
+                required.put(node, buffers);
+            }
+            return required.get(root);
+        }
+    }
+
+    // безынтерактивный режим: формула и поток CSV/TSV с заголовком, на каждую строку данных — строка результата.
+    // Для набора формул вывод начинается со строки их имён, а в каждой строке по столбцу на формулу
+    private static final class CsvProcessor {
+        static final int ROWS_PER_BLOCK = 8 * BatchEvaluator.DEFAULT_CHUNK;
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        // ровно одно из двух: одиночная формула или набор
+        private final CompiledExpression expression;
+        private final FormulaSet formulas;
+        private final BatchEvaluator evaluator;
+        private final FormulaSet.RowEvaluator rowEvaluator;
+        private final VariableLayout layout;
+        private final List<String> variables;
+        private final double[][] columns;
+        private final double[][] results;
+        private final long[] errors = new long[ROWS_PER_BLOCK / 64];
+        private final String[] malformed = new String[ROWS_PER_BLOCK];
+        private final long[] lineOfRow = new long[ROWS_PER_BLOCK];
+        private final StringBuilder field = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+        private byte[] output = new byte[0];
+        private byte delimiter;
+        private int[] slotOfColumn;
+        private int requiredColumns;
+        private boolean header = true;
+        private int rows = 0;
+        private long lineNumber = 0;
+        private long rowCount = 0;
+        private long failureCount = 0;
+        private String firstFailure;
+
+        // delimiter == 0 — разделитель определяется по заголовку
+        CsvProcessor(CompiledExpression expression, byte delimiter) {
+            this(expression, null, expression.getLayout(), expression.getVariables(), 1, delimiter);
+        }
+
+        CsvProcessor(FormulaSet formulas, byte delimiter) {
+            this(null, formulas, formulas.getLayout(), formulas.getVariables(), formulas.getNames().size(), delimiter);
+        }
+
+        private CsvProcessor(CompiledExpression expression, FormulaSet formulas, VariableLayout layout,
+                             List<String> variables, int outputs, byte delimiter) {
+            this.expression = expression;
+            this.formulas = formulas;
+            this.evaluator = expression == null ? null : new BatchEvaluator(expression.getRoot(), layout);
+            this.rowEvaluator = formulas == null ? null : formulas.newRowEvaluator();
+            this.layout = layout;
+            this.variables = variables;
+            this.delimiter = delimiter;
+            this.columns = new double[layout.size()][];
+            for (String name : variables) {
+                columns[layout.slotOf(name)] = new double[ROWS_PER_BLOCK];
+            }
+            this.results = new double[outputs][ROWS_PER_BLOCK];
+        }
+
+        long getRowCount() {
+            return rowCount;
+        }
+
+        long getFailureCount() {
+            return failureCount;
+        }
+
+        String getFirstFailure() {
+            return firstFailure;
+        }
+
+        // память ограничена буфером чтения и одним блоком строк, сколько бы ни весил вход
+        void process(ReadableByteChannel in, OutputStream out) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int scanned = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = in.read(buffer) < 0;
+                byte[] data = buffer.array();
+                int limit = buffer.position();
+                int start = 0;
+                for (int i = scanned; i < limit; i++) {
+                    if (data[i] == '\n') {
+                        line(data, start, i, out);
+                        start = i + 1;
+                    }
+                }
+                if (eof && start < limit) {
+                    line(data, start, limit, out);
+                    start = limit;
+                }
+                if (start == 0 && limit == data.length) {
+                    // строка длиннее буфера
+                    ByteBuffer larger = ByteBuffer.allocate(data.length * 2);
+                    larger.put(data, 0, limit);
+                    buffer = larger;
+                } else {
+                    System.arraycopy(data, start, data, 0, limit - start);
+                    buffer.position(limit - start);
+                }
+                scanned = limit - start;
+            }
+            if (header) {
+                throw new IOException("Во входных данных нет строки заголовка");
+            }
+            flushBlock(out);
+            out.flush();
+        }
+
+        private void line(byte[] data, int from, int to, OutputStream out) throws IOException {
+            lineNumber++;
+            if (to > from && data[to - 1] == '\r') {
+                to--;
+            }
+            if (header) {
+                readHeader(new String(data, from, to - from, StandardCharsets.UTF_8));
+                header = false;
+                if (formulas != null) {
+                    String names = String.join(String.valueOf((char) delimiter), formulas.getNames()) + "\n";
+                    out.write(names.getBytes(StandardCharsets.UTF_8));
+                }
+                return;
+            }
+            if (isBlank(data, from, to)) {
+                return;
+            }
+            readRow(data, from, to);
+            if (rows == ROWS_PER_BLOCK) {
+                flushBlock(out);
+            }
+        }
+
+        private void readHeader(String line) throws IOException {
+            if (delimiter == 0) {
+                delimiter = line.indexOf('\t') >= 0 ? (byte) '\t' : line.indexOf(';') >= 0 ? (byte) ';' : (byte) ',';
+            }
+            String[] names = line.split(Pattern.quote(String.valueOf((char) delimiter)), -1);
+            slotOfColumn = new int[names.length];
+            Arrays.fill(slotOfColumn, -1);
+            for (String variable : variables) {
+                int column = -1;
+                for (int i = 0; i < names.length && column < 0; i++) {
+                    if (variable.equals(unquote(names[i].trim()))) {
+                        column = i;
+                    }
+                }
+                if (column < 0) {
+                    throw new IOException("В заголовке нет столбца для переменной '" + variable + "'");
+                }
+                slotOfColumn[column] = layout.slotOf(variable);
+                requiredColumns = Math.max(requiredColumns, column + 1);
+            }
+        }
+
+        private void readRow(byte[] data, int from, int to) {
+            int row = rows++;
+            lineOfRow[row] = lineNumber;
+            int column = 0;
+            int fieldStart = from;
+            for (int i = from; i <= to && column < requiredColumns; i++) {
+                if (i < to && data[i] != delimiter) {
+                    continue;
+                }
+                int slot = slotOfColumn[column];
+                if (slot >= 0 && !readNumber(data, fieldStart, i, columns[slot], row)) {
+                    reject(row, "не удалось прочитать число '" + new String(data, fieldStart, i - fieldStart,
+                            StandardCharsets.UTF_8).trim() + "' для переменной '" + layout.nameOf(slot) + "'");
+                    return;
+                }
+                column++;
+                fieldStart = i + 1;
+            }
+            if (column < requiredColumns) {
+                reject(row, "столбцов меньше, чем в заголовке");
+            }
+        }
+
+        // десятичная запятая допустима, если она не служит разделителем столбцов
+        private boolean readNumber(byte[] data, int from, int to, double[] column, int row) {
+            while (from < to && data[from] == ' ') {
+                from++;
+            }
+            while (to > from && data[to - 1] == ' ') {
+                to--;
+            }
+            if (from == to) {
+                return false;
+            }
+            field.setLength(0);
+            for (int i = from; i < to; i++) {
+                char c = (char) (data[i] & 0xFF);
+                field.append(c == ',' && delimiter != ',' ? '.' : c);
+            }
+            try {
+                column[row] = Tokenizer.parseNumber(field, 0, field.length());
+                return true;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+
+        private void reject(int row, String reason) {
+            malformed[row] = reason;
+            for (double[] column : columns) {
+                if (column != null) {
+                    column[row] = 0.0;
+                }
+            }
+        }
+
+        private void flushBlock(OutputStream out) throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            if (formulas == null) {
+                Metrics.rows(expression, rows, evaluator.evaluate(columns, results[0], rows, errors));
+            } else {
+                rowEvaluator.evaluate(columns, results, rows, errors);
+            }
+            text.setLength(0);
+            for (int i = 0; i < rows; i++) {
+                boolean failed = malformed[i] != null || (errors[i >>> 6] & (1L << (i & 63))) != 0;
+                if (failed) {
+                    failureCount++;
+                    if (firstFailure == null) {
+                        firstFailure = "строка " + lineOfRow[i] + ": " + (malformed[i] != null ? malformed[i]
+                                : formulas == null ? expression.describeFailure(columns, i)
+                                : rowEvaluator.describeFailure(columns, i));
+                    }
+                }
+                for (int k = 0; k < results.length; k++) {
+                    if (k > 0) {
+                        text.append((char) delimiter);
+                    }
+                    // у набора формул при ошибке в строке свои значения сохраняют формулы, от неё не зависящие
+                    if (malformed[i] != null || (failed && formulas == null)) {
+                        text.append("NaN");
+                    } else {
+                        text.append(results[k][i]);
+                    }
+                }
+                text.append('\n');
+            }
+            int length = text.length();
+            if (output.length < length) {
+                output = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                output[i] = (byte) text.charAt(i);
+            }
+            out.write(output, 0, length);
+            Arrays.fill(malformed, 0, rows, null);
+            rowCount += rows;
+            rows = 0;
+        }
+
+        private static boolean isBlank(byte[] data, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (data[i] != ' ' && data[i] != '\t') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String unquote(String name) {
+            if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                return name.substring(1, name.length() - 1);
+            }
+            return name;
+        }
+    }
+
+    // двоичный столбцовый формат: заголовок с именами столбцов, затем столбцы double подряд в порядке little-endian
+    private static final class ColumnarFile {
+        static final int MAGIC = 0x4C4F4343; // "CCOL" в little-endian
+        static final int VERSION = 1;
+        private static final int FIXED_HEADER = 20;
+
+        private final List<String> names;
+        private final long rows;
+        private final long dataOffset;
+
+        private ColumnarFile(List<String> names, long rows, long dataOffset) {
+            this.names = names;
+            this.rows = rows;
+            this.dataOffset = dataOffset;
+        }
+
+        List<String> getNames() {
+            return names;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        long columnOffset(int column) {
+            return dataOffset + (long) column * rows * Double.BYTES;
+        }
+
+        static ColumnarFile read(FileChannel channel) throws IOException {
+            ByteBuffer fixed = readFully(channel, 0, FIXED_HEADER);
+            if (fixed.getInt() != MAGIC) {
+                throw new IOException("Файл не в столбцовом формате");
+            }
+            int version = fixed.getInt();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия столбцового формата: " + version);
+            }
+            int count = fixed.getInt();
+            long rows = fixed.getLong();
+            // каждое имя занимает хотя бы поле длины, так что count ограничен размером файла ещё до выделения списка
+            if (count < 0 || rows < 0 || count > (channel.size() - FIXED_HEADER) / Integer.BYTES) {
+                throw new IOException("Повреждён заголовок столбцового файла");
+            }
+            List<String> names = new ArrayList<>(count);
+            long position = FIXED_HEADER;
+            for (int i = 0; i < count; i++) {
+                int length = readFully(channel, position, Integer.BYTES).getInt();
+                if (length < 0 || length > 65535) {
+                    throw new IOException("Повреждён заголовок столбцового файла");
+                }
+                ByteBuffer name = readFully(channel, position + Integer.BYTES, length);
+                names.add(new String(name.array(), 0, length, StandardCharsets.UTF_8));
+                position += Integer.BYTES + length;
+            }
+            ColumnarFile file = new ColumnarFile(Collections.unmodifiableList(names), rows, align(position));
+            // сравнение через деление: rows * count * 8 из повреждённого заголовка может переполнить long
+            long available = channel.size() - file.dataOffset;
+            if (available < 0 || count > 0 && rows > available / Double.BYTES / count) {
+                throw new IOException("Столбцовый файл короче, чем указано в заголовке");
+            }
+            return file;
+        }
+
+        static ColumnarFile write(FileChannel channel, List<String> names, long rows) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (String name : names) {
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                bytes.write(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(encoded.length).array());
+                bytes.write(encoded);
+            }
+            long dataOffset = align(FIXED_HEADER + bytes.size());
+            ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(names.size()).putLong(rows).put(bytes.toByteArray());
+            header.clear();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            return new ColumnarFile(Collections.unmodifiableList(new ArrayList<>(names)), rows, dataOffset);
+        }
+
+        // столбцы выровнены по 8 байт, чтобы окна отображения совпадали с границами double
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+
+        private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Неожиданный конец столбцового файла");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // столбцы входа и результата отображаются через FileChannel.map по одному разу на участок, так что файл
+    // может быть больше памяти; окна строк читаются и пишутся через DoubleBuffer этих участков
+    private static final class ColumnarProcessor {
+        static final int ROWS_PER_WINDOW = 1 << 20;
+        // одно отображение не может превышать 2 ГБ, поэтому длинный столбец делится на участки по 1 ГБ
+        static final int REGION_ROWS = 1 << 27;
+        static final String RESULT_COLUMN = "result";
+
+        // ровно одно из двух: одиночная формула пишет столбец result, набор — по столбцу на формулу
+        private final CompiledExpression expression;
+        private final FormulaSet formulas;
+        private final int windowRows;
+        private long failureCount = 0;
+        private String firstFailure;
+
+        ColumnarProcessor(CompiledExpression expression) {
+            this(expression, ROWS_PER_WINDOW);
+        }
+
+        ColumnarProcessor(CompiledExpression expression, int windowRows) {
+            this(expression, null, windowRows);
+        }
+
+        ColumnarProcessor(FormulaSet formulas) {
+            this(null, formulas, ROWS_PER_WINDOW);
+        }
+
+        private ColumnarProcessor(CompiledExpression expression, FormulaSet formulas, int windowRows) {
+            if (windowRows <= 0 || windowRows > REGION_ROWS || windowRows % BatchEvaluator.DEFAULT_CHUNK != 0) {
+                throw new IllegalArgumentException("Размер окна должен быть от 1 до " + REGION_ROWS
+                        + " строк и кратным " + BatchEvaluator.DEFAULT_CHUNK);
+            }
+            this.expression = expression;
+            this.formulas = formulas;
+            this.windowRows = windowRows;
+        }
+
+        long getFailureCount() {
+            return failureCount;
+        }
+
+        String getFirstFailure() {
+            return firstFailure;
+        }
+
+        // возвращает число обработанных строк; строки с ошибкой получают NaN
+        long process(Path input, Path output) throws IOException {
+            VariableLayout layout = formulas == null ? expression.getLayout() : formulas.getLayout();
+            List<String> variables = formulas == null ? expression.getVariables() : formulas.getVariables();
+            List<String> outputs = formulas == null ? Collections.singletonList(RESULT_COLUMN) : formulas.getNames();
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                 ParallelBatchEvaluator evaluator = formulas != null ? null
+                         : new ParallelBatchEvaluator(expression.getRoot(), layout)) {
+                FormulaSet.RowEvaluator rowEvaluator = formulas == null ? null : formulas.newRowEvaluator();
+                ColumnarFile source = ColumnarFile.read(in);
+                double[][] columns = new double[layout.size()][];
+                int[] columnOfSlot = new int[layout.size()];
+                for (String variable : variables) {
+                    int column = source.getNames().indexOf(variable);
+                    if (column < 0) {
+                        throw new IOException("Во входном файле нет столбца для переменной '" + variable + "'");
+                    }
+                    int slot = layout.slotOf(variable);
+                    columns[slot] = new double[windowRows];
+                    columnOfSlot[slot] = column;
+                }
+                ColumnarFile target = ColumnarFile.write(out, outputs, source.getRows());
+                double[][] results = new double[outputs.size()][windowRows];
+                long[] errors = new long[windowRows / 64];
+                // участок вмещает целое число окон, поэтому окно никогда не пересекает границу участка
+                long regionRows = (long) (REGION_ROWS / windowRows) * windowRows;
+                DoubleBuffer[] inputs = new DoubleBuffer[columns.length];
+                DoubleBuffer[] written = new DoubleBuffer[outputs.size()];
+                for (long start = 0; start < source.getRows(); start += windowRows) {
+                    int rows = (int) Math.min(windowRows, source.getRows() - start);
+                    long region = start - start % regionRows;
+                    if (region == start) {
+                        long length = Math.min(regionRows, source.getRows() - region);
+                        for (int slot = 0; slot < columns.length; slot++) {
+                            if (columns[slot] != null) {
+                                inputs[slot] = map(in, FileChannel.MapMode.READ_ONLY,
+                                        source.columnOffset(columnOfSlot[slot]), region, length);
+                            }
+                        }
+                        for (int k = 0; k < written.length; k++) {
+                            written[k] = map(out, FileChannel.MapMode.READ_WRITE, target.columnOffset(k), region, length);
+                        }
+                    }
+                    int at = (int) (start - region);
+                    for (int slot = 0; slot < columns.length; slot++) {
+                        if (columns[slot] != null) {
+                            inputs[slot].get(at, columns[slot], 0, rows);
+                        }
+                    }
+                    int failures;
+                    if (formulas == null) {
+                        failures = evaluator.evaluate(columns, results[0], rows, errors);
+                        Metrics.rows(expression, rows, failures);
+                    } else {
+                        failures = rowEvaluator.evaluate(columns, results, rows, errors);
+                    }
+                    if (failures > 0) {
+                        recordFailures(columns, errors, rows, start, failures, rowEvaluator);
+                    }
+                    for (int k = 0; k < written.length; k++) {
+                        written[k].put(at, results[k], 0, rows);
+                    }
+                }
+                return source.getRows();
+            }
+        }
+
+        private static DoubleBuffer map(FileChannel channel, FileChannel.MapMode mode, long columnOffset, long firstRow,
+                                        long rows) throws IOException {
+            return channel.map(mode, columnOffset + firstRow * Double.BYTES, rows * Double.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+
+        private void recordFailures(double[][] columns, long[] errors, int rows, long start, int failures,
+                                    FormulaSet.RowEvaluator rowEvaluator) {
+            failureCount += failures;
+            if (firstFailure != null) {
+                return;
+            }
+            for (int word = 0; word * 64 < rows; word++) {
+                if (errors[word] != 0) {
+                    int row = word * 64 + Long.numberOfTrailingZeros(errors[word]);
+                    firstFailure = "строка " + (start + row + 1) + ": " + (rowEvaluator == null
+                            ? expression.describeFailure(columns, row) : rowEvaluator.describeFailure(columns, row));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class ParallelBatchEvaluator implements AutoCloseable {
+        private final Node root;
+        private final VariableLayout layout;
+        private final int chunkSize;
+        private final ForkJoinPool pool;
+        private final boolean ownsPool;
+        private final BatchEvaluator checker;
+        // свободные вычислители принадлежат этому объекту, а не потокам пула: буферы уходят вместе с ним,
+        // а очередь ограничена параллелизмом, так что лишние экземпляры после всплеска просто отбрасываются
+        private final ArrayBlockingQueue<BatchEvaluator> idle;
+
+        ParallelBatchEvaluator(Node root, VariableLayout layout) {
+            this(root, layout, BatchEvaluator.DEFAULT_CHUNK, ForkJoinPool.commonPool(), false);
+        }
+
+        ParallelBatchEvaluator(Node root, VariableLayout layout, int chunkSize, ForkJoinPool pool) {
+            this(root, layout, chunkSize, pool, false);
+        }
+
+        private ParallelBatchEvaluator(Node root, VariableLayout layout, int chunkSize, ForkJoinPool pool, boolean ownsPool) {
+            this.root = root;
+            this.layout = layout;
+            this.chunkSize = chunkSize;
+            this.pool = pool;
+            this.ownsPool = ownsPool;
+            this.checker = new BatchEvaluator(root, layout, chunkSize);
+            this.idle = new ArrayBlockingQueue<>(Math.max(1, pool.getParallelism()));
+        }
+
+        static ParallelBatchEvaluator withParallelism(Node root, VariableLayout layout, int chunkSize, int parallelism) {
+            return new ParallelBatchEvaluator(root, layout, chunkSize, new ForkJoinPool(parallelism), true);
+        }
+
+        double[][] columnsByName(Map<String, double[]> byName) {
+            return checker.columnsByName(byName);
+        }
+
+        int evaluate(double[][] input, double[] out, int rows, long[] errors) {
+            checker.checkColumns(input);
+            // каждый лист обрабатывает целые блоки, кратные 64 строкам, поэтому слова битовой карты не делятся между потоками
+            int blocks = (rows + chunkSize - 1) / chunkSize;
+            int leafBlocks = Math.max(1, blocks / (pool.getParallelism() * 8));
+            return pool.invoke(new Slice(input, out, errors, 0, blocks, leafBlocks, rows));
+        }
+
+        @Override
+        public void close() {
+            if (ownsPool) {
+                pool.shutdown();
+            }
+        }
+
+        private final class Slice extends RecursiveTask<Integer> {
+            private static final long serialVersionUID = 1L;
+
+            private final double[][] input;
+            private final double[] out;
+            private final long[] errors;
+            private final int firstBlock;
+            private final int endBlock;
+            private final int leafBlocks;
+            private final int rows;
+
+            Slice(double[][] input, double[] out, long[] errors, int firstBlock, int endBlock, int leafBlocks, int rows) {
+                this.input = input;
+                this.out = out;
+                this.errors = errors;
+                this.firstBlock = firstBlock;
+                this.endBlock = endBlock;
+                this.leafBlocks = leafBlocks;
+                this.rows = rows;
+            }
+
+            @Override
+            protected Integer compute() {
+                if (endBlock - firstBlock <= leafBlocks) {
+                    int from = firstBlock * chunkSize;
+                    int to = (int) Math.min((long) endBlock * chunkSize, rows);
+                    BatchEvaluator worker = idle.poll();
+                    if (worker == null) {
+                        worker = new BatchEvaluator(root, layout, chunkSize);
+                    }
+                    try {
+                        return worker.evaluate(input, out, from, to, errors);
+                    } finally {
+                        idle.offer(worker);
+                    }
+                }
+                int middle = (firstBlock + endBlock) >>> 1;
+                Slice left = new Slice(input, out, errors, firstBlock, middle, leafBlocks, rows);
+                left.fork();
+                int right = new Slice(input, out, errors, middle, endBlock, leafBlocks, rows).compute();
+                return left.join() + right;
+            }
+        }
+    }
+
+    private static final class CompiledExpression {
+        private final String source;
+        private final Node root;
+        private final VariableLayout layout;
+        private final List<String> variables;
+        private final Program program;
+        // заводится при первом замеренном вычислении
+        private volatile Metrics.ExpressionStats stats;
+
+        private CompiledExpression(String source, Node root, VariableLayout layout) {
+            this.source = source;
+            this.root = root;
+            this.layout = layout;
+            Set<String> names = new TreeSet<>();
+            root.collectVariables(names);
+            this.variables = Collections.unmodifiableList(new ArrayList<>(names));
+            this.program = new ProgramCompiler(layout).compile(root);
+        }
+
+        static CompiledExpression compile(String source) throws ParseException {
+            Parser parser = new Parser(source);
+            Node root = new Optimizer().optimize(parser.parse());
+            return new CompiledExpression(source, root, parser.getLayout());
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        Node getRoot() {
+            return root;
+        }
+
+        VariableLayout getLayout() {
+            return layout;
+        }
+
+        List<String> getVariables() {
+            return variables;
+        }
+
+        EvaluationContext newContext() {
+            return new EvaluationContext(layout);
+        }
+
+        double evaluate(EvaluationContext context) {
+            if (Metrics.isEnabled()) {
+                return Metrics.evaluate(this, context);
+            }
+            return program.evaluate(context);
+        }
+
+        // пакетный вычислитель сообщений не хранит, поэтому ошибку строки повторяем на интерпретаторе
+        String describeFailure(double[][] columns, int row) {
+            EvaluationContext context = newContext();
+            context.setQuiet(true);
+            for (int slot = 0; slot < columns.length; slot++) {
+                if (columns[slot] != null) {
+                    context.setSlot(slot, columns[slot][row]);
+                }
+            }
+            program.evaluate(context);
+            return context.getErrorCode() == 0 ? "ошибка вычисления" : context.getErrorMessage();
+        }
+    }
+
+    // семейство именованных формул над общими переменными; формулы могут ссылаться на результаты друг друга
+    private static final class FormulaSet {
+        private final List<String> names;
+        private final List<Node> roots;
+        private final VariableLayout layout;
+        private final List<String> variables;
+
+        private FormulaSet(List<String> names, List<Node> roots, VariableLayout layout) {
+            this.names = Collections.unmodifiableList(names);
+            this.roots = Collections.unmodifiableList(roots);
+            this.layout = layout;
+            Set<String> free = new TreeSet<>();
+            for (Node root : roots) {
+                root.collectVariables(free);
+            }
+            this.variables = Collections.unmodifiableList(new ArrayList<>(free));
+        }
+
+        // ссылки подставляются при разборе, одинаковые поддеревья всех формул сливаются в один узел
+        static FormulaSet compile(Map<String, String> formulas) throws ParseException {
+            Map<String, Set<String>> references = new LinkedHashMap<>();
+            for (Map.Entry<String, String> formula : formulas.entrySet()) {
+                checkName(formula.getKey());
+                references.put(formula.getKey(), referencedNames(formula.getValue(), formulas.keySet()));
+            }
+            VariableLayout layout = new VariableLayout();
+            Map<String, Node> definitions = new HashMap<>();
+            for (String name : topologicalOrder(references)) {
+                Parser parser = new Parser(formulas.get(name), layout, definitions);
+                definitions.put(name, Optimizer.simplify(parser.parse()));
+            }
+            Optimizer keys = new Optimizer();
+            Map<Integer, Node> canonical = new HashMap<>();
+            List<String> names = new ArrayList<>(formulas.keySet());
+            List<Node> roots = new ArrayList<>(names.size());
+            for (String name : names) {
+                roots.add(intern(definitions.get(name), keys, canonical));
+            }
+            return new FormulaSet(names, roots, layout);
+        }
+
+        // "имя = выражение" через ';' или с новой строки, как в --batch
+        static FormulaSet parse(String text) throws ParseException {
+            Map<String, String> formulas = new LinkedHashMap<>();
+            for (String definition : text.split("[;\\n]")) {
+                if (definition.trim().isEmpty()) {
+                    continue;
+                }
+                int eq = definition.indexOf('=');
+                if (eq < 0) {
+                    throw new ParseException("Ожидалось 'имя = выражение': '" + definition.trim() + "'");
+                }
+                String name = definition.substring(0, eq).trim();
+                if (formulas.put(name, definition.substring(eq + 1).trim()) != null) {
+                    throw new ParseException("Формула '" + name + "' задана дважды");
+                }
+            }
+            if (formulas.isEmpty()) {
+                throw new ParseException("Не задано ни одной формулы");
+            }
+            return compile(formulas);
+        }
+
+        // набор формул в пакетном режиме распознаётся по присваиванию
+        static boolean isDefinition(String text) {
+            return text.indexOf('=') >= 0;
+        }
+
+        List<String> getNames() {
+            return names;
+        }
+
+        int indexOf(String name) {
+            return names.indexOf(name);
+        }
+
+        Node getRoot(String name) {
+            int index = indexOf(name);
+            return index < 0 ? null : roots.get(index);
+        }
+
+        VariableLayout getLayout() {
+            return layout;
+        }
+
+        // входные переменные всех формул; ссылки на другие формулы сюда не попадают
+        List<String> getVariables() {
+            return variables;
+        }
+
+        // вычислитель не потокобезопасен: по одному на поток
+        IncrementalEvaluator newEvaluator() {
+            return new IncrementalEvaluator(roots, layout);
+        }
+
+        RowEvaluator newRowEvaluator() {
+            return new RowEvaluator(this);
+        }
+
+        // пакетное вычисление по строкам: все формулы строки считаются за один проход по общей сети узлов,
+        // так что общее подвыражение вычисляется один раз на строку. Не потокобезопасен
+        static final class RowEvaluator {
+            private final FormulaSet set;
+            private final IncrementalEvaluator evaluator;
+            private final EvaluationContext context;
+            private final int[] slots;
+            private final double[] values;
+
+            RowEvaluator(FormulaSet set) {
+                this.set = set;
+                this.evaluator = set.newEvaluator();
+                this.context = new EvaluationContext(set.layout);
+                this.slots = new int[set.variables.size()];
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] = set.layout.slotOf(set.variables.get(i));
+                }
+                this.values = new double[set.roots.size()];
+            }
+
+            IncrementalEvaluator getEvaluator() {
+                return evaluator;
+            }
+
+            // columns — по слоту переменной, results[k] — столбец k-й формулы; ячейки формул с ошибкой
+            // получают NaN, а строка отмечается в errors. Возвращает число строк с ошибкой
+            int evaluate(double[][] columns, double[][] results, int rows, long[] errors) {
+                Arrays.fill(errors, 0, (rows + 63) >>> 6, 0L);
+                int failures = 0;
+                for (int row = 0; row < rows; row++) {
+                    for (int slot : slots) {
+                        evaluator.setSlot(slot, columns[slot][row]);
+                    }
+                    try {
+                        evaluator.evaluate(values);
+                        for (int k = 0; k < values.length; k++) {
+                            results[k][row] = values[k];
+                        }
+                    } catch (EvaluationException ex) {
+                        // формулы, которые от ошибки не зависят, всё равно получают свои значения
+                        load(columns, row);
+                        for (int k = 0; k < values.length; k++) {
+                            try {
+                                results[k][row] = set.roots.get(k).evaluate(context);
+                            } catch (EvaluationException failed) {
+                                results[k][row] = Double.NaN;
+                            }
+                        }
+                        errors[row >>> 6] |= 1L << (row & 63);
+                        failures++;
+                    }
+                }
+                return failures;
+            }
+
+            // первая формула строки, вычисление которой не удалось, и причина
+            String describeFailure(double[][] columns, int row) {
+                load(columns, row);
+                for (int k = 0; k < values.length; k++) {
+                    try {
+                        set.roots.get(k).evaluate(context);
+                    } catch (EvaluationException ex) {
+                        return set.names.get(k) + ": " + ex.getMessage();
+                    }
+                }
+                return "ошибка вычисления";
+            }
+
+            private void load(double[][] columns, int row) {
+                for (int slot : slots) {
+                    context.setSlot(slot, columns[slot][row]);
+                }
+            }
+        }
+
+        private static void checkName(String name) throws ParseException {
+            boolean identifier = !name.isEmpty() && (Character.isLetter(name.charAt(0)) || name.charAt(0) == '_');
+            for (int i = 1; i < name.length() && identifier; i++) {
+                char c = name.charAt(i);
+                identifier = Character.isLetterOrDigit(c) || c == '_' || c == '$';
+            }
+            if (!identifier) {
+                throw new ParseException("Недопустимое имя формулы '" + name + "'");
+            }
+            String canonical = name.toLowerCase(Locale.ROOT);
+            if (CONSTANTS.containsKey(canonical) || FunctionRegistry.isReserved(canonical)) {
+                throw new ParseException("Имя формулы '" + name + "' совпадает с константой или функцией");
+            }
+        }
+
+        // идентификаторы, за которыми не следует '(', — переменные; те из них, что названы формулами, — ссылки
+        private static Set<String> referencedNames(String text, Set<String> formulaNames) throws ParseException {
+            Set<String> result = new LinkedHashSet<>();
+            Tokenizer tokenizer = new Tokenizer(text);
+            String pending = null;
+            for (TokenType type = tokenizer.next(); ; type = tokenizer.next()) {
+                if (pending != null && type != TokenType.LPAREN && formulaNames.contains(pending)) {
+                    result.add(pending);
+                }
+                pending = type == TokenType.IDENT ? tokenizer.text() : null;
+                if (type == TokenType.EOF) {
+                    return result;
+                }
+            }
+        }
+
+        private static List<String> topologicalOrder(Map<String, Set<String>> references) throws ParseException {
+            List<String> order = new ArrayList<>(references.size());
+            Set<String> done = new HashSet<>();
+            for (String start : references.keySet()) {
+                if (done.contains(start)) {
+                    continue;
+                }
+                // явный стек пути: формула выходит из него, когда готовы все, на кого она ссылается
+                List<String> path = new ArrayList<>();
+                Deque<Iterator<String>> pending = new ArrayDeque<>();
+                path.add(start);
+                pending.push(references.get(start).iterator());
+                while (!path.isEmpty()) {
+                    Iterator<String> next = pending.peek();
+                    if (!next.hasNext()) {
+                        pending.pop();
+                        String finished = path.remove(path.size() - 1);
+                        done.add(finished);
+                        order.add(finished);
+                        continue;
+                    }
+                    String target = next.next();
+                    if (done.contains(target)) {
+                        continue;
+                    }
+                    int cycleStart = path.indexOf(target);
+                    if (cycleStart >= 0) {
+                        List<String> cycle = new ArrayList<>(path.subList(cycleStart, path.size()));
+                        cycle.add(target);
+                        throw new ParseException("Циклическая зависимость между формулами: " + String.join(" -> ", cycle));
+                    }
+                    path.add(target);
+                    pending.push(references.get(target).iterator());
+                }
+            }
+            return order;
+        }
+
+        // ключи узлов даёт Optimizer, поэтому равенство поддеревьев здесь то же, что и при исключении общих частей
+        private static Node intern(Node root, Optimizer keys, Map<Integer, Node> canonical) {
+            Map<Node, Node> rebuilt = new IdentityHashMap<>();
+            for (Node node : Nodes.postOrder(root, false)) {
+                int key = keys.keyOf(node);
+                Node existing = canonical.get(key);
+                if (existing == null) {
+                    existing = withChildren(node, rebuilt);
+                    canonical.put(key, existing);
+                }
+                rebuilt.put(node, existing);
+            }
+            return rebuilt.get(root);
+        }
+
+        private static Node withChildren(Node node, Map<Node, Node> rebuilt) {
+            if (node instanceof UnaryMinusNode) {
+                Node inner = rebuilt.get(((UnaryMinusNode) node).inner);
+                return inner == ((UnaryMinusNode) node).inner ? node : new UnaryMinusNode(inner);
+            }
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                Node left = rebuilt.get(binary.left);
+                Node right = rebuilt.get(binary.right);
+                return left == binary.left && right == binary.right ? node : new BinaryNode(binary.op, left, right);
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                List<Node> args = new ArrayList<>(function.arguments.size());
+                boolean changed = false;
+                for (Node arg : function.arguments) {
+                    Node replacement = rebuilt.get(arg);
+                    changed |= replacement != arg;
+                    args.add(replacement);
+                }
+                return changed ? function.withArguments(args) : node;
+            }
+            if (node instanceof SolveNode) {
+                SolveNode solve = (SolveNode) node;
+                return solve.withChildren(rebuilt.get(solve.body), rebuilt.get(solve.lo), rebuilt.get(solve.hi));
+            }
+            return node;
+        }
+    }
+
+    private static final class ExpressionCache {
+        // ограничение на число ключей: исходные записи и нормализованные формы считаются вместе
+        private final int capacity;
+        private final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<>();
+        // кольцо алгоритма CLOCK: каждый ключ из entries лежит здесь ровно один раз, в порядке вставки
+        private final ConcurrentLinkedQueue<String> ring = new ConcurrentLinkedQueue<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final ExpressionSnapshot snapshot;
+        // поколение реестра функций, под которое собраны записи; новая регистрация сбрасывает кэш,
+        // включая запомненные ошибки «Неизвестная функция»
+        private volatile long generation = FunctionRegistry.generation();
+
+        ExpressionCache(int capacity) {
+            this(capacity, null);
+        }
+
+        // промах сначала ищется в снимке по исходному тексту: так формула не проходит даже через нормализацию
+        ExpressionCache(int capacity, ExpressionSnapshot snapshot) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Размер кэша должен быть положительным");
+            }
+            this.capacity = capacity;
+            this.snapshot = snapshot;
+        }
+
+        CompiledExpression get(String text) throws ParseException {
+            long current = FunctionRegistry.generation();
+            if (current != generation) {
+                invalidate(current);
+            }
+            CacheEntry entry = fresh(entries.get(text), current);
+            if (entry == null && snapshot != null) {
+                entry = restore(text, current);
+                if (entry != null) {
+                    misses.increment();
+                }
+            } else if (entry != null) {
+                hits.increment();
+            }
+            if (entry == null) {
+                String normalized;
+                try {
+                    normalized = normalize(text);
+                } catch (ParseException ex) {
+                    normalized = null;
+                }
+                entry = normalized == null ? null : fresh(entries.get(normalized), current);
+                if (entry == null) {
+                    misses.increment();
+                    entry = load(text, normalized, current);
+                } else {
+                    hits.increment();
+                    offer(text, entry);
+                    evictIfNeeded();
+                }
+            }
+            // запись в общую строку кэша только при первом обращении после прохода стрелки
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            if (entry.error != null) {
+                throw new ParseException(entry.error);
+            }
+            return entry.expression;
+        }
+
+        long getHits() {
+            return hits.sum();
+        }
+
+        long getMisses() {
+            return misses.sum();
+        }
+
+        long getEvictions() {
+            return evictions.sum();
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        // повреждённая запись снимка не мешает работе: формула просто разбирается заново
+        private CacheEntry restore(String text, long current) {
+            CompiledExpression restored;
+            try {
+                restored = snapshot.find(text);
+            } catch (IOException ex) {
+                restored = null;
+            }
+            if (restored == null) {
+                return null;
+            }
+            CacheEntry entry = offer(text, new CacheEntry(restored, null, current));
+            evictIfNeeded();
+            return entry;
+        }
+
+        // current снят до разбора: если функцию зарегистрировали во время него, запись сразу окажется устаревшей
+        private CacheEntry load(String text, String normalized, long current) {
+            CacheEntry entry;
+            try {
+                entry = new CacheEntry(CompiledExpression.compile(text), null, current);
+            } catch (ParseException ex) {
+                // позиции в сообщении относятся к исходному тексту, поэтому ошибку кэшируем только по нему
+                entry = new CacheEntry(null, ex.getMessage(), current);
+                normalized = null;
+            }
+            if (normalized != null) {
+                entry = offer(normalized, entry);
+            }
+            if (entries.put(text, entry) == null) {
+                ring.add(text);
+            }
+            evictIfNeeded();
+            return entry;
+        }
+
+        // как putIfAbsent, но запись прежнего поколения заменяется; возвращает запись, оставшуюся под ключом
+        private CacheEntry offer(String key, CacheEntry entry) {
+            CacheEntry existing = entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                ring.add(key);
+                return entry;
+            }
+            if (existing.generation == entry.generation) {
+                return existing;
+            }
+            // ключ уже стоит в кольце, меняется только запись
+            entries.replace(key, existing, entry);
+            return entry;
+        }
+
+        private static CacheEntry fresh(CacheEntry entry, long current) {
+            return entry != null && entry.generation == current ? entry : null;
+        }
+
+        // кольцо чистится раньше словаря: ключ, вставленный параллельно, может остаться только в кольце,
+        // а такой стрелка просто пропустит; запись, вставленная параллельно под старым поколением, отсеется в fresh
+        private void invalidate(long current) {
+            generation = current;
+            ring.clear();
+            entries.clear();
+        }
+
+        // вытеснение CLOCK без общей блокировки: стрелка идёт по кольцу, запись с флагом обращения получает
+        // второй шанс и уходит в хвост, первая без флага удаляется. Каждый второй шанс снимает флаг, поставленный
+        // попаданием, поэтому на одно вытеснение приходится O(1) шагов в среднем
+        private void evictIfNeeded() {
+            while (entries.size() > capacity) {
+                String key = ring.poll();
+                if (key == null) {
+                    return;
+                }
+                CacheEntry entry = entries.get(key);
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    ring.add(key);
+                } else if (entries.remove(key, entry)) {
+                    evictions.increment();
+                } else if (entries.containsKey(key)) {
+                    // запись подменили, пока стрелка на ней стояла, — ключ остаётся в кольце
+                    ring.add(key);
+                }
+            }
+        }
+
+        // пробелы убираем везде, где они не разделяют токены; имена функций и констант регистронезависимы
+        static String normalize(String text) throws ParseException {
+            Tokenizer tokenizer = new Tokenizer(text);
+            StringBuilder result = new StringBuilder(text.length());
+            TokenType previous = TokenType.EOF;
+            String pendingIdentifier = null;
+            for (TokenType type = tokenizer.next(); ; type = tokenizer.next()) {
+                if (pendingIdentifier != null) {
+                    String canonical = pendingIdentifier.toLowerCase(Locale.ROOT);
+                    boolean call = type == TokenType.LPAREN;
+                    result.append(call || CONSTANTS.containsKey(canonical) ? canonical : pendingIdentifier);
+                    pendingIdentifier = null;
+                }
+                if (type == TokenType.EOF) {
+                    break;
+                }
+                boolean word = type == TokenType.NUMBER || type == TokenType.IDENT;
+                if (word && (previous == TokenType.NUMBER || previous == TokenType.IDENT)) {
+                    result.append(' ');
+                }
+                if (type == TokenType.IDENT) {
+                    pendingIdentifier = tokenizer.text();
+                } else {
+                    result.append(text, tokenizer.position(), tokenizer.end());
+                }
+                previous = type;
+            }
+            return result.toString();
+        }
+
+        private static final class CacheEntry {
+            final CompiledExpression expression;
+            final String error;
+            final long generation;
+            volatile boolean referenced;
+
+            CacheEntry(CompiledExpression expression, String error, long generation) {
+                this.expression = expression;
+                this.error = error;
+                this.generation = generation;
+            }
+        }
+    }
+
+    // двоичный снимок разобранных и оптимизированных формул: после перезапуска формулы восстанавливаются
+    // без Tokenizer и Parser. Файл: целые 0x504E5343 («CSNP») и версия, число формул, резерв, затем
+    // индекс из записей (64-битный хэш исходника, смещение, длина), упорядоченный по хэшу, и сами записи
+    // с CRC32 в конце; все числа little-endian. Файл отображается в память, при открытии проверяется только
+    // заголовок, а запись раскодируется при первом обращении к её формуле, так что старт не зависит от их числа
+    private static final class ExpressionSnapshot {
+        static final int MAGIC = 0x504E5343; // "CSNP" в little-endian
+        static final int VERSION = 1;
+        private static final int HEADER = 16;
+        private static final int INDEX_ENTRY = 16;
+
+        private static final int NUMBER = 0;
+        private static final int VARIABLE = 1;
+        private static final int NEGATE = 2;
+        private static final int BINARY = 3;
+        private static final int FUNCTION = 4;
+        private static final int SOLVE = 5;
+        private static final int SHARED = 6;
+        private static final int SCOPE = 7;
+
+        private final MappedByteBuffer buffer;
+        private final int count;
+        private final LongAdder loaded = new LongAdder();
+
+        private ExpressionSnapshot(MappedByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        static ExpressionSnapshot open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Снимок больше 2 ГБ не поддерживается");
+                }
+                if (size < HEADER) {
+                    throw new IOException("Файл не является снимком формул");
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Файл не является снимком формул");
+                }
+                int version = buffer.getInt(4);
+                if (version != VERSION) {
+                    throw new IOException("Неподдерживаемая версия снимка формул: " + version);
+                }
+                int count = buffer.getInt(8);
+                if (count < 0 || HEADER + (long) count * INDEX_ENTRY > size) {
+                    throw new IOException("Повреждён заголовок снимка формул");
+                }
+                return new ExpressionSnapshot(buffer, count);
+            }
+        }
+
+        // пишет во временный файл и переименовывает: процессы, отобразившие прежний снимок, его не теряют
+        static int write(Path path, Collection<CompiledExpression> expressions) throws IOException {
+            Map<String, byte[]> records = new LinkedHashMap<>();
+            for (CompiledExpression expression : expressions) {
+                records.computeIfAbsent(expression.getSource(), source -> encode(expression));
+            }
+            List<Map.Entry<String, byte[]>> sorted = new ArrayList<>(records.entrySet());
+            sorted.sort((a, b) -> Long.compare(hash(a.getKey()), hash(b.getKey())));
+            long offset = HEADER + (long) sorted.size() * INDEX_ENTRY;
+            ByteBuffer index = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(0);
+            for (Map.Entry<String, byte[]> record : sorted) {
+                if (offset + record.getValue().length > Integer.MAX_VALUE) {
+                    throw new IOException("Снимок больше 2 ГБ не поддерживается");
+                }
+                index.putLong(hash(record.getKey())).putInt((int) offset).putInt(record.getValue().length);
+                offset += record.getValue().length;
+            }
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                out.write(index.array());
+                for (Map.Entry<String, byte[]> record : sorted) {
+                    out.write(record.getValue());
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return sorted.size();
+        }
+
+        int size() {
+            return count;
+        }
+
+        // сколько формул уже раскодировано
+        long getLoaded() {
+            return loaded.sum();
+        }
+
+        // null, если формулы в снимке нет; хэш только находит кандидатов, исходник сверяется целиком
+        CompiledExpression find(String source) throws IOException {
+            long hash = hash(source);
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (hashAt(middle) < hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < count && hashAt(i) == hash; i++) {
+                int entry = HEADER + i * INDEX_ENTRY;
+                int offset = buffer.getInt(entry + 8);
+                int length = buffer.getInt(entry + 12);
+                if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+                    throw new IOException("Повреждён индекс снимка формул");
+                }
+                ByteBuffer record = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                record.position(offset).limit(offset + length);
+                if (source.equals(readString(record))) {
+                    record.position(offset);
+                    CompiledExpression expression = decode(record);
+                    loaded.increment();
+                    return expression;
+                }
+            }
+            return null;
+        }
+
+        private long hashAt(int index) {
+            return buffer.getLong(HEADER + index * INDEX_ENTRY);
+        }
+
+        // FNV-1a по UTF-8 исходника
+        static long hash(String source) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : source.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        // запись: исходник, имена переменных в порядке слотов, узлы в обратном порядке обхода и CRC32;
+        // потомок задаётся номером уже записанного узла, так что общие подвыражения остаются общими
+        static byte[] encode(CompiledExpression expression) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeString(out, expression.getSource());
+            VariableLayout layout = expression.getLayout();
+            writeInt(out, layout.size());
+            for (int slot = 0; slot < layout.size(); slot++) {
+                writeString(out, layout.nameOf(slot));
+            }
+            List<Node> order = Nodes.postOrder(expression.getRoot(), false);
+            Map<Node, Integer> numbers = new IdentityHashMap<>();
+            writeInt(out, order.size());
+            for (Node node : order) {
+                if (node instanceof NumberNode) {
+                    out.write(NUMBER);
+                    long bits = Double.doubleToRawLongBits(((NumberNode) node).value);
+                    for (int i = 0; i < Long.BYTES; i++) {
+                        out.write((int) (bits >>> (8 * i)));
+                    }
+                } else if (node instanceof VariableNode) {
+                    out.write(VARIABLE);
+                    writeInt(out, ((VariableNode) node).getSlot());
+                } else if (node instanceof UnaryMinusNode) {
+                    out.write(NEGATE);
+                    writeInt(out, numbers.get(((UnaryMinusNode) node).inner));
+                } else if (node instanceof BinaryNode) {
+                    BinaryNode binary = (BinaryNode) node;
+                    out.write(BINARY);
+                    out.write(binary.op.charAt(0));
+                    writeInt(out, numbers.get(binary.left));
+                    writeInt(out, numbers.get(binary.right));
+                } else if (node instanceof FunctionNode) {
+                    FunctionNode function = (FunctionNode) node;
+                    out.write(FUNCTION);
+                    writeString(out, function.originalName);
+                    writeString(out, function.canonicalName);
+                    writeInt(out, function.arguments.size());
+                    for (Node argument : function.arguments) {
+                        writeInt(out, numbers.get(argument));
+                    }
+                } else if (node instanceof SolveNode) {
+                    SolveNode solve = (SolveNode) node;
+                    out.write(SOLVE);
+                    writeString(out, solve.originalName);
+                    writeString(out, solve.kind);
+                    for (Node child : Nodes.children(solve)) {
+                        writeInt(out, numbers.get(child));
+                    }
+                } else if (node instanceof SharedNode) {
+                    out.write(SHARED);
+                    writeInt(out, ((SharedNode) node).index);
+                    writeInt(out, numbers.get(((SharedNode) node).inner));
+                } else if (node instanceof SharedScopeNode) {
+                    out.write(SCOPE);
+                    writeInt(out, ((SharedScopeNode) node).sharedCount);
+                    writeInt(out, numbers.get(((SharedScopeNode) node).inner));
+                } else {
+                    throw new IllegalArgumentException("Узел " + node.getClass().getSimpleName()
+                            + " не сохраняется в снимок");
+                }
+                numbers.put(node, numbers.size());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out.toByteArray());
+            int checksum = (int) crc.getValue();
+            for (int i = 0; i < Integer.BYTES; i++) {
+                out.write(checksum >>> (8 * i));
+            }
+            return out.toByteArray();
+        }
+
+        // запись занимает весь остаток in; контрольная сумма проверяется до разбора
+        static CompiledExpression decode(ByteBuffer in) throws IOException {
+            if (in.remaining() < Integer.BYTES) {
+                throw new IOException("Повреждена запись снимка формул");
+            }
+            int end = in.limit() - Integer.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(in.duplicate().limit(end));
+            if ((int) crc.getValue() != in.getInt(end)) {
+                throw new IOException("Не сходится контрольная сумма записи снимка формул");
+            }
+            in.limit(end);
+            try {
+                String source = readString(in);
+                VariableLayout layout = new VariableLayout();
+                int variables = readInt(in);
+                for (int slot = 0; slot < variables; slot++) {
+                    layout.slotOf(readString(in));
+                }
+                int size = readInt(in);
+                if (size == 0 || size > in.remaining()) {
+                    throw new IOException("Повреждена запись снимка формул");
+                }
+                Node[] nodes = new Node[size];
+                for (int i = 0; i < size; i++) {
+                    nodes[i] = readNode(in, nodes, i, layout);
+                }
+                // область общих подвыражений бывает только корнем (см. Optimizer.optimize)
+                Node root = nodes[size - 1];
+                int shared = root instanceof SharedScopeNode ? ((SharedScopeNode) root).sharedCount : 0;
+                for (Node node : nodes) {
+                    if (node instanceof SharedNode && ((SharedNode) node).index >= shared
+                            || node instanceof SharedScopeNode && (node != root || shared > size)) {
+                        throw new IOException("Повреждена запись снимка формул: общие подвыражения");
+                    }
+                }
+                return new CompiledExpression(source, root, layout);
+            } catch (BufferUnderflowException | IllegalArgumentException | EvaluationException ex) {
+                throw new IOException("Повреждена запись снимка формул: " + ex.getMessage(), ex);
+            }
+        }
+
+        private static Node readNode(ByteBuffer in, Node[] nodes, int current, VariableLayout layout)
+                throws IOException {
+            int tag = in.get();
+            switch (tag) {
+                case NUMBER:
+                    return new NumberNode(in.getDouble());
+                case VARIABLE: {
+                    int slot = readInt(in);
+                    if (slot >= layout.size()) {
+                        throw new IOException("Повреждена запись снимка формул: нет переменной " + slot);
+                    }
+                    return new VariableNode(layout.nameOf(slot), layout);
+                }
+                case NEGATE:
+                    return new UnaryMinusNode(child(in, nodes, current));
+                case BINARY: {
+                    String op = String.valueOf((char) in.get());
+                    if ("+-*/^".indexOf(op.charAt(0)) < 0) {
+                        throw new IOException("Повреждена запись снимка формул: операция '" + op + "'");
+                    }
+                    Node left = child(in, nodes, current);
+                    return new BinaryNode(op, left, child(in, nodes, current));
+                }
+                case FUNCTION: {
+                    String originalName = readString(in);
+                    String canonicalName = readString(in);
+                    int arity = readInt(in);
+                    List<Node> arguments = new ArrayList<>(Math.min(arity, current));
+                    for (int i = 0; i < arity; i++) {
+                        arguments.add(child(in, nodes, current));
+                    }
+                    if ("diff".equals(canonicalName)) {
+                        return FunctionNode.derivative(originalName, arguments);
+                    }
+                    MathFunction function = FunctionRegistry.find(canonicalName);
+                    if (function == null) {
+                        throw new IOException("Функция '" + canonicalName + "' из снимка не зарегистрирована");
+                    }
+                    return new FunctionNode(originalName, function, arguments);
+                }
+                case SOLVE: {
+                    String originalName = readString(in);
+                    String kind = readString(in);
+                    Node body = child(in, nodes, current);
+                    Node variable = child(in, nodes, current);
+                    Node lo = child(in, nodes, current);
+                    Node hi = child(in, nodes, current);
+                    boolean known = SolveNode.SOLVE.equals(kind) || SolveNode.MINIMIZE.equals(kind);
+                    if (!(variable instanceof VariableNode) || !known) {
+                        throw new IOException("Повреждена запись снимка формул: " + originalName);
+                    }
+                    return new SolveNode(originalName, kind, body, (VariableNode) variable, lo, hi);
+                }
+                case SHARED: {
+                    int index = readInt(in);
+                    return new SharedNode(index, child(in, nodes, current));
+                }
+                case SCOPE: {
+                    int sharedCount = readInt(in);
+                    return new SharedScopeNode(sharedCount, child(in, nodes, current));
+                }
+                default:
+                    throw new IOException("Повреждена запись снимка формул: неизвестный узел " + tag);
+            }
+        }
+
+        // ссылки идут только назад, поэтому цикл в повреждённом файле невозможен
+        private static Node child(ByteBuffer in, Node[] nodes, int current) throws IOException {
+            int number = readInt(in);
+            if (number >= current) {
+                throw new IOException("Повреждена запись снимка формул: ссылка вперёд");
+            }
+            return nodes[number];
+        }
+
+        // целые без знака по 7 бит в байте, младшие первыми
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static int readInt(ByteBuffer in) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Повреждена запись снимка формул: неверное целое");
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static String readString(ByteBuffer in) throws IOException {
+            int length = readInt(in);
+            if (length > in.remaining()) {
+                throw new IOException("Повреждена запись снимка формул: строка за концом записи");
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // локальный сервер вычислений: по строке на запрос «формула;x=1;y=2,5», ответ — «OK значение» или
+    // «ERR сообщение» в том же порядке. Адрес — «tcp:[хост:]порт» (по умолчанию 127.0.0.1) или «unix:путь».
+    // Каждое соединение обслуживает свой поток, виртуальный, если среда выполнения их знает; формулы
+    // берутся из общего кэша, а одновременные запросы к одной формуле сливаются в пакет для BatchEvaluator
+    private static final class EvaluationServer implements AutoCloseable {
+        static final int DEFAULT_CACHE = 1024;
+        private static final int MAX_BATCHERS = 4096;
+
+        private final ServerSocketChannel channel;
+        private final Path socketFile;
+        private final String address;
+        private final ExpressionCache cache;
+        private final ExecutorService connections = newConnectionExecutor();
+        private final ConcurrentHashMap<CompiledExpression, MicroBatcher> batchers = new ConcurrentHashMap<>();
+        private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder batchedRequests = new LongAdder();
+        private final Thread acceptor;
+        private volatile boolean closed;
+
+        private EvaluationServer(ServerSocketChannel channel, Path socketFile, ExpressionCache cache) throws IOException {
+            this.channel = channel;
+            this.socketFile = socketFile;
+            this.cache = cache;
+            SocketAddress local = channel.getLocalAddress();
+            if (local instanceof InetSocketAddress) {
+                InetSocketAddress inet = (InetSocketAddress) local;
+                this.address = "tcp:" + inet.getAddress().getHostAddress() + ":" + inet.getPort();
+            } else {
+                this.address = "unix:" + socketFile;
+            }
+            this.acceptor = new Thread(this::acceptLoop, "calc-server");
+            acceptor.setDaemon(true);
+        }
+
+        static EvaluationServer start(String address, ExpressionCache cache) throws IOException {
+            SocketAddress target = resolve(address);
+            ServerSocketChannel channel = target instanceof UnixDomainSocketAddress
+                    ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                    : ServerSocketChannel.open();
+            try {
+                channel.bind(target);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            Path socketFile = target instanceof UnixDomainSocketAddress ? ((UnixDomainSocketAddress) target).getPath() : null;
+            EvaluationServer server = new EvaluationServer(channel, socketFile, cache);
+            server.acceptor.start();
+            return server;
+        }
+
+        static SocketAddress resolve(String address) {
+            if (address.startsWith("unix:")) {
+                if (address.length() == "unix:".length()) {
+                    throw new IllegalArgumentException("Не указан путь к сокету: '" + address + "'");
+                }
+                return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+            }
+            String rest = address.startsWith("tcp:") ? address.substring("tcp:".length()) : address;
+            int colon = rest.lastIndexOf(':');
+            String host = colon < 0 ? "127.0.0.1" : rest.substring(0, colon);
+            int port;
+            try {
+                port = Integer.parseInt(rest.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Ожидался адрес tcp:[хост:]порт или unix:путь: '" + address + "'");
+            }
+            InetSocketAddress result = new InetSocketAddress(host, port);
+            if (result.isUnresolved()) {
+                throw new IllegalArgumentException("Неизвестный хост: '" + host + "'");
+            }
+            return result;
+        }
+
+        // на JDK 21+ по виртуальному потоку на соединение; метод ищется по имени, чтобы файл собирался и на 17
+        static ExecutorService newConnectionExecutor() {
+            try {
+                MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class,
+                        "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+                return (ExecutorService) factory.invoke();
+            } catch (Throwable ex) {
+                return Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "calc-connection");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        String getAddress() {
+            return address;
+        }
+
+        long getRequests() {
+            return requests.sum();
+        }
+
+        long getBatches() {
+            return batches.sum();
+        }
+
+        long getBatchedRequests() {
+            return batchedRequests.sum();
+        }
+
+        void await() throws InterruptedException {
+            acceptor.join();
+        }
+
+        // close без исключений — для обработчика остановки и завершения процесса
+        void shutdown() {
+            try {
+                close();
+            } catch (IOException ignored) {
+                // процесс всё равно завершается
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            channel.close();
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+            connections.shutdownNow();
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+            }
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                SocketChannel client;
+                try {
+                    client = channel.accept();
+                } catch (IOException ex) {
+                    if (closed || !channel.isOpen()) {
+                        return;
+                    }
+                    System.err.println("Ошибка сервера: " + ex.getMessage());
+                    continue;
+                }
+                clients.add(client);
+                try {
+                    connections.execute(() -> serve(client));
+                } catch (RejectedExecutionException ex) {
+                    clients.remove(client);
+                    closeQuietly(client);
+                }
+            }
+        }
+
+        // ответ сбрасывается в сокет, только когда во входном буфере не осталось запросов,
+        // так что конвейер из многих строк уходит одной записью
+        private void serve(SocketChannel client) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                         Channels.newInputStream(client), StandardCharsets.UTF_8));
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(
+                         Channels.newOutputStream(client), StandardCharsets.UTF_8))) {
+                if (client.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    writer.write(answer(line));
+                    writer.write('\n');
+                    if (!reader.ready()) {
+                        writer.flush();
+                    }
+                }
+            } catch (IOException ex) {
+                // клиент оборвал соединение или сервер закрывается
+            } finally {
+                clients.remove(client);
+                closeQuietly(client);
+            }
+        }
+
+        String answer(String line) {
+            requests.increment();
+            String[] parts = line.split(";");
+            String formula = parts.length == 0 ? "" : parts[0].trim();
+            if (formula.isEmpty()) {
+                return "ERR Пустая строка";
+            }
+            CompiledExpression expression;
+            try {
+                expression = cache.get(formula);
+            } catch (ParseException ex) {
+                return "ERR " + ex.getMessage();
+            }
+            // значения раскладываются в порядке getVariables(); лишние имена не мешают
+            List<String> variables = expression.getVariables();
+            double[] values = new double[variables.size()];
+            boolean[] given = new boolean[values.length];
+            for (int i = 1; i < parts.length; i++) {
+                String assignment = parts[i].trim();
+                if (assignment.isEmpty()) {
+                    continue;
+                }
+                int eq = assignment.indexOf('=');
+                if (eq < 0) {
+                    return "ERR Ожидалось имя=значение: '" + assignment + "'";
+                }
+                int index = variables.indexOf(assignment.substring(0, eq).trim());
+                if (index < 0) {
+                    continue;
+                }
+                try {
+                    values[index] = Double.parseDouble(assignment.substring(eq + 1).trim().replace(',', '.'));
+                } catch (NumberFormatException ex) {
+                    return "ERR Ожидалось число: '" + assignment + "'";
+                }
+                given[index] = true;
+            }
+            for (int i = 0; i < given.length; i++) {
+                if (!given[i]) {
+                    return "ERR Переменная '" + variables.get(i) + "' не определена";
+                }
+            }
+            MicroBatcher batcher = batchers.get(expression);
+            try {
+                if (batcher == null) {
+                    if (batchers.size() >= MAX_BATCHERS) {
+                        // формулы, вытесненные из кэша, иначе держали бы свои буферы вечно
+                        batchers.clear();
+                    }
+                    batcher = batchers.computeIfAbsent(expression, MicroBatcher::new);
+                }
+            } catch (EvaluationException ex) {
+                return "ERR " + ex.getMessage();
+            }
+            Request request = new Request(values);
+            String error = batcher.submit(request);
+            return error == null ? "OK " + request.result : "ERR " + error;
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // закрываем при ошибке или остановке, сообщать некому
+            }
+        }
+
+        private static final class Request {
+            final double[] values;
+            final CompletableFuture<String> done = new CompletableFuture<>();
+            // пишется до завершения done, поэтому после join видно без синхронизации
+            double result;
+
+            Request(double[] values) {
+                this.values = values;
+            }
+        }
+
+        // пакетирование без таймеров: запрос встаёт в очередь, и кто первым захватил блокировку, тот и
+        // считает всё накопившееся, пока очередь не опустеет; остальные ждут свой ответ. Пока идёт пакет,
+        // новые запросы копятся, так что размер пакета сам растёт с нагрузкой, а в тишине он равен одному
+        private final class MicroBatcher {
+            private final CompiledExpression expression;
+            private final BatchEvaluator evaluator;
+            private final int[] slots;
+            private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+            private final ReentrantLock lock = new ReentrantLock();
+            private final double[][] columns;
+            private final double[] results;
+            private final long[] errors;
+            private final Request[] taken;
+
+            MicroBatcher(CompiledExpression expression) {
+                this.expression = expression;
+                this.evaluator = new BatchEvaluator(expression.getRoot(), expression.getLayout());
+                int capacity = evaluator.getChunkSize();
+                List<String> variables = expression.getVariables();
+                this.slots = new int[variables.size()];
+                this.columns = new double[expression.getLayout().size()][];
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] = expression.getLayout().slotOf(variables.get(i));
+                    columns[slots[i]] = new double[capacity];
+                }
+                this.results = new double[capacity];
+                this.errors = new long[(capacity + 63) / 64];
+                this.taken = new Request[capacity];
+            }
+
+            // null — успех, значение в request.result; иначе текст ошибки
+            String submit(Request request) {
+                queue.add(request);
+                // неудачный tryLock означает, что держатель блокировки ещё раз проверит очередь после unlock
+                while (!queue.isEmpty() && lock.tryLock()) {
+                    try {
+                        drain();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return request.done.join();
+            }
+
+            private String describe(int row) {
+                try {
+                    return expression.describeFailure(columns, row);
+                } catch (RuntimeException ex) {
+                    return ex.getMessage() != null ? ex.getMessage() : "ошибка вычисления";
+                }
+            }
+
+            private void drain() {
+                int rows = 0;
+                Request request;
+                while (rows < taken.length && (request = queue.poll()) != null) {
+                    for (int i = 0; i < slots.length; i++) {
+                        columns[slots[i]][rows] = request.values[i];
+                    }
+                    taken[rows++] = request;
+                }
+                if (rows == 0) {
+                    return;
+                }
+                Arrays.fill(errors, 0L);
+                int failures;
+                try {
+                    failures = evaluator.evaluate(columns, results, rows, errors);
+                } catch (Throwable ex) {
+                    // ловим всё, включая Error: исключение, ушедшее из пакета, оставило бы его клиентов
+                    // и всех, кто ждёт в очереди, без ответа навсегда
+                    String message = ex.getMessage() != null
+                            ? ex.getMessage()
+                            : "Внутренняя ошибка сервера: " + ex.getClass().getSimpleName();
+                    for (int row = 0; row < rows; row++) {
+                        taken[row].done.complete(message);
+                        taken[row] = null;
+                    }
+                    return;
+                }
+                batches.increment();
+                batchedRequests.add(rows);
+                Metrics.rows(expression, rows, failures);
+                for (int row = 0; row < rows; row++) {
+                    Request done = taken[row];
+                    taken[row] = null;
+                    if ((errors[row >>> 6] & (1L << row)) != 0) {
+                        done.done.complete(describe(row));
+                    } else {
+                        done.result = results[row];
+                        done.done.complete(null);
+                    }
+                }
+            }
+        }
+    }
+
+    // нагрузка по замкнутому циклу: каждое соединение шлёт следующий запрос, получив ответ на предыдущий.
+    // Формулы чередуются блоками, поэтому одновременные запросы обычно приходят к одной формуле
+    private static final class LoadGenerator {
+        private static final String[] FORMULAS = {
+                "x^2 + 3*x*y - y",
+                "sin(x) * cos(y) + sqrt(x*x + y*y)",
+                "hypot(x, y) / (1 + abs(x - y))",
+                "ln(1 + x^2) - exp(-y)",
+        };
+        private static final int BLOCK = 100;
+
+        private final SocketAddress target;
+        private final int connections;
+        private final int requests;
+        private final Metrics.LatencyHistogram latency = new Metrics.LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private volatile String firstError;
+
+        LoadGenerator(String address, int connections, int requests) {
+            if (connections <= 0 || requests <= 0) {
+                throw new IllegalArgumentException("Число соединений и запросов должно быть положительным");
+            }
+            this.target = EvaluationServer.resolve(address);
+            this.connections = connections;
+            this.requests = requests;
+        }
+
+        void run(PrintStream out) throws InterruptedException {
+            ExecutorService executor = EvaluationServer.newConnectionExecutor();
+            List<Future<?>> clients = new ArrayList<>();
+            long started = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                int connection = i;
+                int count = requests / connections + (i < requests % connections ? 1 : 0);
+                clients.add(executor.submit(() -> {
+                    client(connection, count);
+                    return null;
+                }));
+            }
+            for (Future<?> client : clients) {
+                try {
+                    client.get();
+                } catch (ExecutionException ex) {
+                    failures.increment();
+                    if (firstError == null) {
+                        Throwable cause = ex.getCause();
+                        firstError = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+            executor.shutdown();
+            Metrics.HistogramSnapshot snapshot = latency.snapshot();
+            out.println(String.format(Locale.ROOT, "Запросов: %d за %.1f мс, %.0f запросов/с, соединений: %d",
+                    completed.sum(), elapsed / 1e6, completed.sum() * 1e9 / elapsed, connections));
+            out.println(String.format(Locale.ROOT,
+                    "Задержка, мкс: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, макс. %.1f",
+                    snapshot.p50 / 1e3, snapshot.p90 / 1e3, snapshot.p99 / 1e3, snapshot.p999 / 1e3,
+                    snapshot.maxNanos / 1e3));
+            out.println("Ошибок: " + failures.sum() + (firstError == null ? "" : ", первая: " + firstError));
+        }
+
+        private void client(int connection, int count) throws IOException {
+            try (SocketChannel channel = SocketChannel.open(target);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(
+                         Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(
+                         Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+                if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                StringBuilder request = new StringBuilder();
+                for (int i = 0; i < count; i++) {
+                    request.setLength(0);
+                    request.append(FORMULAS[i / BLOCK % FORMULAS.length])
+                            .append(";x=").append(1 + (i % 97) * 0.5)
+                            .append(";y=").append(connection + 0.25)
+                            .append('\n');
+                    long started = System.nanoTime();
+                    writer.append(request);
+                    writer.flush();
+                    String response = reader.readLine();
+                    latency.record(System.nanoTime() - started);
+                    if (response == null) {
+                        throw new IOException("Сервер закрыл соединение");
+                    }
+                    completed.increment();
+                    if (!response.startsWith("OK ")) {
+                        failures.increment();
+                        if (firstError == null) {
+                            firstError = response;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // счётчики и гистограммы задержек горячего пути. По умолчанию выключены: тогда каждая точка замера —
+    // одно чтение volatile-флага без System.nanoTime. Включаются ключом --metrics, свойством calc.metrics
+    // или enable(); снимок берётся через snapshot() или из JMX (calc:type=Metrics)
+    private static final class Metrics {
+        static final int TOKENIZE = 0;
+        static final int PARSE = 1;
+        static final int EVALUATE = 2;
+        static final int DIFF = 3;
+        private static final String[] STAGE_NAMES = {"tokenize", "parse", "evaluate", "diff"};
+        // start() при выключенном замере
+        static final long OFF = Long.MIN_VALUE;
+        // сверх этого числа разных формул новые формулы в статистику по формулам не попадают
+        static final int MAX_EXPRESSIONS = 10_000;
+
+        private static volatile boolean enabled = Boolean.getBoolean("calc.metrics");
+        private static volatile int nodeSampling = Integer.getInteger("calc.metrics.sampling", 0);
+        private static final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+        private static final LongAdder[] errors = new LongAdder[ErrorKind.values().length];
+        private static final ConcurrentHashMap<String, ExpressionStats> expressions = new ConcurrentHashMap<>();
+        private static final LongAdder optimizerRuns = new LongAdder();
+        private static final LongAdder removedNodes = new LongAdder();
+        private static final LongAdder sharedSubexpressions = new LongAdder();
+        private static final Object registration = new Object();
+        private static boolean registered;
+
+        static {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < errors.length; i++) {
+                errors[i] = new LongAdder();
+            }
+        }
+
+        private Metrics() {
+        }
+
+        static boolean isEnabled() {
+            return enabled;
+        }
+
+        static void enable(boolean on) {
+            enabled = on;
+        }
+
+        // каждое n-е в среднем вычисление формулы идёт по дереву с замером каждого узла; 0 — не замерять
+        static void setNodeSampling(int n) {
+            if (n < 0) {
+                throw new IllegalArgumentException("Частота выборки не может быть отрицательной");
+            }
+            nodeSampling = n;
+        }
+
+        static int getNodeSampling() {
+            return nodeSampling;
+        }
+
+        static long start() {
+            return enabled ? System.nanoTime() : OFF;
+        }
+
+        static void record(int stage, long started) {
+            if (started != OFF) {
+                stages[stage].record(System.nanoTime() - started);
+            }
+        }
+
+        static void recordNanos(int stage, long nanos) {
+            stages[stage].record(nanos);
+        }
+
+        static void error(ErrorKind kind) {
+            if (enabled) {
+                errors[kind.ordinal()].increment();
+            }
+        }
+
+        // сколько узлов убрал один проход оптимизатора и сколько общих подвыражений он вынес
+        static void optimized(int removed, int shared) {
+            if (enabled) {
+                optimizerRuns.increment();
+                removedNodes.add(removed);
+                sharedSubexpressions.add(shared);
+            }
+        }
+
+        // вызывается только при включённом замере
+        static double evaluate(CompiledExpression expression, EvaluationContext context) {
+            ExpressionStats stats = expression.stats;
+            if (stats == null) {
+                stats = stats(expression.getSource(), expression.getRoot());
+                expression.stats = stats;
+            }
+            int sampling = nodeSampling;
+            boolean sampled = sampling > 0 && ThreadLocalRandom.current().nextInt(sampling) == 0;
+            long started = System.nanoTime();
+            try {
+                double result = sampled ? stats.profile().evaluate(context) : expression.program.evaluate(context);
+                if (context.getErrorCode() != 0) {
+                    stats.failures.increment();
+                }
+                return result;
+            } catch (EvaluationException ex) {
+                stats.failures.increment();
+                throw ex;
+            } finally {
+                long elapsed = System.nanoTime() - started;
+                stats.evaluations.increment();
+                stats.latency.record(elapsed);
+                stages[EVALUATE].record(elapsed);
+            }
+        }
+
+        // строки пакетного вычисления: задержка одной строки не замеряется, только их число
+        static void rows(CompiledExpression expression, int rows, int failures) {
+            if (!enabled) {
+                return;
+            }
+            ExpressionStats stats = expression.stats;
+            if (stats == null) {
+                stats = stats(expression.getSource(), expression.getRoot());
+                expression.stats = stats;
+            }
+            stats.rows.add(rows);
+            stats.failedRows.add(failures);
+        }
+
+        private static ExpressionStats stats(String source, Node root) {
+            ExpressionStats existing = expressions.get(source);
+            if (existing != null) {
+                return existing;
+            }
+            ExpressionStats created = new ExpressionStats(source, root);
+            if (expressions.size() >= MAX_EXPRESSIONS) {
+                return created;
+            }
+            existing = expressions.putIfAbsent(source, created);
+            return existing != null ? existing : created;
+        }
+
+        static void reset() {
+            for (LatencyHistogram stage : stages) {
+                stage.reset();
+            }
+            for (LongAdder error : errors) {
+                error.reset();
+            }
+            optimizerRuns.reset();
+            removedNodes.reset();
+            sharedSubexpressions.reset();
+            expressions.clear();
+        }
+
+        static Snapshot snapshot() {
+            Map<String, HistogramSnapshot> stageSnapshots = new LinkedHashMap<>();
+            for (int i = 0; i < stages.length; i++) {
+                stageSnapshots.put(STAGE_NAMES[i], stages[i].snapshot());
+            }
+            Map<String, Long> errorCounts = new LinkedHashMap<>();
+            for (ErrorKind kind : ErrorKind.values()) {
+                errorCounts.put(kind.name().toLowerCase(Locale.ROOT), errors[kind.ordinal()].sum());
+            }
+            List<ExpressionSnapshot> formulas = new ArrayList<>();
+            Map<String, Long> calls = new TreeMap<>();
+            for (ExpressionStats stats : expressions.values()) {
+                ExpressionSnapshot formula = stats.snapshot();
+                formulas.add(formula);
+                long executions = formula.evaluations + formula.rows;
+                for (int i = 0; i < stats.functions.length; i++) {
+                    calls.merge(stats.functions[i], executions * stats.occurrences[i], Long::sum);
+                }
+            }
+            formulas.sort((a, b) -> Long.compare(b.evaluations + b.rows, a.evaluations + a.rows));
+            Map<String, Long> optimizer = new LinkedHashMap<>();
+            optimizer.put("runs", optimizerRuns.sum());
+            optimizer.put("removedNodes", removedNodes.sum());
+            optimizer.put("sharedSubexpressions", sharedSubexpressions.sum());
+            return new Snapshot(stageSnapshots, errorCounts, calls, optimizer, formulas);
+        }
+
+        // один раз на процесс; повторный вызов ничего не делает
+        static void registerMBean() {
+            synchronized (registration) {
+                if (registered) {
+                    return;
+                }
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                            new ObjectName("calc:type=Metrics"));
+                    registered = true;
+                } catch (JMException ex) {
+                    throw new IllegalStateException("Не удалось зарегистрировать MBean: " + ex.getMessage(), ex);
+                }
+            }
+        }
+
+        // гистограмма в духе HdrHistogram: 16 корзин на каждую степень двойки, так что значение
+        // восстанавливается с точностью около 6%; до 32 нс корзины точные
+        static final class LatencyHistogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB = 1 << SUB_BITS;
+            private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder sum = new LongAdder();
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+            void record(long nanos) {
+                long value = Math.max(0, nanos);
+                counts.incrementAndGet(index(value));
+                count.increment();
+                sum.add(value);
+                max.accumulate(value);
+            }
+
+            void reset() {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts.set(i, 0);
+                }
+                count.reset();
+                sum.reset();
+                max.reset();
+            }
+
+            static int index(long value) {
+                if (value < 2 * SUB) {
+                    return (int) value;
+                }
+                int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+                return shift * SUB + (int) (value >>> shift);
+            }
+
+            // наибольшее значение, попадающее в корзину
+            static long upperBound(int index) {
+                if (index < 2 * SUB) {
+                    return index;
+                }
+                int shift = index / SUB - 1;
+                long mantissa = index - shift * SUB;
+                return ((mantissa + 1) << shift) - 1;
+            }
+
+            HistogramSnapshot snapshot() {
+                long[] copy = new long[BUCKETS];
+                long total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    copy[i] = counts.get(i);
+                    total += copy[i];
+                }
+                long largest = max.get();
+                return new HistogramSnapshot(total, sum.sum(), largest,
+                        Math.min(largest, percentile(copy, total, 0.5)),
+                        Math.min(largest, percentile(copy, total, 0.9)),
+                        Math.min(largest, percentile(copy, total, 0.99)),
+                        Math.min(largest, percentile(copy, total, 0.999)));
+            }
+
+            private static long percentile(long[] counts, long total, double fraction) {
+                if (total == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(fraction * total));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return upperBound(i);
+                    }
+                }
+                return upperBound(counts.length - 1);
+            }
+        }
+
+        // вызовы функций за одно вычисление известны по дереву заранее, поэтому горячий путь их не считает:
+        // в снимке они умножаются на число вычислений. Вызовы внутри diff и тела solve/minimize
+        // не раскрываются — считается сам diff или solve
+        static final class ExpressionStats {
+            final String source;
+            final Node root;
+            final String[] functions;
+            final long[] occurrences;
+            final LongAdder evaluations = new LongAdder();
+            final LongAdder failures = new LongAdder();
+            final LongAdder rows = new LongAdder();
+            final LongAdder failedRows = new LongAdder();
+            final LatencyHistogram latency = new LatencyHistogram();
+            private volatile NodeProfile profile;
+
+            ExpressionStats(String source, Node root) {
+                this.source = source;
+                this.root = root;
+                Map<String, Long> counts = new TreeMap<>();
+                for (Node node : Nodes.postOrder(root, true)) {
+                    if (node instanceof FunctionNode) {
+                        counts.merge(((FunctionNode) node).canonicalName, 1L, Long::sum);
+                    } else if (node instanceof SolveNode) {
+                        counts.merge(((SolveNode) node).kind, 1L, Long::sum);
+                    }
+                }
+                this.functions = counts.keySet().toArray(new String[0]);
+                this.occurrences = new long[functions.length];
+                for (int i = 0; i < functions.length; i++) {
+                    occurrences[i] = counts.get(functions[i]);
+                }
+            }
+
+            NodeProfile profile() {
+                NodeProfile current = profile;
+                if (current == null) {
+                    current = new NodeProfile(root);
+                    profile = current;
+                }
+                return current;
+            }
+
+            ExpressionSnapshot snapshot() {
+                NodeProfile current = profile;
+                Map<String, HistogramSnapshot> nodes = new LinkedHashMap<>();
+                if (current != null) {
+                    for (int i = 0; i < current.nodes.length; i++) {
+                        nodes.put(current.labels[i], current.times[i].snapshot());
+                    }
+                }
+                return new ExpressionSnapshot(source, evaluations.sum(), failures.sum(), rows.sum(),
+                        failedRows.sum(), latency.snapshot(), nodes);
+            }
+        }
+
+        // замер по узлам: дерево обходится в обратном порядке, и время каждого узла берётся без потомков.
+        // diff и solve считаются целиком вместе со своими границами
+        static final class NodeProfile {
+            private final Node[] nodes;
+            private final int[][] children;
+            private final String[] labels;
+            private final LatencyHistogram[] times;
+            private final int sharedCount;
+
+            NodeProfile(Node root) {
+                List<Node> order = Nodes.postOrder(root, true);
+                this.nodes = order.toArray(new Node[0]);
+                Map<Node, Integer> index = new IdentityHashMap<>();
+                for (int i = 0; i < nodes.length; i++) {
+                    index.put(nodes[i], i);
+                }
+                this.children = new int[nodes.length][];
+                this.labels = new String[nodes.length];
+                this.times = new LatencyHistogram[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    List<Node> direct = Nodes.evaluatedChildren(nodes[i]);
+                    children[i] = new int[direct.size()];
+                    for (int c = 0; c < direct.size(); c++) {
+                        children[i][c] = index.get(direct.get(c));
+                    }
+                    labels[i] = "#" + i + " " + label(nodes[i]);
+                    times[i] = new LatencyHistogram();
+                }
+                this.sharedCount = root instanceof SharedScopeNode ? ((SharedScopeNode) root).sharedCount : 0;
+            }
+
+            // ведёт себя как Program.evaluate, в том числе в режиме без исключений
+            double evaluate(EvaluationContext context) {
+                double[] values = new double[nodes.length];
+                boolean quiet = context.isQuiet();
+                if (quiet) {
+                    context.clearError();
+                }
+                context.beginShared(sharedCount);
+                for (int i = 0; i < nodes.length; i++) {
+                    long started = System.nanoTime();
+                    try {
+                        values[i] = compute(i, values, context);
+                    } catch (EvaluationException ex) {
+                        if (!quiet) {
+                            throw ex;
+                        }
+                        return context.fail(ex, nodes[i]);
+                    } finally {
+                        times[i].record(System.nanoTime() - started);
+                    }
+                }
+                return quiet && context.getErrorCode() != 0 ? Double.NaN : values[nodes.length - 1];
+            }
+
+            private double compute(int i, double[] values, EvaluationContext context) {
+                Node node = nodes[i];
+                int[] direct = children[i];
+                if (node instanceof UnaryMinusNode) {
+                    return -values[direct[0]];
+                }
+                if (node instanceof BinaryNode) {
+                    return ((BinaryNode) node).apply(values[direct[0]], values[direct[1]]);
+                }
+                if (node instanceof FunctionNode && ((FunctionNode) node).function != null) {
+                    double[] args = new double[direct.length];
+                    for (int c = 0; c < direct.length; c++) {
+                        args[c] = values[direct[c]];
+                    }
+                    return ((FunctionNode) node).apply(args);
+                }
+                if (node instanceof SharedNode || node instanceof SharedScopeNode) {
+                    return values[direct[0]];
+                }
+                return node.evaluate(context);
+            }
+
+            private static String label(Node node) {
+                if (node instanceof NumberNode) {
+                    return String.valueOf(((NumberNode) node).value);
+                }
+                if (node instanceof VariableNode) {
+                    return ((VariableNode) node).name;
+                }
+                if (node instanceof UnaryMinusNode) {
+                    return "-()";
+                }
+                if (node instanceof BinaryNode) {
+                    return ((BinaryNode) node).op;
+                }
+                if (node instanceof FunctionNode) {
+                    return ((FunctionNode) node).originalName + "()";
+                }
+                if (node instanceof SolveNode) {
+                    return ((SolveNode) node).originalName + "()";
+                }
+                if (node instanceof SharedNode) {
+                    return "общее[" + ((SharedNode) node).index + "]";
+                }
+                if (node instanceof SharedScopeNode) {
+                    return "корень";
+                }
+                return node.getClass().getSimpleName();
+            }
+        }
+
+        static final class HistogramSnapshot {
+            final long count;
+            final long sumNanos;
+            final long maxNanos;
+            final long p50;
+            final long p90;
+            final long p99;
+            final long p999;
+
+            HistogramSnapshot(long count, long sumNanos, long maxNanos, long p50, long p90, long p99, long p999) {
+                this.count = count;
+                this.sumNanos = sumNanos;
+                this.maxNanos = maxNanos;
+                this.p50 = p50;
+                this.p90 = p90;
+                this.p99 = p99;
+                this.p999 = p999;
+            }
+
+            double meanNanos() {
+                return count == 0 ? 0.0 : (double) sumNanos / count;
+            }
+
+            void appendJson(StringBuilder json) {
+                json.append("{\"count\": ").append(count)
+                        .append(", \"meanNs\": ").append(meanNanos())
+                        .append(", \"p50Ns\": ").append(p50)
+                        .append(", \"p90Ns\": ").append(p90)
+                        .append(", \"p99Ns\": ").append(p99)
+                        .append(", \"p999Ns\": ").append(p999)
+                        .append(", \"maxNs\": ").append(maxNanos).append('}');
+            }
+        }
+
+        static final class ExpressionSnapshot {
+            final String source;
+            final long evaluations;
+            final long failures;
+            final long rows;
+            final long failedRows;
+            final HistogramSnapshot latency;
+            final Map<String, HistogramSnapshot> nodes;
+
+            ExpressionSnapshot(String source, long evaluations, long failures, long rows, long failedRows,
+                               HistogramSnapshot latency, Map<String, HistogramSnapshot> nodes) {
+                this.source = source;
+                this.evaluations = evaluations;
+                this.failures = failures;
+                this.rows = rows;
+                this.failedRows = failedRows;
+                this.latency = latency;
+                this.nodes = Collections.unmodifiableMap(nodes);
+            }
+        }
+
+        // неизменяемый снимок; формулы упорядочены по числу вычислений, самые горячие первыми
+        static final class Snapshot {
+            final Map<String, HistogramSnapshot> stages;
+            final Map<String, Long> errors;
+            final Map<String, Long> calls;
+            final Map<String, Long> optimizer;
+            final List<ExpressionSnapshot> expressions;
+
+            Snapshot(Map<String, HistogramSnapshot> stages, Map<String, Long> errors, Map<String, Long> calls,
+                     Map<String, Long> optimizer, List<ExpressionSnapshot> expressions) {
+                this.stages = Collections.unmodifiableMap(stages);
+                this.errors = Collections.unmodifiableMap(errors);
+                this.calls = Collections.unmodifiableMap(calls);
+                this.optimizer = Collections.unmodifiableMap(optimizer);
+                this.expressions = Collections.unmodifiableList(expressions);
+            }
+
+            // плоский вид для JMX: "stage.parse.p99Ns", "errors.division_by_zero", "calls.sin", "optimizer.removedNodes"
+            Map<String, Long> flatten() {
+                Map<String, Long> result = new LinkedHashMap<>();
+                for (Map.Entry<String, HistogramSnapshot> stage : stages.entrySet()) {
+                    HistogramSnapshot h = stage.getValue();
+                    String prefix = "stage." + stage.getKey() + ".";
+                    result.put(prefix + "count", h.count);
+                    result.put(prefix + "p50Ns", h.p50);
+                    result.put(prefix + "p99Ns", h.p99);
+                    result.put(prefix + "maxNs", h.maxNanos);
+                }
+                for (Map.Entry<String, Long> error : errors.entrySet()) {
+                    result.put("errors." + error.getKey(), error.getValue());
+                }
+                for (Map.Entry<String, Long> call : calls.entrySet()) {
+                    result.put("calls." + call.getKey(), call.getValue());
+                }
+                for (Map.Entry<String, Long> count : optimizer.entrySet()) {
+                    result.put("optimizer." + count.getKey(), count.getValue());
+                }
+                return result;
+            }
+
+            String toJson() {
+                StringBuilder json = new StringBuilder("{\"stages\": {");
+                String separator = "";
+                for (Map.Entry<String, HistogramSnapshot> stage : stages.entrySet()) {
+                    json.append(separator).append("\n  \"").append(stage.getKey()).append("\": ");
+                    stage.getValue().appendJson(json);
+                    separator = ",";
+                }
+                json.append("},\n \"errors\": ");
+                appendCounts(json, errors);
+                json.append(",\n \"calls\": ");
+                appendCounts(json, calls);
+                json.append(",\n \"optimizer\": ");
+                appendCounts(json, optimizer);
+                json.append(",\n \"expressions\": [");
+                separator = "";
+                for (ExpressionSnapshot formula : expressions) {
+                    json.append(separator).append("\n  {\"source\": ");
+                    quote(json, formula.source);
+                    json.append(", \"evaluations\": ").append(formula.evaluations)
+                            .append(", \"failures\": ").append(formula.failures)
+                            .append(", \"rows\": ").append(formula.rows)
+                            .append(", \"failedRows\": ").append(formula.failedRows)
+                            .append(",\n   \"latency\": ");
+                    formula.latency.appendJson(json);
+                    if (!formula.nodes.isEmpty()) {
+                        json.append(",\n   \"nodes\": {");
+                        String nodeSeparator = "";
+                        for (Map.Entry<String, HistogramSnapshot> node : formula.nodes.entrySet()) {
+                            json.append(nodeSeparator).append("\n    ");
+                            quote(json, node.getKey());
+                            json.append(": ");
+                            node.getValue().appendJson(json);
+                            nodeSeparator = ",";
+                        }
+                        json.append('}');
+                    }
+                    json.append('}');
+                    separator = ",";
+                }
+                return json.append("\n]}").toString();
+            }
+
+            private static void appendCounts(StringBuilder json, Map<String, Long> counts) {
+                json.append('{');
+                String separator = "";
+                for (Map.Entry<String, Long> count : counts.entrySet()) {
+                    json.append(separator);
+                    quote(json, count.getKey());
+                    json.append(": ").append(count.getValue());
+                    separator = ", ";
+                }
+                json.append('}');
+            }
+
+            private static void quote(StringBuilder json, String text) {
+                json.append('"');
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        json.append('\\').append(c);
+                    } else if (c < 0x20) {
+                        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+                json.append('"');
+            }
+        }
+
+        // атрибуты строятся из свежего снимка при каждом чтении; Enabled и NodeSampling можно менять
+        private static final class MetricsBean implements DynamicMBean {
+            @Override
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                switch (attribute) {
+                    case "Enabled":
+                        return enabled;
+                    case "NodeSampling":
+                        return nodeSampling;
+                    case "Json":
+                        return snapshot().toJson();
+                    default:
+                        Long value = snapshot().flatten().get(attribute);
+                        if (value == null) {
+                            throw new AttributeNotFoundException(attribute);
+                        }
+                        return value;
+                }
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute)
+                    throws AttributeNotFoundException, InvalidAttributeValueException {
+                Object value = attribute.getValue();
+                if ("Enabled".equals(attribute.getName())) {
+                    if (!(value instanceof Boolean)) {
+                        throw new InvalidAttributeValueException("Ожидалось логическое значение");
+                    }
+                    enable((Boolean) value);
+                } else if ("NodeSampling".equals(attribute.getName())) {
+                    if (!(value instanceof Integer) || (Integer) value < 0) {
+                        throw new InvalidAttributeValueException("Ожидалось неотрицательное целое");
+                    }
+                    setNodeSampling((Integer) value);
+                } else {
+                    throw new AttributeNotFoundException(attribute.getName());
+                }
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] attributes) {
+                AttributeList result = new AttributeList();
+                for (String name : attributes) {
+                    try {
+                        result.add(new Attribute(name, getAttribute(name)));
+                    } catch (AttributeNotFoundException ex) {
+                        // JMX пропускает атрибуты, которые не удалось прочитать
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) {
+                AttributeList result = new AttributeList();
+                for (Attribute attribute : attributes.asList()) {
+                    try {
+                        setAttribute(attribute);
+                        result.add(attribute);
+                    } catch (JMException ex) {
+                        // так же пропускаются атрибуты, которые не удалось записать
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+                if ("reset".equals(action)) {
+                    reset();
+                    return null;
+                }
+                throw new ReflectionException(new NoSuchMethodException(action));
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                List<MBeanAttributeInfo> attributes = new ArrayList<>();
+                attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "Замер включён", true, true, true));
+                attributes.add(new MBeanAttributeInfo("NodeSampling", "int",
+                        "Каждое n-е вычисление замеряется по узлам, 0 — никогда", true, true, false));
+                attributes.add(new MBeanAttributeInfo("Json", "java.lang.String", "Полный снимок в JSON",
+                        true, false, false));
+                for (String name : snapshot().flatten().keySet()) {
+                    attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+                }
+                MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Обнулить счётчики",
+                        new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+                return new MBeanInfo(MetricsBean.class.getName(), "Метрики калькулятора",
+                        attributes.toArray(new MBeanAttributeInfo[0]), null,
+                        new MBeanOperationInfo[] {reset}, null);
+            }
+        }
+    }
+
+    // встроенные проверки: java Main --selfcheck печатает итог каждой и завершается с кодом 1, если хоть одна не прошла
+    private static final class SelfCheck {
+        private final PrintStream out;
+        private int passed = 0;
+        private int failed = 0;
+
+        SelfCheck(PrintStream out) {
+            this.out = out;
+        }
+
+        boolean run() {
+            section("formulas", this::formulaSets);
+            section("functions", this::functions);
+            section("intervals", this::intervals);
+            out.println("Проверок пройдено: " + passed + ", не пройдено: " + failed);
+            return failed == 0;
+        }
+
+        private interface Section {
+            void run() throws Exception;
+        }
+
+        // исключение внутри раздела — тоже провал, остальные разделы всё равно выполняются
+        private void section(String name, Section section) {
+            try {
+                section.run();
+            } catch (Exception ex) {
+                check(name + ": без исключений", false, ex.toString());
+            }
+        }
+
+        private void check(String name, boolean ok, String detail) {
+            if (ok) {
+                passed++;
+                out.println("OK   " + name);
+            } else {
+                failed++;
+                out.println("FAIL " + name + (detail == null ? "" : ": " + detail));
+            }
+        }
+
+        private void formulaSets() throws ParseException {
+            FormulaSet set = FormulaSet.parse("r = sqrt(x^2 + y^2); a = r + 1; b = x / r; c = a * b");
+            int sqrtNodes = 0;
+            Set<Node> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (String name : set.getNames()) {
+                distinct.addAll(Nodes.postOrder(set.getRoot(name), true));
+            }
+            for (Node node : distinct) {
+                if (node instanceof FunctionNode && "sqrt".equals(((FunctionNode) node).canonicalName)) {
+                    sqrtNodes++;
+                }
+            }
+            check("formulas: sqrt(x^2 + y^2) — один узел на четыре формулы", sqrtNodes == 1, "узлов sqrt: " + sqrtNodes);
+
+            // все переменные меняются в каждой строке, так что пересчитывается вся сеть, но каждый узел один раз
+            int rows = 64;
+            double[][] columns = new double[set.getLayout().size()][rows];
+            double[][] results = new double[set.getNames().size()][rows];
+            for (int row = 0; row < rows; row++) {
+                columns[set.getLayout().slotOf("x")][row] = row + 1;
+                columns[set.getLayout().slotOf("y")][row] = 0.5 * row - 3;
+            }
+            FormulaSet.RowEvaluator evaluator = set.newRowEvaluator();
+            int failures = evaluator.evaluate(columns, results, rows, new long[1]);
+            IncrementalEvaluator network = evaluator.getEvaluator();
+            check("formulas: каждый узел вычисляется не больше раза на строку",
+                    failures == 0 && network.getTotalRecomputed() <= (long) rows * network.getNodeCount()
+                            && network.getNodeCount() == distinct.size(),
+                    "пересчитано " + network.getTotalRecomputed() + " при " + network.getNodeCount() + " узлах");
+
+            String[] expanded = {"sqrt(x^2 + y^2)", "sqrt(x^2 + y^2) + 1", "x / sqrt(x^2 + y^2)",
+                    "(sqrt(x^2 + y^2) + 1) * (x / sqrt(x^2 + y^2))"};
+            boolean same = true;
+            for (int k = 0; k < expanded.length && same; k++) {
+                Node separate = new Parser(expanded[k]).parse();
+                for (int row = 0; row < rows && same; row++) {
+                    EvaluationContext context = new EvaluationContext(new VariableLayout());
+                    context.setVariable("x", row + 1);
+                    context.setVariable("y", 0.5 * row - 3);
+                    same = Double.compare(separate.evaluate(context), results[k][row]) == 0;
+                }
+            }
+            check("formulas: значения совпадают с отдельными формулами", same, null);
+
+            String cycle = null;
+            try {
+                FormulaSet.parse("a = b + 1; b = a");
+            } catch (ParseException ex) {
+                cycle = ex.getMessage();
+            }
+            check("formulas: цикл a = b + 1; b = a отклоняется при построении",
+                    cycle != null && cycle.contains("a -> b -> a"), cycle);
+        }
+
+        // функции регистрируются в общем реестре, поэтому имена выбраны такими, чтобы не пересечься с формулами
+        private void functions() throws ParseException {
+            ExpressionCache cache = new ExpressionCache(16);
+            String unknown = null;
+            try {
+                cache.get("check_cube(x)");
+            } catch (ParseException ex) {
+                unknown = ex.getMessage();
+            }
+            FunctionRegistry.define("check_cube(x) = x^3");
+            double first = evaluate(cache.get("check_cube(x)"), 2.0, 0.0);
+            FunctionRegistry.define("check_cube(x) = x^3 + 1");
+            double second = evaluate(cache.get("check_cube(x)"), 2.0, 0.0);
+            check("functions: регистрация сбрасывает кэш, включая запомненную ошибку",
+                    unknown != null && first == 8.0 && second == 9.0, unknown + ", " + first + ", " + second);
+
+            FunctionRegistry.define("check_softplus(x, k) = ln(1 + exp(k*x)) / k");
+            Node symbolic = new Parser("diff(check_softplus(x^2, y), x, 0.3)").parse();
+            double expected = 2 * 0.3 / (1 + Math.exp(-2 * 0.09));
+            double actual = evaluate(symbolic, 0.0, 2.0);
+            check("functions: diff от своей функции строится символьно по цепному правилу",
+                    !hasNumericDiff(symbolic) && Math.abs(actual - expected) < 1e-12, actual + " вместо " + expected);
+
+            // f(b, a) при f(a, b): аргументы не должны подставиться друг в друга
+            FunctionRegistry.define("check_swap(a, b) = a * b^2");
+            double swapped = evaluate(new Parser("diff(check_swap(y, x), x, 3)").parse(), 0.0, 2.0);
+            check("functions: параметры не путаются с переменными в аргументах", swapped == 12.0, String.valueOf(swapped));
+
+            // производной нет ни у функции из кода, ни у определения, тело которого само считает diff с шагом
+            FunctionRegistry.register(MathFunction.of("check_ramp", 1, args -> Math.max(args[0], 0.0)));
+            MathFunction numeric = FunctionRegistry.define("check_slope(t) = diff(t^3, t, t, 0.0001)");
+            Node ramp = new Parser("diff(check_ramp(x)^2, x, 1.5)").parse();
+            Node slope = new Parser("diff(check_slope(x), x, 2, 0.001)").parse();
+            double rampValue = evaluate(ramp, 0.0, 0.0);
+            double slopeValue = evaluate(slope, 0.0, 0.0);
+            check("functions: без производной diff переходит на конечные разности",
+                    !numeric.isDifferentiable() && hasNumericDiff(ramp) && hasNumericDiff(slope)
+                            && Math.abs(rampValue - 3.0) < 1e-6 && Math.abs(slopeValue - 12.0) < 1e-4,
+                    rampValue + ", " + slopeValue);
+
+            AtomicInteger calls = new AtomicInteger();
+            FunctionRegistry.register(MathFunction.of("check_tick", 1, args -> calls.incrementAndGet()).impure());
+            MathFunction twice = FunctionRegistry.define("check_twice(x) = check_tick(x) + check_tick(x)");
+            double ticks = evaluate(cache.get("check_twice(1)"), 0.0, 0.0);
+            check("functions: тело с нечистой функцией не сворачивается и само нечистое",
+                    !twice.isPure() && ticks == 3.0 && calls.get() == 2, ticks + ", вызовов " + calls.get());
+
+            String free = null;
+            try {
+                FunctionRegistry.define("check_free(x) = x + y");
+            } catch (ParseException ex) {
+                free = ex.getMessage();
+            }
+            check("functions: переменная вне параметров отклоняется", free != null && free.contains("'y'"), free);
+        }
+
+        // границы сверяются с обычным вычислением в случайных точках и углах прямоугольников,
+        // а вердикт поиска по порогу — с максимумом по сетке
+        private void intervals() throws ParseException {
+            String[] formulas = {"x / (y - 0.5)", "sqrt(x - y) + ln(x)", "sin(3*x) * cos(y) + x^2 / (1 + y^2)",
+                    "tan(x) - pow(y, 3)", "(x - y)^-2 + hypot(x, y)", "log10(x*y) - x^0.5"};
+            Random random = new Random(42);
+            int boxes = 0;
+            int points = 0;
+            String escaped = null;
+            for (String formula : formulas) {
+                CompiledExpression expression = CompiledExpression.compile(formula);
+                VariableLayout layout = expression.getLayout();
+                int[] slots = {layout.slotOf("x"), layout.slotOf("y")};
+                IntervalEvaluator intervals = new IntervalEvaluator(expression.getRoot(), layout);
+                EvaluationContext context = expression.newContext();
+                double[] lo = new double[layout.size()];
+                double[] hi = new double[layout.size()];
+                for (int k = 0; k < 200 && escaped == null; k++, boxes++) {
+                    for (int slot : slots) {
+                        lo[slot] = random.nextDouble() * 6 - 3;
+                        hi[slot] = lo[slot] + random.nextDouble() * (k % 2 == 0 ? 0.1 : 3.0);
+                    }
+                    intervals.evaluate(lo, hi);
+                    for (int p = 0; p < 100 && escaped == null; p++, points++) {
+                        for (int v = 0; v < slots.length; v++) {
+                            int slot = slots[v];
+                            double t = p < 4 ? (p >> v) & 1 : random.nextDouble();
+                            context.setSlot(slot, p < 4 && t == 1 ? hi[slot] : lo[slot] + t * (hi[slot] - lo[slot]));
+                        }
+                        double value;
+                        try {
+                            value = expression.evaluate(context);
+                        } catch (EvaluationException ex) {
+                            value = Double.NaN;
+                        }
+                        boolean wrong = Double.isNaN(value) ? !intervals.mayFail()
+                                : intervals.mustFail() || value < intervals.getLo() || value > intervals.getHi();
+                        if (wrong) {
+                            escaped = formula + " при x = " + context.getSlot(slots[0]) + ", y = " + context.getSlot(slots[1])
+                                    + ": " + value + " вне [" + intervals.getLo() + ", " + intervals.getHi() + "]"
+                                    + (intervals.mayFail() ? ", отмечено MAY_FAIL" : "");
+                        }
+                    }
+                }
+            }
+            check("intervals: " + boxes + " прямоугольников, " + points + " точек — значения внутри границ, ошибки отмечены",
+                    escaped == null, escaped);
+
+            IntervalEvaluator across = interval("1 / x", -1.0, 1.0);
+            IntervalEvaluator aside = interval("1 / x", 0.5, 2.0);
+            check("intervals: деление на интервал с нулём — MAY_FAIL и вся прямая, без нуля — узкие границы",
+                    across.mayFail() && !across.mustFail() && across.getHi() >= 1e12 && across.getLo() <= -1e12
+                            && !aside.mayFail() && aside.getLo() <= 0.5 && aside.getLo() > 0.49
+                            && aside.getHi() >= 2.0 && aside.getHi() < 2.01,
+                    "[" + across.getLo() + ", " + across.getHi() + "], [" + aside.getLo() + ", " + aside.getHi() + "]");
+
+            IntervalEvaluator negative = interval("sqrt(x)", -4.0, -1.0);
+            IntervalEvaluator partly = interval("sqrt(x)", -1.0, 4.0);
+            check("intervals: sqrt от отрицательного — MUST_FAIL, от частично отрицательного — границы допустимой части",
+                    negative.mustFail() && partly.mayFail() && !partly.mustFail() && partly.getLo() <= 0.0
+                            && partly.getLo() > -1e-300 && partly.getHi() >= 2.0 && partly.getHi() < 2.01,
+                    "[" + partly.getLo() + ", " + partly.getHi() + "]");
+
+            // формула, прямоугольник x и y, точная верхняя грань
+            Object[][] searches = {
+                    {"sin(x) * cos(y)", -3.0, 3.0, -3.0, 3.0, 1.0},
+                    {"x * (1 - x) - y^2", 0.0, 1.0, -1.0, 1.0, 0.25},
+                    {"sqrt(x) - x + y", -1.0, 1.0, 0.0, 0.5, 0.75},
+                    {"y / (x^2 - 1) + x", -0.5, 0.5, -1.0, 0.0, 11.0 / 6},
+                    {"1 / (x - 0.3) + y", 0.0, 1.0, 0.0, 1.0, Double.POSITIVE_INFINITY}};
+            for (Object[] search : searches) {
+                searchAgainstGrid((String) search[0], (Double) search[1], (Double) search[2], (Double) search[3],
+                        (Double) search[4], (Double) search[5]);
+            }
+        }
+
+        private static IntervalEvaluator interval(String formula, double lo, double hi) throws ParseException {
+            CompiledExpression expression = CompiledExpression.compile(formula);
+            IntervalEvaluator intervals = new IntervalEvaluator(expression.getRoot(), expression.getLayout());
+            intervals.evaluate(new double[] {lo}, new double[] {hi});
+            return intervals;
+        }
+
+        // чуть ниже максимума по сетке свидетель обязан найтись, чуть выше точной грани всё должно отсечься;
+        // у полюса сетка до больших значений не дотягивается, там порог берётся заведомо выше неё
+        private void searchAgainstGrid(String formula, double xLo, double xHi, double yLo, double yHi, double supremum)
+                throws ParseException {
+            CompiledExpression expression = CompiledExpression.compile(formula);
+            VariableLayout layout = expression.getLayout();
+            int x = layout.slotOf("x");
+            int y = layout.slotOf("y");
+            double[] lo = new double[layout.size()];
+            double[] hi = new double[layout.size()];
+            lo[x] = xLo;
+            hi[x] = xHi;
+            lo[y] = yLo;
+            hi[y] = yHi;
+            EvaluationContext context = expression.newContext();
+            double sampled = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i <= 200; i++) {
+                for (int j = 0; j <= 200; j++) {
+                    context.setSlot(x, xLo + (xHi - xLo) * i / 200);
+                    context.setSlot(y, yLo + (yHi - yLo) * j / 200);
+                    try {
+                        sampled = Math.max(sampled, expression.evaluate(context));
+                    } catch (EvaluationException ex) {
+                        // вне области определения: в максимум не входит
+                    }
+                }
+            }
+            ThresholdSearch search = new ThresholdSearch(expression.getRoot(), layout);
+            double below = Double.isInfinite(supremum) ? 1e6 : sampled - 1e-3;
+            ThresholdSearch.Verdict found = search.search(below, lo, hi, 200_000, 0.0);
+            boolean witnessed = false;
+            if (found == ThresholdSearch.Verdict.EXCEEDS) {
+                context.setSlot(x, search.getWitness()[x]);
+                context.setSlot(y, search.getWitness()[y]);
+                witnessed = expression.evaluate(context) > below && search.getWitnessValue() > below;
+            }
+            check("intervals: " + formula + " превышает " + below + " (максимум по сетке " + sampled + ")",
+                    witnessed, found.name());
+            if (Double.isInfinite(supremum)) {
+                return;
+            }
+            double above = supremum + 1e-4;
+            ThresholdSearch.Verdict verdict = search.search(above, lo, hi, 200_000, 0.0);
+            check("intervals: " + formula + " не превышает " + above + ", отсечено " + search.getPrunedBoxes()
+                            + " из " + search.getEvaluatedBoxes(),
+                    verdict == ThresholdSearch.Verdict.NEVER_EXCEEDS && search.getPrunedBoxes() > 0 && sampled <= above,
+                    verdict.name() + ", по сетке " + sampled);
+        }
+
+        private static double evaluate(CompiledExpression expression, double x, double y) {
+            EvaluationContext context = expression.newContext();
+            context.setVariable("x", x);
+            context.setVariable("y", y);
+            return expression.evaluate(context);
+        }
+
+        private static double evaluate(Node root, double x, double y) {
+            EvaluationContext context = new EvaluationContext(new VariableLayout());
+            context.setVariable("x", x);
+            context.setVariable("y", y);
+            return root.evaluate(context);
+        }
+
+        private static boolean hasNumericDiff(Node root) {
+            for (Node node : Nodes.postOrder(root, false)) {
+                if (node instanceof FunctionNode && ((FunctionNode) node).function == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // встроенный замер: java Main --bench[=фильтр] печатает результаты в формате JSON, как у JMH
+    private static final class Benchmark {
+        private static final int WARMUP = Integer.getInteger("calc.bench.warmup", 3);
+        private static final int ITERATIONS = Integer.getInteger("calc.bench.iterations", 5);
+        private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("calc.bench.time", 500));
+        private static final int BATCH = 16;
+
+        private final List<Case> cases = new ArrayList<>();
+        private final com.sun.management.ThreadMXBean threads = allocationCounter();
+        private double sink;
+
+        static Benchmark standard() throws ParseException {
+            Benchmark benchmark = new Benchmark();
+            Map<String, String> formulas = new LinkedHashMap<>();
+            formulas.put("polynomial", "3*x^4 - 2*x^3 + 5*x^2 - 7*x + 11");
+            formulas.put("trig", "sin(x)*cos(y) + tan(x/3) - sin(2*x)*cos(x+y) + sqrt(abs(sin(y)))");
+            formulas.put("variables", "x1*x2 + x3*x4 - x5/x6 + x7*x8 - x9/x10 + x11*x12 - x13*x14 + x15/x16");
+            formulas.put("nested", nested(48));
+            formulas.put("diff", "diff(sin(x)*x^2, x, y) + diff(exp(x)*y, x, y, 0.001)");
+            formulas.put("solve", "solve(t^3 - x*t - 1, t, 0, 10) + minimize((t - y)^2 + sin(3*t), t, -5, 5)");
+            for (Map.Entry<String, String> formula : formulas.entrySet()) {
+                benchmark.addFormula(formula.getKey(), formula.getValue());
+            }
+            benchmark.addFailures();
+            benchmark.addFormulaSet();
+            benchmark.addThresholdSearch();
+            return benchmark;
+        }
+
+        // набор формул с общим подвыражением: один проход сети на строку против четырёх отдельных программ
+        private void addFormulaSet() throws ParseException {
+            FormulaSet set = FormulaSet.parse("r = sqrt(x^2 + y^2); a = r + 1; b = x / r; c = a * b");
+            int rows = 256;
+            double[] x = new double[rows];
+            double[] y = new double[rows];
+            for (int row = 0; row < rows; row++) {
+                x[row] = row + 1;
+                y[row] = 0.5 * row - 3;
+            }
+            double[][] columns = new double[set.getLayout().size()][];
+            columns[set.getLayout().slotOf("x")] = x;
+            columns[set.getLayout().slotOf("y")] = y;
+            double[][] results = new double[set.getNames().size()][rows];
+            FormulaSet.RowEvaluator evaluator = set.newRowEvaluator();
+            long[] errors = new long[(rows + 63) >>> 6];
+            add("formulas.shared", "rows256", () -> evaluator.evaluate(columns, results, rows, errors) + results[3][rows - 1]);
+
+            String[] expanded = {"sqrt(x^2 + y^2)", "sqrt(x^2 + y^2) + 1", "x / sqrt(x^2 + y^2)",
+                    "(sqrt(x^2 + y^2) + 1) * (x / sqrt(x^2 + y^2))"};
+            CompiledExpression[] separate = new CompiledExpression[expanded.length];
+            EvaluationContext[] contexts = new EvaluationContext[expanded.length];
+            for (int k = 0; k < expanded.length; k++) {
+                separate[k] = CompiledExpression.compile(expanded[k]);
+                contexts[k] = separate[k].newContext();
+            }
+            add("formulas.separate", "rows256", () -> {
+                double sum = 0;
+                for (int row = 0; row < rows; row++) {
+                    for (int k = 0; k < separate.length; k++) {
+                        contexts[k].setVariable("x", x[row]);
+                        contexts[k].setVariable("y", y[row]);
+                        sum += separate[k].evaluate(contexts[k]);
+                    }
+                }
+                return sum;
+            });
+        }
+
+        // поиск по порогу чуть выше максимума: прямоугольник приходится разбить до конца, свидетеля нет
+        private void addThresholdSearch() throws ParseException {
+            CompiledExpression quadratic = CompiledExpression.compile("x * (1 - x) - y^2");
+            VariableLayout layout = quadratic.getLayout();
+            double[] lo = new double[layout.size()];
+            double[] hi = new double[layout.size()];
+            lo[layout.slotOf("y")] = -1.0;
+            hi[layout.slotOf("x")] = 1.0;
+            hi[layout.slotOf("y")] = 1.0;
+            ThresholdSearch search = new ThresholdSearch(quadratic.getRoot(), layout);
+            add("interval.search", "quadratic", () -> search.search(0.251, lo, hi, ThresholdSearch.DEFAULT_BOXES, 0.0)
+                    .ordinal() + search.getEvaluatedBoxes());
+        }
+
+        // строка с ошибкой: исключение против кода ошибки в контексте (EvaluationContext.setQuiet)
+        private void addFailures() throws ParseException {
+            CompiledExpression division = CompiledExpression.compile("x / (y - 1) + sqrt(x)");
+            EvaluationContext throwing = division.newContext();
+            EvaluationContext quiet = division.newContext();
+            quiet.setQuiet(true);
+            for (EvaluationContext context : Arrays.asList(throwing, quiet)) {
+                context.setVariable("x", 2.0);
+                context.setVariable("y", 1.0);
+            }
+            add("failure.throwing", "division", () -> {
+                try {
+                    return division.evaluate(throwing);
+                } catch (EvaluationException ex) {
+                    return ex.getKind().ordinal();
+                }
+            });
+            add("failure.quiet", "division", () -> {
+                double result = division.evaluate(quiet);
+                return quiet.getErrorCode() + result;
+            });
+        }
+
+        // чередование скобок и вызовов функций, глубина растёт линейно
+        private static String nested(int levels) {
+            String text = "x";
+            for (int i = 0; i < levels; i++) {
+                text = i % 2 == 0 ? "(" + text + " + y)*0.5" : "sqrt(abs(" + text + ")) - x";
+            }
+            return text;
+        }
+
+        void addFormula(String name, String text) throws ParseException {
+            add("tokenize", name, () -> {
+                Tokenizer tokenizer = new Tokenizer(text);
+                int count = 0;
+                while (tokenizer.next() != TokenType.EOF) {
+                    count++;
+                }
+                return count;
+            });
+            add("parse", name, () -> System.identityHashCode(new Parser(text).parse()));
+            Parser parser = new Parser(text);
+            Node parsed = parser.parse();
+            Node root = new Optimizer().optimize(parsed);
+            EvaluationContext context = new EvaluationContext(parser.getLayout());
+            Set<String> variables = new TreeSet<>();
+            root.collectVariables(variables);
+            int index = 0;
+            for (String variable : variables) {
+                context.setVariable(variable, 0.5 + 0.25 * index++);
+            }
+            for (Engine engine : Engine.values()) {
+                Evaluator evaluator = engine.prepare(root, parser.getLayout());
+                add("evaluate." + engine.name().toLowerCase(Locale.ROOT), name, () -> evaluator.evaluate(context));
+            }
+            // та же программа через CompiledExpression: разница с evaluate.program — цена выключенных метрик
+            CompiledExpression compiled = CompiledExpression.compile(text);
+            EvaluationContext compiledContext = compiled.newContext();
+            index = 0;
+            for (String variable : variables) {
+                compiledContext.setVariable(variable, 0.5 + 0.25 * index++);
+            }
+            add("evaluate.compiled", name, () -> compiled.evaluate(compiledContext));
+            // холодный старт формулы: полный разбор против восстановления из записи снимка
+            add("compile", name, () -> System.identityHashCode(CompiledExpression.compile(text)));
+            byte[] record = ExpressionSnapshot.encode(compiled);
+            add("snapshot.load", name, () -> {
+                try {
+                    return System.identityHashCode(
+                            ExpressionSnapshot.decode(ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN)));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            // одна переменная меняется на каждом шаге, остальные узлы берутся из кэша
+            IncrementalEvaluator incremental = new IncrementalEvaluator(root, parser.getLayout());
+            index = 0;
+            for (String variable : variables) {
+                incremental.setVariable(variable, 0.5 + 0.25 * index++);
+            }
+            String changing = variables.isEmpty() ? null : variables.iterator().next();
+            long[] step = {0};
+            add("evaluate.incremental", name, () -> {
+                if (changing != null) {
+                    incremental.setVariable(changing, 0.5 + 0.125 * (step[0]++ & 1));
+                }
+                return incremental.evaluate();
+            });
+            // цена каждой арифметики на том же дереве; auto — подбор режима под допуск 1e-20
+            PrecisionEvaluator precise = new PrecisionEvaluator(parsed, parser.getLayout());
+            for (Precision precision : Precision.values()) {
+                add("precision." + precision.name().toLowerCase(Locale.ROOT), name, () -> {
+                    precise.evaluate(context, precision);
+                    return precise.getValue();
+                });
+            }
+            add("precision.auto", name, () -> precise.evaluate(context, 1e-20).ordinal());
+            // границы на прямоугольнике ±0.25 вокруг тех же значений переменных
+            IntervalEvaluator intervals = new IntervalEvaluator(root, parser.getLayout());
+            double[] boxLo = new double[parser.getLayout().size()];
+            double[] boxHi = new double[parser.getLayout().size()];
+            index = 0;
+            for (String variable : variables) {
+                int slot = parser.getLayout().slotOf(variable);
+                boxLo[slot] = 0.25 + 0.25 * index;
+                boxHi[slot] = 0.75 + 0.25 * index++;
+            }
+            add("interval.bounds", name, () -> {
+                intervals.evaluate(boxLo, boxHi);
+                return intervals.getHi();
+            });
+        }
+
+        void add(String benchmark, String formula, Operation operation) {
+            cases.add(new Case(benchmark, formula, operation));
+        }
+
+        // проверяемые исключения разбора JMH ни к чему: операции уже разобраны при построении набора
+        DoubleSupplier operation(String id) {
+            for (Case current : cases) {
+                if (current.id().equals(id)) {
+                    Operation operation = current.operation;
+                    return () -> {
+                        try {
+                            return operation.run();
+                        } catch (ParseException ex) {
+                            throw new IllegalStateException(ex.getMessage(), ex);
+                        }
+                    };
+                }
+            }
+            throw new IllegalArgumentException("Нет замера '" + id + "'");
+        }
+
+        void run(String filter, PrintStream out) throws ParseException {
+            StringBuilder json = new StringBuilder("[");
+            for (Case current : cases) {
+                if (!current.id().contains(filter)) {
+                    continue;
+                }
+                for (int i = 0; i < WARMUP; i++) {
+                    measure(current.operation);
+                }
+                double[] times = new double[ITERATIONS];
+                double[] allocations = new double[ITERATIONS];
+                for (int i = 0; i < ITERATIONS; i++) {
+                    double[] sample = measure(current.operation);
+                    times[i] = sample[0];
+                    allocations[i] = sample[1];
+                }
+                System.err.printf(Locale.ROOT, "%-40s %12.1f ns/op %10.1f B/op%n",
+                        current.id(), mean(times), mean(allocations));
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                appendResult(json, current, times, allocations);
+            }
+            out.println(json.append("\n]"));
+        }
+
+        // {нс на операцию, байт на операцию}; часы опрашиваются раз в пачку операций
+        private double[] measure(Operation operation) throws ParseException {
+            long allocatedBefore = allocatedBytes();
+            long operations = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < BATCH; i++) {
+                    sink += operation.run();
+                }
+                operations += BATCH;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ITERATION_NANOS);
+            long allocated = allocatedBytes() - allocatedBefore;
+            return new double[] {(double) elapsed / operations, threads == null ? Double.NaN : (double) allocated / operations};
+        }
+
+        private long allocatedBytes() {
+            return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+        }
+
+        private static com.sun.management.ThreadMXBean allocationCounter() {
+            java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+            if (!counter.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            counter.setThreadAllocatedMemoryEnabled(true);
+            return counter;
+        }
+
+        private void appendResult(StringBuilder json, Case current, double[] times, double[] allocations) {
+            json.append("\n  {\"benchmark\": \"").append(current.benchmark)
+                    .append("\", \"mode\": \"avgt\", \"threads\": 1, \"forks\": 0")
+                    .append(", \"warmupIterations\": ").append(WARMUP)
+                    .append(", \"measurementIterations\": ").append(ITERATIONS)
+                    .append(", \"params\": {\"formula\": \"").append(current.formula).append("\"}")
+                    .append(",\n   \"primaryMetric\": ");
+            appendMetric(json, times, "ns/op");
+            if (threads != null) {
+                json.append(",\n   \"secondaryMetrics\": {\"gc.alloc.rate.norm\": ");
+                appendMetric(json, allocations, "B/op");
+                json.append('}');
+            }
+            json.append('}');
+        }
+
+        private static void appendMetric(StringBuilder json, double[] samples, String unit) {
+            json.append("{\"score\": ").append(mean(samples))
+                    .append(", \"scoreError\": ").append(error(samples))
+                    .append(", \"scoreUnit\": \"").append(unit).append("\", \"rawData\": [[");
+            for (int i = 0; i < samples.length; i++) {
+                json.append(i == 0 ? "" : ", ").append(samples[i]);
+            }
+            json.append("]]}");
+        }
+
+        private static double mean(double[] samples) {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            return sum / samples.length;
+        }
+
+        // полуширина 99.9% доверительного интервала в нормальном приближении
+        private static double error(double[] samples) {
+            if (samples.length < 2) {
+                return 0;
+            }
+            double mean = mean(samples);
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            return 3.291 * Math.sqrt(squares / (samples.length - 1) / samples.length);
+        }
+
+        interface Operation {
+            double run() throws ParseException;
+        }
+
+        private static final class Case {
+            final String benchmark;
+            final String formula;
+            final Operation operation;
+
+            Case(String benchmark, String formula, Operation operation) {
+                this.benchmark = benchmark;
+                this.formula = formula;
+                this.operation = operation;
+            }
+
+            String id() {
+                return benchmark + ":" + formula;
+            }
+        }
+    }
+
+    private enum Engine {
+        TREE {
+            @Override
+            Evaluator prepare(Node root, VariableLayout layout) {
+                return root;
+            }
+        },
+        PROGRAM {
+            @Override
+            Evaluator prepare(Node root, VariableLayout layout) {
+                return new ProgramCompiler(layout).compile(root);
+            }
+        },
+        JIT {
+            @Override
+            Evaluator prepare(Node root, VariableLayout layout) {
+                return new TieredEvaluator(root, layout, TieredEvaluator.DEFAULT_THRESHOLD);
+            }
+        };
+
+        abstract Evaluator prepare(Node root, VariableLayout layout);
+
+        static Engine byName(String name) {
+            for (Engine engine : values()) {
+                if (engine.name().equalsIgnoreCase(name)) {
+                    return engine;
+                }
+            }
+            return null;
+        }
+    }
+
+    // арифметика PrecisionEvaluator: double, пара double (около 32 цифр) или BigDecimal с заданным числом цифр
+    private enum Precision {
+        DOUBLE, DOUBLE_DOUBLE, DECIMAL;
+
+        static Precision byName(String name) {
+            for (Precision precision : values()) {
+                if (precision.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                    return precision;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Program implements Evaluator {
+        static final int CONST = 0;
+        static final int LOAD = 1;
+        static final int NEG = 2;
+        static final int ADD = 3;
+        static final int SUB = 4;
+        static final int MUL = 5;
+        static final int DIV = 6;
+        static final int POW = 7;
+        static final int SIN = 8;
+        static final int COS = 9;
+        static final int TAN = 10;
+        static final int LN = 11;
+        static final int LOG10 = 12;
+        static final int SQRT = 13;
+        static final int ABS = 14;
+        static final int EXP = 15;
+        static final int DIFF = 16;
+        static final int FAIL = 17;
+        static final int STORE_SHARED = 18;
+        static final int LOAD_SHARED = 19;
+        static final int SIGN = 20;
+        static final int CALL = 21;
+        static final int SOLVE = 22;
+
+        private final int[] code;
+        private final double[] constants;
+        private final String[] messages;
+        private final MathFunction[] functions;
+        private final Program[] subprograms;
+        private final SolveNode[] solvers;
+        private final VariableLayout layout;
+        private final int maxStack;
+        private final int sharedCount;
+        // узел дерева для каждого кода операции, который может завершиться ошибкой
+        private final Node[] sites;
+
+        Program(int[] code, double[] constants, String[] messages, MathFunction[] functions, Program[] subprograms,
+                SolveNode[] solvers, VariableLayout layout, int maxStack, int sharedCount, Node[] sites) {
+            this.code = code;
+            this.constants = constants;
+            this.messages = messages;
+            this.functions = functions;
+            this.subprograms = subprograms;
+            this.solvers = solvers;
+            this.layout = layout;
+            this.maxStack = maxStack;
+            this.sharedCount = sharedCount;
+            this.sites = sites;
+        }
+
+        @Override
+        public double evaluate(EvaluationContext context) {
+            if (!context.isQuiet()) {
+                return run(context, context.stack(maxStack), 0, context.sharedValues(sharedCount));
+            }
+            // после ошибки NaN мог пропасть по дороге (например, в NaN^0), поэтому результат задаётся здесь
+            context.clearError();
+            double result = run(context, context.stack(maxStack), 0, context.sharedValues(sharedCount));
+            return context.getErrorCode() == 0 ? result : Double.NaN;
+        }
+
+        private double run(EvaluationContext context, double[] stack, int base, double[] shared) {
+            boolean sameLayout = context.getLayout() == layout;
+            int sp = base;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case CONST:
+                        stack[sp++] = constants[code[pc++]];
+                        break;
+                    case LOAD: {
+                        int slot = code[pc++];
+                        stack[sp++] = sameLayout ? context.getSlot(slot) : context.getVariable(layout.nameOf(slot));
+                        break;
+                    }
+                    case NEG:
+                        stack[sp - 1] = -stack[sp - 1];
+                        break;
+                    case ADD:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] + stack[sp];
+                        break;
+                    case SUB:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] - stack[sp];
+                        break;
+                    case MUL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] * stack[sp];
+                        break;
+                    case DIV:
+                        sp--;
+                        if (Math.abs(stack[sp]) < 1e-12) {
+                            if (context.isQuiet()) {
+                                return context.fail(ErrorKind.DIVISION_BY_ZERO, sites[pc - 1]);
+                            }
+                            throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+                        }
+                        stack[sp - 1] = stack[sp - 1] / stack[sp];
+                        break;
+                    case POW:
+                        sp--;
+                        stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                        break;
+                    case SIN:
+                        stack[sp - 1] = Math.sin(stack[sp - 1]);
+                        break;
+                    case COS:
+                        stack[sp - 1] = Math.cos(stack[sp - 1]);
+                        break;
+                    case TAN:
+                        stack[sp - 1] = Math.tan(stack[sp - 1]);
+                        break;
+                    case LN:
+                        stack[sp - 1] = Math.log(stack[sp - 1]);
+                        break;
+                    case LOG10:
+                        stack[sp - 1] = Math.log10(stack[sp - 1]);
+                        break;
+                    case SQRT:
+                        if (stack[sp - 1] < 0) {
+                            if (context.isQuiet()) {
+                                return context.fail(ErrorKind.DOMAIN, sites[pc - 1]);
+                            }
+                            throw new EvaluationException(ErrorKind.DOMAIN, "sqrt: отрицательный аргумент");
+                        }
+                        stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+                        break;
+                    case ABS:
+                        stack[sp - 1] = Math.abs(stack[sp - 1]);
+                        break;
+                    case EXP:
+                        stack[sp - 1] = Math.exp(stack[sp - 1]);
+                        break;
+                    case SIGN:
+                        stack[sp - 1] = Math.signum(stack[sp - 1]);
+                        break;
+                    case CALL: {
+                        int at = pc - 1;
+                        MathFunction function = functions[code[pc++]];
+                        int arity = function.getArity();
+                        // функции реестра сообщают об ошибке только исключением
+                        try {
+                            if (arity == 1) {
+                                stack[sp - 1] = function.applyAsDouble(stack[sp - 1]);
+                            } else if (arity == 2) {
+                                sp--;
+                                stack[sp - 1] = function.applyAsDouble(stack[sp - 1], stack[sp]);
+                            } else {
+                                double[] values = Arrays.copyOfRange(stack, sp - arity, sp);
+                                sp -= arity;
+                                stack[sp++] = function.applyAsDouble(values);
+                            }
+                        } catch (EvaluationException ex) {
+                            if (!context.isQuiet()) {
+                                throw ex;
+                            }
+                            return context.fail(ex, sites[at]);
+                        }
+                        break;
+                    }
+                    case DIFF: {
+                        Program inner = subprograms[code[pc++]];
+                        int slot = code[pc++];
+                        boolean hasStep = code[pc++] != 0;
+                        double step;
+                        if (hasStep) {
+                            sp--;
+                            step = Math.abs(stack[sp]);
+                            if (step == 0.0) {
+                                step = 1e-5;
+                            }
+                        } else {
+                            step = 1e-5 * Math.max(1.0, Math.abs(stack[sp - 1]));
+                        }
+                        double point = stack[sp - 1];
+                        long started = Metrics.start();
+                        stack[sp - 1] = sameLayout
+                                ? derivativeBySlot(inner, context, stack, sp, shared, slot, point, step)
+                                : derivativeByName(inner, context, stack, sp, shared, layout.nameOf(slot), point, step);
+                        Metrics.record(Metrics.DIFF, started);
+                        if (context.getErrorCode() != 0) {
+                            return Double.NaN;
+                        }
+                        break;
+                    }
+                    case SOLVE: {
+                        // поиск работает на стеке выше границ отрезка
+                        int at = pc - 1;
+                        SolveNode solver = solvers[code[pc++]];
+                        sp--;
+                        try {
+                            stack[sp - 1] = solver.solve(context, stack, sp + 1, shared, stack[sp - 1], stack[sp]);
+                        } catch (EvaluationException ex) {
+                            if (!context.isQuiet()) {
+                                throw ex;
+                            }
+                            return context.fail(ex, sites[at]);
+                        }
+                        if (context.getErrorCode() != 0) {
+                            return Double.NaN;
+                        }
+                        break;
+                    }
+                    case FAIL:
+                        if (context.isQuiet()) {
+                            return context.fail(ErrorKind.UNSUPPORTED, sites[pc - 1], messages[code[pc]]);
+                        }
+                        throw new EvaluationException(ErrorKind.UNSUPPORTED, messages[code[pc++]]);
+                    case STORE_SHARED:
+                        shared[code[pc++]] = stack[sp - 1];
+                        break;
+                    case LOAD_SHARED:
+                        stack[sp++] = shared[code[pc++]];
+                        break;
+                    default:
+                        throw new IllegalStateException("Неизвестный код операции " + code[pc - 1]);
+                }
+            }
+            return stack[base];
+        }
+
+        private static double derivativeBySlot(Program inner, EvaluationContext context, double[] stack, int base,
+                                               double[] shared, int slot, double point, double step) {
+            boolean existed = context.isSlotDefined(slot);
+            double previousValue = existed ? context.peekSlot(slot) : 0.0;
+            try {
+                context.setSlot(slot, point + step);
+                double fPlus = inner.run(context, stack, base, shared);
+                context.setSlot(slot, point - step);
+                double fMinus = inner.run(context, stack, base, shared);
+                return (fPlus - fMinus) / (2.0 * step);
+            } finally {
+                if (existed) {
+                    context.setSlot(slot, previousValue);
+                } else {
+                    context.clearSlot(slot);
+                }
+            }
+        }
+
+        private static double derivativeByName(Program inner, EvaluationContext context, double[] stack, int base,
+                                               double[] shared, String name, double point, double step) {
+            VariableSnapshot snapshot = new VariableSnapshot(context, name);
+            try {
+                snapshot.set(point + step);
+                double fPlus = inner.run(context, stack, base, shared);
+                snapshot.set(point - step);
+                double fMinus = inner.run(context, stack, base, shared);
+                return (fPlus - fMinus) / (2.0 * step);
+            } finally {
+                snapshot.restore();
+            }
+        }
+    }
+
+    private static final class ProgramCompiler {
+        private final VariableLayout layout;
+        private int[] code = new int[16];
+        private Node[] sites = new Node[16];
+        private Node current;
+        private int size = 0;
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<Long, Integer> constantIndex = new HashMap<>();
+        private final List<String> messages = new ArrayList<>();
+        private final List<MathFunction> functions = new ArrayList<>();
+        private final List<Program> subprograms = new ArrayList<>();
+        private final List<SolveNode> solvers = new ArrayList<>();
+        private final Set<Integer> emittedShared = new HashSet<>();
+        private int sharedCount = 0;
+        private int depth = 0;
+        private int maxStack = 0;
+
+        ProgramCompiler(VariableLayout layout) {
+            this.layout = layout;
+        }
+
+        Program compile(Node root) {
+            emitNode(root);
+            double[] pool = new double[constants.size()];
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = constants.get(i);
+            }
+            return new Program(Arrays.copyOf(code, size), pool, messages.toArray(new String[0]),
+                    functions.toArray(new MathFunction[0]), subprograms.toArray(new Program[0]),
+                    solvers.toArray(new SolveNode[0]), layout, Math.max(maxStack, 1), sharedCount,
+                    Arrays.copyOf(sites, size));
+        }
+
+        // обход с явным стеком: сначала операнды, затем сама операция
+        private void emitNode(Node root) {
+            Deque<Node> pending = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            pending.push(root);
+            expanded.push(Boolean.FALSE);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (expanded.pop()) {
+                    emitOperation(node, true);
+                    continue;
+                }
+                List<Node> operands = operandsOf(node);
+                if (operands.isEmpty()) {
+                    emitOperation(node, false);
+                    continue;
+                }
+                pending.push(node);
+                expanded.push(Boolean.TRUE);
+                for (int i = operands.size() - 1; i >= 0; i--) {
+                    pending.push(operands.get(i));
+                    expanded.push(Boolean.FALSE);
+                }
+            }
+        }
+
+        // узлы, значения которых должны лежать на стеке до операции
+        private List<Node> operandsOf(Node node) {
+            if (node instanceof SharedNode) {
+                // код линейный, так что первое вхождение всегда вычисляется раньше остальных
+                SharedNode sharedNode = (SharedNode) node;
+                sharedCount = Math.max(sharedCount, sharedNode.index + 1);
+                return emittedShared.add(sharedNode.index)
+                        ? Collections.singletonList(sharedNode.inner)
+                        : Collections.<Node>emptyList();
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                if (!"diff".equals(function.canonicalName)) {
+                    return function.arguments;
+                }
+                return isValidDerivative(function) ? function.arguments.subList(2, function.arguments.size())
+                        : Collections.<Node>emptyList();
+            }
+            return Nodes.evaluatedChildren(node);
+        }
+
+        private void emitOperation(Node node, boolean afterOperands) {
+            current = node;
+            if (node instanceof NumberNode) {
+                emit(Program.CONST, constant(((NumberNode) node).value));
+                push(1);
+            } else if (node instanceof VariableNode) {
+                VariableNode variable = (VariableNode) node;
+                int slot = variable.layout == layout ? variable.slot : layout.slotOf(variable.name);
+                emit(Program.LOAD, slot);
+                push(1);
+            } else if (node instanceof UnaryMinusNode) {
+                emit(Program.NEG);
+            } else if (node instanceof BinaryNode) {
+                emitBinary((BinaryNode) node);
+            } else if (node instanceof FunctionNode) {
+                emitFunction((FunctionNode) node);
+            } else if (node instanceof SolveNode) {
+                emitSolve((SolveNode) node);
+            } else if (node instanceof SharedNode) {
+                SharedNode sharedNode = (SharedNode) node;
+                if (afterOperands) {
+                    emit(Program.STORE_SHARED, sharedNode.index);
+                } else {
+                    emit(Program.LOAD_SHARED, sharedNode.index);
+                    push(1);
+                }
+            } else if (!(node instanceof SharedScopeNode)) {
+                throw new IllegalArgumentException("Неизвестный тип узла " + node.getClass().getSimpleName());
+            }
+        }
+
+        private void emitBinary(BinaryNode node) {
+            switch (node.op) {
+                case "+": emit(Program.ADD); break;
+                case "-": emit(Program.SUB); break;
+                case "*": emit(Program.MUL); break;
+                case "/": emit(Program.DIV); break;
+                case "^": emit(Program.POW); break;
+                default:
+                    emit(Program.FAIL, message("Неизвестная операция '" + node.op + "'"));
+            }
+            depth--;
+        }
+
+        private void emitFunction(FunctionNode node) {
+            List<Node> args = node.arguments;
+            if ("diff".equals(node.canonicalName)) {
+                emitDerivative(node);
+                return;
+            }
+            // арность проверена при разборе; у встроенных функций свой код операции
+            MathFunction function = node.function;
+            if (function.getOpcode() == Program.CALL) {
+                emit(Program.CALL, function(function));
+            } else {
+                emit(function.getOpcode());
+            }
+            pushResultOf(args.size());
+        }
+
+        private static boolean isValidDerivative(FunctionNode node) {
+            int count = node.arguments.size();
+            return count >= 3 && count <= 4 && node.arguments.get(1) instanceof VariableNode;
+        }
+
+        // точка и шаг к этому моменту уже на стеке
+        private void emitDerivative(FunctionNode node) {
+            List<Node> args = node.arguments;
+            if (args.size() < 3 || args.size() > 4) {
+                emit(Program.FAIL, message("diff ожидает 3 или 4 аргумента"));
+                push(1);
+                return;
+            }
+            if (!(args.get(1) instanceof VariableNode)) {
+                emit(Program.FAIL, message("Во втором аргументе diff нужно указать имя переменной"));
+                push(1);
+                return;
+            }
+            VariableNode variable = (VariableNode) args.get(1);
+            int slot = variable.layout == layout ? variable.slot : layout.slotOf(variable.name);
+            Program inner = new ProgramCompiler(layout).compile(args.get(0));
+            maxStack = Math.max(maxStack, depth + inner.maxStack);
+            subprograms.add(inner);
+            emit(Program.DIFF, subprograms.size() - 1, slot, args.size() == 4 ? 1 : 0);
+            pushResultOf(args.size() - 2);
+        }
+
+        // границы отрезка к этому моменту уже на стеке, программы самого выражения собраны в узле
+        private void emitSolve(SolveNode node) {
+            maxStack = Math.max(maxStack, depth + node.maxStack);
+            solvers.add(node);
+            emit(Program.SOLVE, solvers.size() - 1);
+            pushResultOf(2);
+        }
+
+        private void pushResultOf(int argumentCount) {
+            depth -= argumentCount;
+            push(1);
+        }
+
+        private void push(int count) {
+            depth += count;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        private int constant(double value) {
+            Long key = Double.doubleToRawLongBits(value);
+            Integer index = constantIndex.get(key);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndex.put(key, index);
+            }
+            return index;
+        }
+
+        private int function(MathFunction function) {
+            for (int i = 0; i < functions.size(); i++) {
+                if (functions.get(i) == function) {
+                    return i;
+                }
+            }
+            functions.add(function);
+            return functions.size() - 1;
+        }
+
+        private int message(String text) {
+            messages.add(text);
+            return messages.size() - 1;
+        }
+
+        private void emit(int... words) {
+            if (size + words.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+                sites = Arrays.copyOf(sites, code.length);
+            }
+            sites[size] = current;
+            for (int word : words) {
+                code[size++] = word;
+            }
+        }
+    }
+
+    interface CompiledFormula {
+        double eval(double[] vars);
+    }
+
+    static final class JitRuntime {
+        private JitRuntime() {
+        }
+
+        static double divide(double a, double b) {
+            if (Math.abs(b) < 1e-12) {
+                throw new EvaluationException(ErrorKind.DIVISION_BY_ZERO, "Деление на ноль");
+            }
+            return a / b;
+        }
+
+        static double sqrt(double value) {
+            if (value < 0) {
+                throw new EvaluationException(ErrorKind.DOMAIN, "sqrt: отрицательный аргумент");
+            }
+            return Math.sqrt(value);
+        }
+    }
+
+    private static final class TieredEvaluator implements Evaluator {
+        static final int DEFAULT_THRESHOLD = Integer.getInteger("calc.jit.threshold", 1000);
+
+        private final Node root;
+        private final VariableLayout layout;
+        private final Program program;
+        private final int threshold;
+        private final int[] usedSlots;
+        private int invocations = 0;
+        private boolean rejected = false;
+        private volatile CompiledFormula compiled;
+
+        TieredEvaluator(Node root, VariableLayout layout, int threshold) {
+            this.root = root;
+            this.layout = layout;
+            this.program = new ProgramCompiler(layout).compile(root);
+            this.threshold = threshold;
+            Set<Integer> slots = new LinkedHashSet<>();
+            JitCompiler.collectSlots(root, slots);
+            this.usedSlots = new int[slots.size()];
+            int i = 0;
+            for (int slot : slots) {
+                usedSlots[i++] = slot;
+            }
+        }
+
+        boolean isCompiled() {
+            return compiled != null;
+        }
+
+        @Override
+        public double evaluate(EvaluationContext context) {
+            CompiledFormula formula = compiled;
+            if (formula == null) {
+                if (!rejected && ++invocations >= threshold) {
+                    compile();
+                }
+                return program.evaluate(context);
+            }
+            if (context.getLayout() != layout || context.isQuiet() || !allDefined(context)) {
+                // точное сообщение об ошибке, порядок проверок и режим без исключений даёт интерпретатор
+                return program.evaluate(context);
+            }
+            return formula.eval(context.frame());
+        }
+
+        private boolean allDefined(EvaluationContext context) {
+            for (int slot : usedSlots) {
+                if (!context.isSlotDefined(slot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private synchronized void compile() {
+            if (compiled != null || rejected) {
+                return;
+            }
+            CompiledFormula formula = JitCompiler.compile(root, layout);
+            if (formula == null) {
+                rejected = true;
+            } else {
+                compiled = formula;
+            }
+        }
+    }
+
+    private static final class JitCompiler {
+        private static final String CLASS_NAME = "Main$JitFormula";
+        private static final String RUNTIME_NAME = "Main$JitRuntime";
+        private static final String MATH_NAME = "java/lang/Math";
+        private static final int MAX_DEPTH = 1000;
+
+        private final VariableLayout layout;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final Set<Integer> storedShared = new HashSet<>();
+        private int maxLocals = 2;
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        private JitCompiler(VariableLayout layout) {
+            this.layout = layout;
+        }
+
+        static CompiledFormula compile(Node root, VariableLayout layout) {
+            // генератор рекурсивный; такие глубокие выражения всё равно не уложатся в 64 КБ кода метода
+            if (Nodes.depth(root) > MAX_DEPTH || !isSupported(root, layout)) {
+                return null;
+            }
+            try {
+                byte[] bytes = new JitCompiler(layout).generate(root);
+                if (bytes == null) {
+                    return null;
+                }
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+                MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+                return (CompiledFormula) constructor.invoke();
+            } catch (Throwable ex) {
+                return null;
+            }
+        }
+
+        static void collectSlots(Node root, Set<Integer> target) {
+            for (Node node : Nodes.postOrder(root, false)) {
+                if (node instanceof VariableNode) {
+                    target.add(((VariableNode) node).slot);
+                }
+            }
+        }
+
+        private static boolean isSupported(Node node, VariableLayout layout) {
+            if (node instanceof NumberNode) {
+                return true;
+            }
+            if (node instanceof VariableNode) {
+                return ((VariableNode) node).layout == layout;
+            }
+            if (node instanceof UnaryMinusNode) {
+                return isSupported(((UnaryMinusNode) node).inner, layout);
+            }
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                return "+-*/^".contains(binary.op) && binary.op.length() == 1
+                        && isSupported(binary.left, layout) && isSupported(binary.right, layout);
+            }
+            if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                // функции без статического метода (diff, пользовательские) остаются интерпретатору
+                if (function.function == null || function.function.getJitOwner() == null) {
+                    return false;
+                }
+                for (Node arg : function.arguments) {
+                    if (!isSupported(arg, layout)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (node instanceof SharedNode) {
+                // локальные переменные метода адресуются одним байтом
+                return ((SharedNode) node).index < 120 && isSupported(((SharedNode) node).inner, layout);
+            }
+            if (node instanceof SharedScopeNode) {
+                return isSupported(((SharedScopeNode) node).inner, layout);
+            }
+            return false;
+        }
+
+        private byte[] generate(Node root) throws IOException {
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef("Main$CompiledFormula");
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDesc = utf8("()V");
+            int evalName = utf8("eval");
+            int evalDesc = utf8("([D)D");
+
+            emitNode(root);
+            code.write(0xAF); // dreturn
+            if (code.size() > 65535 || poolCount > 65535) {
+                return null;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020 | 0x1000); // public final super synthetic
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);
+            out.writeShort(2);
+
+            byte[] initCode = {0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1};
+            writeMethod(out, initName, initDesc, codeName, 1, 1, initCode);
+            writeMethod(out, evalName, evalDesc, codeName, Math.max(maxDepth * 2 + 2, 2), maxLocals, code.toByteArray());
+
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+                                        int maxStack, int maxLocals, byte[] body) throws IOException {
+            out.writeShort(0x0001);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        private void emitNode(Node node) throws IOException {
+            if (node instanceof NumberNode) {
+                double value = ((NumberNode) node).value;
+                long bits = Double.doubleToRawLongBits(value);
+                if (bits == 0L) {
+                    code.write(0x0E); // dconst_0
+                } else if (bits == Double.doubleToRawLongBits(1.0)) {
+                    code.write(0x0F); // dconst_1
+                } else {
+                    emitWithIndex(0x14, doubleConstant(value)); // ldc2_w
+                }
+                push();
+            } else if (node instanceof VariableNode) {
+                code.write(0x2B); // aload_1
+                emitInt(((VariableNode) node).slot);
+                code.write(0x31); // daload
+                push();
+            } else if (node instanceof UnaryMinusNode) {
+                emitNode(((UnaryMinusNode) node).inner);
+                code.write(0x77); // dneg
+            } else if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                emitNode(binary.left);
+                emitNode(binary.right);
+                switch (binary.op) {
+                    case "+": code.write(0x63); break; // dadd
+                    case "-": code.write(0x67); break; // dsub
+                    case "*": code.write(0x6B); break; // dmul
+                    case "/": emitWithIndex(0xB8, methodRef(RUNTIME_NAME, "divide", "(DD)D")); break;
+                    default: emitWithIndex(0xB8, methodRef(MATH_NAME, "pow", "(DD)D")); break;
+                }
+                depth--;
+            } else if (node instanceof SharedNode) {
+                SharedNode shared = (SharedNode) node;
+                int local = 2 + shared.index * 2;
+                if (storedShared.add(shared.index)) {
+                    emitNode(shared.inner);
+                    code.write(0x5C); // dup2
+                    code.write(0x39); // dstore
+                    code.write(local);
+                    maxLocals = Math.max(maxLocals, local + 2);
+                } else {
+                    code.write(0x18); // dload
+                    code.write(local);
+                    push();
+                }
+            } else if (node instanceof SharedScopeNode) {
+                emitNode(((SharedScopeNode) node).inner);
+            } else {
+                FunctionNode function = (FunctionNode) node;
+                for (Node arg : function.arguments) {
+                    emitNode(arg);
+                }
+                MathFunction target = function.function;
+                StringBuilder descriptor = new StringBuilder("(");
+                for (int i = 0; i < target.getArity(); i++) {
+                    descriptor.append('D');
+                }
+                emitWithIndex(0xB8, methodRef(target.getJitOwner(), target.getJitMethod(), descriptor.append(")D").toString()));
+                depth -= target.getArity();
+                push();
+            }
+        }
+
+        private void emitInt(int value) {
+            if (value <= 5) {
+                code.write(0x03 + value); // iconst_n
+            } else if (value <= 127) {
+                code.write(0x10); // bipush
+                code.write(value);
+            } else {
+                code.write(0x11); // sipush
+                code.write(value >> 8);
+                code.write(value);
+            }
+        }
+
+        private void emitWithIndex(int opcode, int index) {
+            code.write(opcode);
+            code.write(index >> 8);
+            code.write(index);
+        }
+
+        private void push() {
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private int utf8(String text) throws IOException {
+            Integer index = poolIndex.get("U" + text);
+            if (index == null) {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(text);
+                index = poolCount++;
+                poolIndex.put("U" + text, index);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            Integer index = poolIndex.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                poolOut.writeByte(7);
+                poolOut.writeShort(nameIndex);
+                index = poolCount++;
+                poolIndex.put("C" + name, index);
+            }
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                int ownerIndex = classRef(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                poolOut.writeByte(12);
+                poolOut.writeShort(nameIndex);
+                poolOut.writeShort(descriptorIndex);
+                int nameAndType = poolCount++;
+                poolOut.writeByte(10);
+                poolOut.writeShort(ownerIndex);
+                poolOut.writeShort(nameAndType);
+                index = poolCount++;
+                poolIndex.put(key, index);
+            }
+            return index;
+        }
+
+        private int doubleConstant(double value) throws IOException {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                poolOut.writeByte(6);
+                poolOut.writeDouble(value);
+                index = poolCount;
+                poolCount += 2;
+                poolIndex.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private static final class VariableLayout {
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int slotOf(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = names.size();
+                slots.put(name, slot);
+                names.add(name);
+            }
+            return slot;
+        }
+
+        int find(String name) {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        String nameOf(int slot) {
+            return names.get(slot);
+        }
+
+        int size() {
+            return names.size();
+        }
+    }
+
+    private static final class EvaluationContext {
+        private final VariableLayout layout;
+        private double[] values;
+        private boolean[] defined;
+        private final Map<String, Double> extraVars = new HashMap<>();
+        private double[] stack = new double[0];
+        private double[] sharedValues = new double[0];
+        private long[] sharedStamps = new long[0];
+        private long sharedEpoch = 0;
+        // режим без исключений: первая ошибка записывается сюда, а вычисление возвращает NaN.
+        // Сообщение строится только в getErrorMessage
+        private boolean quiet;
+        private int errorCode;
+        private Node errorNode;
+        private int errorSlot = -1;
+        private String errorName;
+        private String errorMessage;
+
+        EvaluationContext() {
+            this(new VariableLayout());
+        }
+
+        EvaluationContext(VariableLayout layout) {
+            this.layout = layout;
+            this.values = new double[layout.size()];
+            this.defined = new boolean[layout.size()];
+        }
+
+        VariableLayout getLayout() {
+            return layout;
+        }
+
+        void setVariable(String name, double value) {
+            int slot = layout.find(name);
+            if (slot < 0) {
+                extraVars.put(name, value);
+                return;
+            }
+            setSlot(slot, value);
+        }
+
+        double getVariable(String name) {
+            int slot = layout.find(name);
+            if (slot >= 0) {
+                return getSlot(slot);
+            }
+            Double value = extraVars.get(name);
+            if (value == null) {
+                if (quiet) {
+                    if (errorCode == 0) {
+                        errorName = name;
+                    }
+                    return fail(ErrorKind.UNDEFINED_VARIABLE, null);
+                }
+                throw new EvaluationException(ErrorKind.UNDEFINED_VARIABLE, "Переменная '" + name + "' не определена");
+            }
+            return value;
+        }
+
+        void setSlot(int slot, double value) {
+            if (slot >= values.length) {
+                grow(layout.size());
+            }
+            values[slot] = value;
+            defined[slot] = true;
+        }
+
+        boolean isSlotDefined(int slot) {
+            return slot < defined.length && defined[slot];
+        }
+
+        double peekSlot(int slot) {
+            return values[slot];
+        }
+
+        void clearSlot(int slot) {
+            if (slot < defined.length) {
+                defined[slot] = false;
+            }
+        }
+
+        double[] frame() {
+            return values;
+        }
+
+        void beginShared(int count) {
+            if (sharedValues.length < count) {
+                growShared(count);
+            }
+            sharedEpoch++;
+        }
+
+        boolean hasShared(int index) {
+            return index < sharedStamps.length && sharedStamps[index] == sharedEpoch;
+        }
+
+        double sharedValue(int index) {
+            return sharedValues[index];
+        }
+
+        void storeShared(int index, double value) {
+            if (index >= sharedValues.length) {
+                growShared(index + 1);
+            }
+            sharedValues[index] = value;
+            sharedStamps[index] = sharedEpoch;
+        }
+
+        double[] sharedValues(int count) {
+            if (sharedValues.length < count) {
+                growShared(count);
+            }
+            return sharedValues;
+        }
+
+        private void growShared(int size) {
+            sharedValues = Arrays.copyOf(sharedValues, size);
+            sharedStamps = Arrays.copyOf(sharedStamps, size);
+        }
+
+        double[] stack(int size) {
+            if (stack.length < size) {
+                stack = new double[size];
+            }
+            return stack;
+        }
+
+        double getSlot(int slot) {
+            if (slot >= defined.length || !defined[slot]) {
+                if (quiet) {
+                    if (errorCode == 0) {
+                        errorSlot = slot;
+                    }
+                    return fail(ErrorKind.UNDEFINED_VARIABLE, null);
+                }
+                throw new EvaluationException(ErrorKind.UNDEFINED_VARIABLE,
+                        "Переменная '" + layout.nameOf(slot) + "' не определена");
+            }
+            return values[slot];
+        }
+
+        boolean hasVariable(String name) {
+            int slot = layout.find(name);
+            if (slot < 0) {
+                return extraVars.containsKey(name);
+            }
+            return slot < defined.length && defined[slot];
+        }
+
+        Double peekValue(String name) {
+            int slot = layout.find(name);
+            if (slot < 0) {
+                return extraVars.get(name);
+            }
+            return slot < defined.length && defined[slot] ? values[slot] : null;
+        }
+
+        void removeVariable(String name) {
+            int slot = layout.find(name);
+            if (slot < 0) {
+                extraVars.remove(name);
+            } else if (slot < defined.length) {
+                defined[slot] = false;
+            }
+        }
+
+        // Program, CompiledExpression и JIT сами сбрасывают ошибку перед вычислением и при ошибке возвращают NaN;
+        // при прямом обходе дерева (Node.evaluate) код нужно сбрасывать и проверять вызывающему
+        void setQuiet(boolean quiet) {
+            this.quiet = quiet;
+            clearError();
+        }
+
+        boolean isQuiet() {
+            return quiet;
+        }
+
+        // 0 — ошибок не было, иначе ErrorKind.ordinal() + 1
+        int getErrorCode() {
+            return errorCode;
+        }
+
+        ErrorKind getErrorKind() {
+            return errorCode == 0 ? null : ErrorKind.values()[errorCode - 1];
+        }
+
+        // узел, на котором случилась первая ошибка; null, если его не знает вычислитель (например, для переменной)
+        Node getErrorNode() {
+            return errorNode;
+        }
+
+        String getErrorMessage() {
+            if (errorCode == 0) {
+                return null;
+            }
+            if (errorMessage != null) {
+                return errorMessage;
+            }
+            switch (getErrorKind()) {
+                case DIVISION_BY_ZERO:
+                    return "Деление на ноль";
+                case UNDEFINED_VARIABLE:
+                    return "Переменная '" + (errorName != null ? errorName : layout.nameOf(errorSlot)) + "' не определена";
+                default:
+                    // остальные ошибки приходят готовыми исключениями; здесь остаётся только sqrt
+                    return errorNode instanceof FunctionNode
+                            ? ((FunctionNode) errorNode).canonicalName + ": отрицательный аргумент"
+                            : "sqrt: отрицательный аргумент";
+            }
+        }
+
+        void clearError() {
+            errorCode = 0;
+            errorNode = null;
+            errorSlot = -1;
+            errorName = null;
+            errorMessage = null;
+        }
+
+        // запоминает только первую ошибку; возвращает NaN, чтобы вызывающий мог сразу вернуть его как результат
+        double fail(ErrorKind kind, Node node) {
+            if (errorCode == 0) {
+                errorCode = kind.ordinal() + 1;
+                errorNode = node;
+                Metrics.error(kind);
+            }
+            return Double.NaN;
+        }
+
+        // сообщение уже готово, например, заранее собрано компилятором
+        double fail(ErrorKind kind, Node node, String message) {
+            if (errorCode == 0) {
+                fail(kind, node);
+                errorMessage = message;
+            }
+            return Double.NaN;
+        }
+
+        // исключение уже посчитано в Metrics при создании, поэтому сюда только переносится его сообщение
+        double fail(EvaluationException ex, Node node) {
+            if (errorCode == 0) {
+                errorCode = ex.getKind().ordinal() + 1;
+                errorNode = node;
+                errorMessage = ex.getMessage();
+            }
+            return Double.NaN;
+        }
+
+        private void grow(int size) {
+            values = Arrays.copyOf(values, size);
+            defined = Arrays.copyOf(defined, size);
+        }
+    }
+
+    private static final class VariableSnapshot {
+        private final EvaluationContext context;
+        private final String name;
+        private final boolean existed;
+        private final double previousValue;
+
+        VariableSnapshot(EvaluationContext context, String name) {
+            this.context = context;
+            this.name = name;
+            this.existed = context.hasVariable(name);
+            this.previousValue = existed ? context.peekValue(name) : 0.0;
+        }
+
+        void set(double value) {
+            context.setVariable(name, value);
+        }
+
+        void restore() {
+            if (existed) {
+                context.setVariable(name, previousValue);
+            } else {
+                context.removeVariable(name);
+            }
+        }
+    }
+
+    private static final class ParseException extends Exception {
+        ParseException(String message) {
+            super(message);
+        }
+    }
+
+    // род ошибки вычисления: по нему ведутся счётчики Metrics, а ordinal() + 1 — код ошибки
+    // в режиме без исключений (EvaluationContext.setQuiet)
+    private enum ErrorKind {
+        DIVISION_BY_ZERO, UNDEFINED_VARIABLE, DOMAIN, NO_SOLUTION, UNSUPPORTED
+    }
+
+    // без стека вызовов: ошибка относится к данным, а не к месту в коде, и бросается на горячем пути
+    private static final class EvaluationException extends RuntimeException {
+        private final ErrorKind kind;
+
+        EvaluationException(ErrorKind kind, String message) {
+            super(message, null, false, false);
+            this.kind = kind;
+            Metrics.error(kind);
+        }
+
+        ErrorKind getKind() {
+            return kind;
         }
     }
 }
\ No newline at end of file
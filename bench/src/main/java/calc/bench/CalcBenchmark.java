@@ -0,0 +1,161 @@
+package calc.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// замеры JMH над теми же операциями, что и у java Main --bench: операция берётся по имени вида
+// "evaluate.tree:trig" и готовится вне замера. Main лежит в безымянном пакете, отсюда он виден
+// только через отражение. Запуск: java -jar bench/target/benchmarks.jar -prof gc -rf json -rff results.json
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CalcBenchmark {
+
+    static DoubleSupplier operation(String id) {
+        try {
+            return (DoubleSupplier) Class.forName("Main").getMethod("benchmarkOperation", String.class).invoke(null, id);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause().getMessage(), ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Main.benchmarkOperation недоступен", ex);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tokenize {
+        @Param({"polynomial", "trig", "variables", "nested", "diff", "solve"})
+        public String formula;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("tokenize:" + formula);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Parse {
+        @Param({"polynomial", "trig", "variables", "nested", "diff", "solve"})
+        public String formula;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("parse:" + formula);
+        }
+    }
+
+    // tree — Node.evaluate, compiled — стековая программа через CompiledExpression с выключенными метриками
+    @State(Scope.Thread)
+    public static class Evaluate {
+        @Param({"tree", "program", "jit", "compiled", "incremental"})
+        public String engine;
+        @Param({"polynomial", "trig", "variables", "nested", "solve"})
+        public String formula;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("evaluate." + engine + ":" + formula);
+        }
+    }
+
+    // символьный diff без шага и конечные разности с шагом в одной формуле
+    @State(Scope.Thread)
+    public static class Diff {
+        @Param({"tree", "program", "jit", "compiled", "incremental"})
+        public String engine;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("evaluate." + engine + ":diff");
+        }
+    }
+
+    // четыре формулы с общим sqrt(x^2 + y^2) на 256 строках: набором за один проход или по отдельности
+    @State(Scope.Thread)
+    public static class Formulas {
+        @Param({"shared", "separate"})
+        public String mode;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("formulas." + mode + ":rows256");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Interval {
+        @Param({"polynomial", "trig", "variables", "nested", "diff", "solve"})
+        public String formula;
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("interval.bounds:" + formula);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Search {
+        DoubleSupplier operation;
+
+        @Setup
+        public void setup() {
+            operation = operation("interval.search:quadratic");
+        }
+    }
+
+    @Benchmark
+    public void tokenize(Tokenize state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    public void parse(Parse state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    public void evaluate(Evaluate state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    public void diff(Diff state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    public void formulaSet(Formulas state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    public void intervalBounds(Interval state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void thresholdSearch(Search state, Blackhole blackhole) {
+        blackhole.consume(state.operation.getAsDouble());
+    }
+}